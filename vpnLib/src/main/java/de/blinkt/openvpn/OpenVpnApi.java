@@ -8,12 +8,12 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.HashSet;
 import java.util.List;
 
 import de.blinkt.openvpn.core.ConfigParser;
 import de.blinkt.openvpn.core.ProfileManager;
+import de.blinkt.openvpn.core.ProfileParseCache;
 import de.blinkt.openvpn.core.VPNLaunchHelper;
 
 public class OpenVpnApi {
@@ -27,13 +27,12 @@ public class OpenVpnApi {
     }
 
     static void startVpnInternal(Context context, String config, String name, String username, String password, List<String> bypassPackages) throws RemoteException {
-        ConfigParser cp = new ConfigParser();
         try {
-            cp.parseConfig(new StringReader(config));
-            VpnProfile vp = cp.convertProfile();// Analysis.ovpn
+            ProfileParseCache.ParsedProfile parsed = ProfileParseCache.get(context, config);
+            VpnProfile vp = parsed.profile;// Analysis.ovpn
             vp.mName = name;
-            if (vp.checkProfile(context) != de.blinkt.openvpn.R.string.no_error_found) {
-                throw new RemoteException(context.getString(vp.checkProfile(context)));
+            if (parsed.checkResult != de.blinkt.openvpn.R.string.no_error_found) {
+                throw new RemoteException(context.getString(parsed.checkResult));
             }
             vp.mProfileCreator = context.getPackageName();
             vp.mUsername = username;
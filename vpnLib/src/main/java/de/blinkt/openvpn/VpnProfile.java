@@ -24,6 +24,7 @@ import de.blinkt.openvpn.core.*;
 import org.spongycastle.util.io.pem.PemObject;
 import org.spongycastle.util.io.pem.PemWriter;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
@@ -31,6 +32,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.security.*;
@@ -59,8 +61,10 @@ public class VpnProfile implements Serializable, Cloneable {
     public static final String EXTRA_PROFILEUUID = "de.blinkt.openvpn.profileUUID";
     public static final String INLINE_TAG = "[[INLINE]]";
     public static final String DISPLAYNAME_TAG = "[[NAME]]";
+    // Embedded file moved to the BlobStore, followed by the SHA-256 of the content
+    public static final String BLOB_TAG = "[[BLOB]]";
     public static final int MAXLOGLEVEL = 4;
-    public static final int CURRENT_PROFILE_VERSION = 8;
+    public static final int CURRENT_PROFILE_VERSION = 9;
     public static final int DEFAULT_MSSFIX_SIZE = 1280;
     public static final int TYPE_CERTIFICATES = 0;
     public static final int TYPE_PKCS12 = 1;
@@ -158,6 +162,17 @@ public class VpnProfile implements Serializable, Cloneable {
     public boolean mUseUdp = true;
     public boolean mTemporaryProfile = false;
     private transient PrivateKey mPrivateKey;
+    // Last generated config and the hash of the fields/flavour/preferences it was generated for
+    private transient String mCachedConfig;
+    private transient byte[] mCachedConfigKey;
+    // Content of the config file last written by writeConfigFile
+    private static String mWrittenConfigFile;
+    private static byte[] mWrittenConfigHash;
+    // Excluded routes that bypass the config, see getBulkExcludedRoutes
+    private transient RouteList mBulkExcludedRoutes;
+    private transient String mBulkExcludedRoutesKey;
+    // Smaller excluded route lists are written to the config as usual
+    private static final int BULK_ROUTES_MIN = 256;
     // Public attributes, since I got mad with getter/setter
     // set members to default values
     private UUID mUuid;
@@ -165,6 +180,19 @@ public class VpnProfile implements Serializable, Cloneable {
 
     public boolean mBlockUnusedAddressFamilies =true;
 
+    // Screen off pause: pause if less than mScreenOffTrafficLimit bytes in mScreenOffTrafficWindow s
+    public int mScreenOffTrafficWindow = DeviceStateReceiver.TRAFFIC_WINDOW;
+    public long mScreenOffTrafficLimit = DeviceStateReceiver.TRAFFIC_LIMIT;
+    // Optional file with IPv4 networks (text or RouteList binary form) excluded from the VPN.
+    // Added directly to the VPN routes instead of going through the OpenVPN 2.x config
+    public String mExcludedRoutesFile;
+    // Whitespace separated domains whose addresses are routed through (included) or around
+    // (excluded) the VPN. Resolved when connecting, see DomainRoutes
+    public String mIncludedDomains;
+    public String mExcludedDomains;
+    // DNS server (IP address) for resolving these domains, the system resolver if empty
+    public String mDomainDnsServer;
+
     public VpnProfile(String name) {
         mUuid = UUID.randomUUID();
         mName = name;
@@ -197,6 +225,7 @@ public class VpnProfile implements Serializable, Cloneable {
 
     //! Put inline data inline and other data as normal escaped filename
     public static String insertFileData(String cfgentry, String filedata) {
+        filedata = BlobStore.resolve(filedata);
         if (filedata == null) {
             return String.format("%s %s\n", cfgentry, "file missing in config profile");
         } else if (isEmbedded(filedata)) {
@@ -208,12 +237,16 @@ public class VpnProfile implements Serializable, Cloneable {
     }
 
     public static String getDisplayName(String embeddedFile) {
+        embeddedFile = BlobStore.resolve(embeddedFile);
         int start = DISPLAYNAME_TAG.length();
         int end = embeddedFile.indexOf(INLINE_TAG);
         return embeddedFile.substring(start, end);
     }
 
     public static String getEmbeddedContent(String data) {
+        data = BlobStore.resolve(data);
+        if (data == null)
+            return "";
         if (!data.contains(INLINE_TAG))
             return data;
 
@@ -224,7 +257,7 @@ public class VpnProfile implements Serializable, Cloneable {
     public static boolean isEmbedded(String data) {
         if (data == null)
             return false;
-        if (data.startsWith(INLINE_TAG) || data.startsWith(DISPLAYNAME_TAG))
+        if (data.startsWith(INLINE_TAG) || data.startsWith(DISPLAYNAME_TAG) || data.startsWith(BLOB_TAG))
             return true;
         else
             return false;
@@ -301,6 +334,9 @@ public class VpnProfile implements Serializable, Cloneable {
             case 7:
                 if (mAllowAppVpnBypass)
                     mBlockUnusedAddressFamilies = !mAllowAppVpnBypass;
+            case 8:
+                mScreenOffTrafficWindow = DeviceStateReceiver.TRAFFIC_WINDOW;
+                mScreenOffTrafficLimit = DeviceStateReceiver.TRAFFIC_LIMIT;
             default:
         }
 
@@ -321,10 +357,64 @@ public class VpnProfile implements Serializable, Cloneable {
 
     }
 
+    /**
+     * Returns the config for this profile. The generated config is cached for the current
+     * content of the stored fields, the flavour and the preferences it depends on, so
+     * repeated calls for an unchanged profile do not rebuild it. The UI edits the fields
+     * directly, so the key hashes all of them instead of relying on {@link #mVersion}.
+     */
     public String getConfigFile(Context context, boolean configForOvpn3) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean usesystemproxy = prefs.getBoolean("usesystemproxy", true);
+        byte[] key = getConfigKey(configForOvpn3, usesystemproxy);
+
+        synchronized (this) {
+            if (key != null && mCachedConfig != null && MessageDigest.isEqual(key, mCachedConfigKey))
+                return mCachedConfig;
+        }
+
+        StringBuilder cfg = new StringBuilder(4096);
+        boolean cacheable = generateConfig(context, configForOvpn3, usesystemproxy, cfg);
+        String config = cfg.toString();
+
+        synchronized (this) {
+            if (cacheable && key != null) {
+                mCachedConfigKey = key;
+                mCachedConfig = config;
+            } else {
+                mCachedConfigKey = null;
+                mCachedConfig = null;
+            }
+        }
+        return config;
+    }
+
+    /**
+     * @return SHA-256 of the stored fields and the inputs of the config that are not part of
+     * the profile, null if it cannot be computed
+     */
+    private byte[] getConfigKey(boolean configForOvpn3, boolean usesystemproxy) {
+        try {
+            ByteArrayOutputStream fields = new ByteArrayOutputStream(4096);
+            ProfileCodec.write(this, fields);
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(fields.toByteArray());
+            md.update((byte) (configForOvpn3 ? 1 : 0));
+            md.update((byte) (usesystemproxy ? 1 : 0));
+            return md.digest();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            VpnStatus.logException(e);
+            return null;
+        }
+    }
 
+    /**
+     * @return false if the config contains data from outside the profile, like the
+     * certificates from the KeyChain or an external app, and must not be cached
+     */
+    private boolean generateConfig(Context context, boolean configForOvpn3, boolean usesystemproxy, StringBuilder cfg) {
+        boolean cacheable = true;
         File cacheDir = context.getCacheDir();
-        StringBuilder cfg = new StringBuilder();
 
         if (!configForOvpn3) {
             // Enable management interface
@@ -448,6 +538,8 @@ public class VpnProfile implements Serializable, Cloneable {
             case VpnProfile.TYPE_KEYSTORE:
             case VpnProfile.TYPE_EXTERNAL_APP:
                 if (!configForOvpn3) {
+                    // The certificates behind the alias can change without the profile
+                    cacheable = false;
                     String[] ks = getExternalCertificates(context);
                     cfg.append("### From Keystore/ext auth app ####\n");
                     if (ks != null) {
@@ -521,30 +613,32 @@ public class VpnProfile implements Serializable, Cloneable {
         if (mUsePull && mRoutenopull)
             cfg.append("route-nopull\n");
 
-        String routes = "";
+        // The default IPv6 route has always been written before the other routes
+        if (mUseDefaultRoutev6)
+            cfg.append("route-ipv6 ::/0\n");
 
         if (mUseDefaultRoute)
-            routes += "route 0.0.0.0 0.0.0.0 vpn_gateway\n";
+            cfg.append("route 0.0.0.0 0.0.0.0 vpn_gateway\n");
         else {
             for (String route : getCustomRoutes(mCustomRoutes)) {
-                routes += "route " + route + " vpn_gateway\n";
+                cfg.append("route ").append(route).append(" vpn_gateway\n");
             }
 
-            for (String route : getCustomRoutes(mExcludedRoutes)) {
-                routes += "route " + route + " net_gateway\n";
+            RouteList bulkExcluded = configForOvpn3 ? null : getInlineBulkExcludedRoutes();
+            if (bulkExcluded != null) {
+                cfg.append("# ").append(bulkExcluded.size()).append(" excluded routes are added directly to the VPN routes\n");
+            } else {
+                for (String route : getCustomRoutes(mExcludedRoutes)) {
+                    cfg.append("route ").append(route).append(" net_gateway\n");
+                }
             }
         }
 
-
-        if (mUseDefaultRoutev6)
-            cfg.append("route-ipv6 ::/0\n");
-        else
+        if (!mUseDefaultRoutev6)
             for (String route : getCustomRoutesv6(mCustomRoutesv6)) {
-                routes += "route-ipv6 " + route + "\n";
+                cfg.append("route-ipv6 ").append(route).append("\n");
             }
 
-        cfg.append(routes);
-
         if (mOverrideDNS || !mUsePull) {
             if (!TextUtils.isEmpty(mDNS1)) {
                 cfg.append("dhcp-option DNS ").append(mDNS1).append("\n");
@@ -634,8 +728,6 @@ public class VpnProfile implements Serializable, Cloneable {
         if (mPushPeerInfo)
             cfg.append("push-peer-info\n");
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        boolean usesystemproxy = prefs.getBoolean("usesystemproxy", true);
         if (usesystemproxy && !mIsOpenVPN22 && !configForOvpn3 && !usesExtraProxyOptions()) {
             cfg.append("# Use system proxy setting\n");
             cfg.append("management-query-proxy\n");
@@ -661,8 +753,7 @@ public class VpnProfile implements Serializable, Cloneable {
             }
         }
 
-
-        return cfg.toString();
+        return cacheable;
     }
 
     public String getPlatformVersionEnvString() {
@@ -689,19 +780,86 @@ public class VpnProfile implements Serializable, Cloneable {
             // No routes set, return empty vector
             return cidrRoutes;
         }
-        for (String route : routes.split("[\n \t]")) {
-            if (!route.equals("")) {
-                String cidrroute = cidrToIPAndNetmask(route);
+        int len = routes.length();
+        int pos = 0;
+        while (pos < len) {
+            int start = pos;
+            while (pos < len && !isRouteSeparator(routes.charAt(pos)))
+                pos++;
+            if (pos > start) {
+                String cidrroute = cidrToIPAndNetmask(routes.substring(start, pos));
                 if (cidrroute == null)
                     return cidrRoutes;
 
                 cidrRoutes.add(cidrroute);
             }
+            pos++;
         }
 
         return cidrRoutes;
     }
 
+    private static boolean isRouteSeparator(char c) {
+        return c == '\n' || c == ' ' || c == '\t';
+    }
+
+    /**
+     * @return the excluded routes of the profile if there are so many that they are added
+     * directly to the VPN routes instead of being written to the config, otherwise null
+     */
+    private RouteList getInlineBulkExcludedRoutes() {
+        // Every route needs at least 8 characters, avoid parsing short lists
+        if (mExcludedRoutes == null || mExcludedRoutes.length() < BULK_ROUTES_MIN * 8)
+            return null;
+        RouteList routes = RouteList.parse(mExcludedRoutes);
+        if (routes == null || routes.size() < BULK_ROUTES_MIN)
+            return null;
+        return routes;
+    }
+
+    /**
+     * Returns the excluded routes that are not part of the OpenVPN 2.x config: very long
+     * inline exclusion lists and the routes from {@link #mExcludedRoutesFile}. The service
+     * adds them to the VPN routes in one pass.
+     *
+     * @return the routes or null if there are none
+     */
+    public synchronized RouteList getBulkExcludedRoutes() {
+        File file = TextUtils.isEmpty(mExcludedRoutesFile) ? null : new File(mExcludedRoutesFile);
+        String key = getBulkExcludedRoutesKey();
+        if (key.equals(mBulkExcludedRoutesKey))
+            return mBulkExcludedRoutes;
+
+        // Like in the config, inline excluded routes only apply with custom routes
+        RouteList routes = mUseDefaultRoute ? null : getInlineBulkExcludedRoutes();
+        if (file != null) {
+            try {
+                RouteList fileRoutes = RouteList.read(file);
+                if (routes == null) {
+                    routes = fileRoutes;
+                } else {
+                    routes.addAll(fileRoutes);
+                }
+            } catch (IOException e) {
+                VpnStatus.logException("Reading excluded routes from " + file, e);
+            }
+        }
+
+        mBulkExcludedRoutes = routes;
+        mBulkExcludedRoutesKey = key;
+        return routes;
+    }
+
+    /**
+     * @return a key that changes whenever {@link #getBulkExcludedRoutes()} may return other
+     * routes, without reading them
+     */
+    public String getBulkExcludedRoutesKey() {
+        File file = TextUtils.isEmpty(mExcludedRoutesFile) ? null : new File(mExcludedRoutesFile);
+        return mVersion + "/" + mUseDefaultRoute + "/" + mExcludedRoutesFile
+                + "/" + (file == null ? 0 : file.lastModified());
+    }
+
     private Collection<String> getCustomRoutesv6(String routes) {
         Vector<String> cidrRoutes = new Vector<>();
         if (routes == null) {
@@ -718,29 +876,32 @@ public class VpnProfile implements Serializable, Cloneable {
     }
 
     private String cidrToIPAndNetmask(String route) {
-        String[] parts = route.split("/");
+        int slash = route.indexOf('/');
+        String ip = slash < 0 ? route : route.substring(0, slash);
 
         // No /xx, assume /32 as netmask
-        if (parts.length == 1)
-            parts = (route + "/32").split("/");
-
-        if (parts.length != 2)
-            return null;
-        int len;
-        try {
-            len = Integer.parseInt(parts[1]);
-        } catch (NumberFormatException ne) {
-            return null;
+        int len = 32;
+        if (slash >= 0) {
+            if (route.indexOf('/', slash + 1) >= 0)
+                return null;
+            try {
+                len = Integer.parseInt(route.substring(slash + 1));
+            } catch (NumberFormatException ne) {
+                return null;
+            }
         }
         if (len < 0 || len > 32)
             return null;
 
+        return ip + "  " + getNetmask(len);
+    }
 
-        long nm = 0xffffffffL;
-        nm = (nm << (32 - len)) & 0xffffffffL;
+    private static final String[] mNetmasks = new String[33];
 
-        String netmask = String.format(Locale.ENGLISH, "%d.%d.%d.%d", (nm & 0xff000000) >> 24, (nm & 0xff0000) >> 16, (nm & 0xff00) >> 8, nm & 0xff);
-        return parts[0] + "  " + netmask;
+    private static synchronized String getNetmask(int len) {
+        if (mNetmasks[len] == null)
+            mNetmasks[len] = IpCodec.formatIPv4(IpCodec.prefixLengthToMask(len));
+        return mNetmasks[len];
     }
 
     public Intent prepareStartService(Context context) {
@@ -755,12 +916,39 @@ public class VpnProfile implements Serializable, Cloneable {
         return intent;
     }
 
+    /**
+     * Writes the config for the OpenVPN 2.x binary. The file is only rewritten if its
+     * content changed since it was last written.
+     */
     public void writeConfigFile(Context context) throws IOException {
-        FileWriter cfg = new FileWriter(VPNLaunchHelper.getConfigFilePath(context));
-        cfg.write(getConfigFile(context, false));
-        cfg.flush();
-        cfg.close();
+        String configFile = VPNLaunchHelper.getConfigFilePath(context);
+        String config = getConfigFile(context, false);
+        byte[] hash = configHash(config);
+
+        synchronized (VpnProfile.class) {
+            if (hash != null && mWrittenConfigHash != null && MessageDigest.isEqual(hash, mWrittenConfigHash)
+                    && configFile.equals(mWrittenConfigFile) && new File(configFile).exists())
+                return;
+
+            FileWriter cfg = new FileWriter(configFile);
+            try {
+                cfg.write(config);
+                cfg.flush();
+            } finally {
+                cfg.close();
+            }
+            mWrittenConfigFile = configFile;
+            mWrittenConfigHash = hash;
+        }
+    }
 
+    private static byte[] configHash(String config) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(config.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            VpnStatus.logException(e);
+            return null;
+        }
     }
 
     public Intent getStartServiceIntent(Context context) {
@@ -1057,7 +1245,7 @@ public class VpnProfile implements Serializable, Cloneable {
 
         String data = "";
         if (isEmbedded(mClientKeyFilename))
-            data = mClientKeyFilename;
+            data = getEmbeddedContent(mClientKeyFilename);
         else {
             char[] buf = new char[2048];
             FileReader fr;
@@ -11,13 +11,13 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Parcelable;
 import de.blinkt.openvpn.VpnProfile;
-import de.blinkt.openvpn.core.ConfigParser;
 import de.blinkt.openvpn.core.Connection;
+import de.blinkt.openvpn.core.ProfileDiff;
+import de.blinkt.openvpn.core.ProfileImporter;
+import de.blinkt.openvpn.core.ProfileIndex;
 import de.blinkt.openvpn.core.ProfileManager;
 import de.blinkt.openvpn.core.VpnStatus;
 
-import java.io.IOException;
-import java.io.StringReader;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -105,6 +105,11 @@ public class AppRestrictions {
 
         Set<String> provisionedUuids = new HashSet<>();
 
+        // Changed or new profiles, parsed together in one bulk import below
+        List<String> configs = new ArrayList<>();
+        List<String[]> uuidAndNames = new ArrayList<>();
+        List<VpnProfile> oldProfiles = new ArrayList<>();
+
         ProfileManager pm = ProfileManager.getInstance(c);
         for (Parcelable profile : profileList) {
             if (!(profile instanceof Bundle)) {
@@ -136,22 +141,66 @@ public class AppRestrictions {
                     continue;
 
             }
-            addProfile(c, ovpn, uuid, name, vpnProfile);
+            configs.add(prepare(ovpn));
+            uuidAndNames.add(new String[]{uuid, name});
+            oldProfiles.add(vpnProfile);
+        }
+
+        if (!configs.isEmpty()) {
+            List<VpnProfile> imported = new ArrayList<>();
+            List<VpnProfile> updatedNoReload = new ArrayList<>();
+            for (ProfileImporter.Result result : ProfileImporter.parseAll(configs)) {
+                int i = result.index;
+                if (!result.isSuccess()) {
+                    VpnStatus.logException("Error during import of managed profile", result.error);
+                    continue;
+                }
+                VpnProfile oldProfile = oldProfiles.get(i);
+                try {
+                    setupManagedProfile(result.profile, configs.get(i), uuidAndNames.get(i)[0],
+                            uuidAndNames.get(i)[1], oldProfile);
+                } catch (IllegalArgumentException e) {
+                    VpnStatus.logException("Error during import of managed profile", e);
+                    continue;
+                }
+
+                if (oldProfile == null) {
+                    imported.add(result.profile);
+                    continue;
+                }
+
+                // Only bump the version (and thereby make the service reload) if something
+                // relevant for the connection changed
+                ProfileDiff diff = ProfileDiff.apply(oldProfile, result.profile);
+                VpnStatus.logDebug(String.format(Locale.US, "Managed profile %s changed: %s (%s)",
+                        oldProfile.getUUIDString(), diff.getChangedFields(),
+                        diff.needsReconnect() ? "reconnect needed" : "no reconnect needed"));
+                if (diff.needsReconnect())
+                    imported.add(diff.getMerged());
+                else
+                    updatedNoReload.add(diff.getMerged());
+            }
+            // The add method will replace any older profiles with the same UUID
+            pm.addProfiles(c, imported);
+            pm.addProfiles(c, updatedNoReload, false);
         }
 
         Vector<VpnProfile> profilesToRemove = new Vector<>();
         // get List of all managed profiles
-        for (VpnProfile vp: pm.getProfiles())
+        for (ProfileIndex.Entry entry: pm.getProfileIndex())
         {
-            if (PROFILE_CREATOR.equals(vp.mProfileCreator)) {
-                if (!provisionedUuids.contains(vp.getUUIDString()))
-                    profilesToRemove.add(vp);
+            if (PROFILE_CREATOR.equals(entry.creator)) {
+                if (!provisionedUuids.contains(entry.uuid)) {
+                    VpnProfile vp = ProfileManager.get(c, entry.uuid);
+                    if (vp != null)
+                        profilesToRemove.add(vp);
+                }
             }
         }
         for (VpnProfile vp: profilesToRemove) {
             VpnStatus.logInfo("Remove with uuid: %s and name: %s since it is no longer in the list of managed profiles");
-            pm.removeProfile(c, vp);
         }
+        pm.removeProfiles(c, profilesToRemove);
 
     }
 
@@ -169,35 +218,19 @@ public class AppRestrictions {
         return config;
     };
     
-    private void addProfile(Context c, String config, String uuid, String name, VpnProfile vpnProfile) {
-        config  = prepare(config);
-        ConfigParser cp = new ConfigParser();
-        try {
-            cp.parseConfig(new StringReader(config));
-            VpnProfile vp = cp.convertProfile();
-            vp.mProfileCreator = PROFILE_CREATOR;
-
-            // We don't want provisioned profiles to be editable
-            vp.mUserEditable = false;
-
-            vp.mName = name;
-            vp.setUUID(UUID.fromString(uuid));
-            vp.importedProfileHash = hashConfig(config);
+    private void setupManagedProfile(VpnProfile vp, String config, String uuid, String name, VpnProfile vpnProfile) {
+        vp.mProfileCreator = PROFILE_CREATOR;
 
-            ProfileManager pm = ProfileManager.getInstance(c);
+        // We don't want provisioned profiles to be editable
+        vp.mUserEditable = false;
 
-            if (vpnProfile != null) {
-                vp.mVersion = vpnProfile.mVersion + 1;
-                vp.mAlias = vpnProfile.mAlias;
-            }
-
-            // The add method will replace any older profiles with the same UUID
-            pm.addProfile(vp);
-            pm.saveProfile(c, vp);
-            pm.saveProfileList(c);
+        vp.mName = name;
+        vp.setUUID(UUID.fromString(uuid));
+        vp.importedProfileHash = hashConfig(config);
 
-        } catch (ConfigParser.ConfigParseError | IOException | IllegalArgumentException e) {
-            VpnStatus.logException("Error during import of managed profile", e);
+        if (vpnProfile != null) {
+            vp.mVersion = vpnProfile.mVersion + 1;
+            vp.mAlias = vpnProfile.mAlias;
         }
     }
 
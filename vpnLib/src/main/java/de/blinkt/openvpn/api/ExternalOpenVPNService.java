@@ -20,6 +20,7 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.VpnService;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
@@ -30,6 +31,8 @@ import android.os.RemoteException;
 import java.io.IOException;
 import java.io.StringReader;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -37,10 +40,14 @@ import de.blinkt.openvpn.R;
 import de.blinkt.openvpn.VpnProfile;
 import de.blinkt.openvpn.core.ConfigParser;
 import de.blinkt.openvpn.core.ConfigParser.ConfigParseError;
+import de.blinkt.openvpn.core.ConnectTimeline;
 import de.blinkt.openvpn.core.ConnectionStatus;
 import de.blinkt.openvpn.core.IOpenVPNServiceInternal;
 import de.blinkt.openvpn.core.OpenVPNService;
+import de.blinkt.openvpn.core.ProfileImporter;
+import de.blinkt.openvpn.core.ProfileIndex;
 import de.blinkt.openvpn.core.ProfileManager;
+import de.blinkt.openvpn.core.ProfileParseCache;
 import de.blinkt.openvpn.core.VPNLaunchHelper;
 import de.blinkt.openvpn.core.VpnStatus;
 import de.blinkt.openvpn.core.VpnStatus.StateListener;
@@ -120,10 +127,8 @@ public class ExternalOpenVPNService extends Service implements StateListener {
 
             List<APIVpnProfile> profiles = new LinkedList<>();
 
-            for (VpnProfile vp : pm.getProfiles()) {
-                if (!vp.profileDeleted)
-                    profiles.add(new APIVpnProfile(vp.getUUIDString(), vp.mName, vp.mUserEditable, vp.mProfileCreator));
-            }
+            for (ProfileIndex.Entry entry : pm.getProfileIndex())
+                profiles.add(new APIVpnProfile(entry.uuid, entry.name, entry.userEditable, entry.creator));
 
             return profiles;
         }
@@ -164,13 +169,12 @@ public class ExternalOpenVPNService extends Service implements StateListener {
         public void startVPN(String inlineConfig) throws RemoteException {
             String callingApp = mExtAppDb.checkOpenVPNPermission(getPackageManager());
 
-            ConfigParser cp = new ConfigParser();
             try {
-                cp.parseConfig(new StringReader(inlineConfig));
-                VpnProfile vp = cp.convertProfile();
+                ProfileParseCache.ParsedProfile parsed = ProfileParseCache.get(getApplicationContext(), inlineConfig);
+                VpnProfile vp = parsed.profile;
                 vp.mName = "Remote APP VPN";
-                if (vp.checkProfile(getApplicationContext()) != R.string.no_error_found)
-                    throw new RemoteException(getString(vp.checkProfile(getApplicationContext())));
+                if (parsed.checkResult != R.string.no_error_found)
+                    throw new RemoteException(getString(parsed.checkResult));
 
                 vp.mProfileCreator = callingApp;
 
@@ -220,6 +224,47 @@ public class ExternalOpenVPNService extends Service implements StateListener {
             }
         }
 
+        @Override
+        public List<APIVpnProfile> addNewVPNProfiles(List<String> names, boolean userEditable, List<String> configs) throws RemoteException {
+            String callingPackage = mExtAppDb.checkOpenVPNPermission(getPackageManager());
+            if (names == null || configs == null || names.size() != configs.size())
+                throw new RemoteException("names and configs must have the same size");
+
+            List<VpnProfile> parsed = new ArrayList<>(configs.size());
+            for (ProfileImporter.Result result : ProfileImporter.parseAll(configs)) {
+                if (!result.isSuccess()) {
+                    VpnStatus.logException(result.error);
+                    parsed.add(null);
+                    continue;
+                }
+                VpnProfile vp = result.profile;
+                vp.mName = names.get(result.index);
+                vp.mProfileCreator = callingPackage;
+                vp.mUserEditable = userEditable;
+                parsed.add(vp);
+            }
+
+            List<VpnProfile> toAdd = new ArrayList<>(parsed.size());
+            for (VpnProfile vp : parsed)
+                if (vp != null)
+                    toAdd.add(vp);
+            ProfileManager pm = ProfileManager.getInstance(getBaseContext());
+            pm.addProfiles(ExternalOpenVPNService.this, toAdd);
+
+            // Profiles that could not be written are not in the profile list
+            HashSet<String> stored = new HashSet<>();
+            for (ProfileIndex.Entry entry : pm.getProfileIndex())
+                stored.add(entry.uuid);
+            List<APIVpnProfile> added = new ArrayList<>(parsed.size());
+            for (VpnProfile vp : parsed) {
+                if (vp != null && stored.contains(vp.getUUIDString()))
+                    added.add(new APIVpnProfile(vp.getUUIDString(), vp.mName, vp.mUserEditable, vp.mProfileCreator));
+                else
+                    added.add(null);
+            }
+            return added;
+        }
+
         @Override
         public void removeProfile(String profileUUID) throws RemoteException {
             mExtAppDb.checkOpenVPNPermission(getPackageManager());
@@ -228,6 +273,19 @@ public class ExternalOpenVPNService extends Service implements StateListener {
             pm.removeProfile(ExternalOpenVPNService.this, vp);
         }
 
+        @Override
+        public void removeProfiles(List<String> profileUUIDs) throws RemoteException {
+            mExtAppDb.checkOpenVPNPermission(getPackageManager());
+            ProfileManager pm = ProfileManager.getInstance(getBaseContext());
+            List<VpnProfile> profiles = new ArrayList<>();
+            for (String uuid : profileUUIDs) {
+                VpnProfile vp = ProfileManager.get(getBaseContext(), uuid);
+                if (vp != null)
+                    profiles.add(vp);
+            }
+            pm.removeProfiles(ExternalOpenVPNService.this, profiles);
+        }
+
         @Override
         public boolean protectSocket(ParcelFileDescriptor pfd) throws RemoteException {
             mExtAppDb.checkOpenVPNPermission(getPackageManager());
@@ -306,6 +364,12 @@ public class ExternalOpenVPNService extends Service implements StateListener {
                 mService.userPause(false);
 
         }
+
+        @Override
+        public Bundle getConnectTimings(String profileUUID) throws RemoteException {
+            mExtAppDb.checkOpenVPNPermission(getPackageManager());
+            return ConnectTimeline.getTimings(profileUUID);
+        }
     };
 
 
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import de.blinkt.openvpn.R;
+import de.blinkt.openvpn.VpnProfile;
+
+/**
+ * The installed packages of {@link VpnProfile#mAllowedAppsVpn}. The list is validated once
+ * per profile version and kept until a package is installed or removed, so reopening the
+ * tun device does not check every package of a long list again.
+ */
+class AllowedApps extends BroadcastReceiver {
+    // Longer lists are checked against one query of all installed packages instead of
+    // one query per package
+    private static final int BULK_CHECK_MIN = 32;
+
+    private static AllowedApps mReceiver;
+    private static String mKey;
+    private static List<String> mPackages;
+
+    /**
+     * @return the installed packages of the profile, sorted. Packages that are no longer
+     * installed are removed from the profile. The same list instance is returned as long as
+     * it is valid.
+     */
+    static synchronized List<String> getValidatedPackages(Context context, VpnProfile profile) {
+        register(context);
+        if (getKey(profile).equals(mKey))
+            return mPackages;
+
+        PackageManager pm = context.getPackageManager();
+        HashSet<String> installed = null;
+        if (profile.mAllowedAppsVpn.size() >= BULK_CHECK_MIN) {
+            installed = new HashSet<>();
+            for (ApplicationInfo app : pm.getInstalledApplications(0))
+                installed.add(app.packageName);
+        }
+
+        List<String> packages = new ArrayList<>(profile.mAllowedAppsVpn.size());
+        for (String pkg : new TreeSet<>(profile.mAllowedAppsVpn)) {
+            if (installed != null ? installed.contains(pkg) : isInstalled(pm, pkg)) {
+                packages.add(pkg);
+            } else {
+                profile.mAllowedAppsVpn.remove(pkg);
+                VpnStatus.logInfo(R.string.app_no_longer_exists, pkg);
+            }
+        }
+
+        mKey = getKey(profile);
+        mPackages = Collections.unmodifiableList(packages);
+        return mPackages;
+    }
+
+    private static String getKey(VpnProfile profile) {
+        return profile.getUUIDString() + "/" + profile.mVersion + "/"
+                + profile.mAllowedAppsVpn.size() + "/" + profile.mAllowedAppsVpn.hashCode();
+    }
+
+    static synchronized void invalidate() {
+        mKey = null;
+        mPackages = null;
+    }
+
+    private static boolean isInstalled(PackageManager pm, String pkg) {
+        try {
+            pm.getApplicationInfo(pkg, 0);
+            return true;
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static void register(Context context) {
+        if (mReceiver != null)
+            return;
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        mReceiver = new AllowedApps();
+        context.getApplicationContext().registerReceiver(mReceiver, filter);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        invalidate();
+    }
+}
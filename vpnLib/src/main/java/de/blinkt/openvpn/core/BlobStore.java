@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+
+import de.blinkt.openvpn.VpnProfile;
+
+/**
+ * Content addressed store for the embedded files (CA, certificates, keys, ...) of stored
+ * profiles. {@link ProfileCodec} replaces the data in the written profile by
+ * {@link VpnProfile#BLOB_TAG} followed by the SHA-256 of the content and resolves it again
+ * when reading, profiles in memory always hold the data itself. The save path of
+ * {@link ProfileManager} stores the blobs before it writes the profile, encoding a
+ * profile never writes to the store. Identical content (e.g.
+ * the CA of a provider shared by many profiles) is stored once on disk and held at most
+ * once in memory.
+ * <p>
+ * Blobs no stored profile refers to any more are deleted by {@link #sweepLater()}.
+ * <p>
+ * Profiles in memory are not loaded lazily: reading a profile resolves its blobs, loaded
+ * profiles with the same content share one string. Keeping references in live profiles
+ * would make every user of the embedded file fields resolve them. Schedules are not
+ * deduplicated either, {@link de.blinkt.openvpn.scheduling.VpnSchedule} keeps its whole
+ * config in the schedule list.
+ */
+public class BlobStore {
+    private static final String BLOB_DIR = "blobs";
+    private static final int MIN_BLOB_SIZE = 512;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    private static final int HASH_LENGTH = 64;
+
+    // A sweep waits a bit so a burst of deletes or saves is swept once
+    private static final long SWEEP_DELAY_MS = 5000;
+    // Blobs written or reused this recently are never swept, a profile referring to them
+    // may not be written yet
+    private static final long SWEEP_GRACE_MS = 60 * 1000;
+
+    private static Context mContext;
+    private static final HashMap<String, SoftReference<String>> mLoaded = new HashMap<>();
+    private static boolean mSweepScheduled;
+
+    public static synchronized void init(Context context) {
+        if (mContext != null)
+            return;
+        mContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        //noinspection ResultOfMethodCallIgnored
+        new File(mContext.getFilesDir(), BLOB_DIR).mkdirs();
+    }
+
+    public static boolean isReference(String data) {
+        return data != null && data.startsWith(VpnProfile.BLOB_TAG);
+    }
+
+    /**
+     * Stores data in the blob store if {@link #getReference} replaces it by a reference.
+     * The blob is on disk when this returns.
+     *
+     * @throws IOException if the blob could not be written, the profile referring to it
+     *                     must not be written either
+     */
+    static void storeIfEmbedded(String data) throws IOException {
+        if (!isStoredAsBlob(data))
+            return;
+
+        String hash = sha256(data);
+        synchronized (BlobStore.class) {
+            if (mContext == null || hash == null)
+                return;
+
+            File dir = new File(mContext.getFilesDir(), BLOB_DIR);
+            File blob = new File(dir, hash);
+            if (blob.exists()) {
+                // Protects it from a sweep that has not seen the profile referring to it
+                //noinspection ResultOfMethodCallIgnored
+                blob.setLastModified(System.currentTimeMillis());
+            } else {
+                ProfileWriter.writeAtomic(dir, hash, data.getBytes(UTF8));
+            }
+
+            mLoaded.put(hash, new SoftReference<>(data));
+        }
+    }
+
+    /**
+     * @return the reference for embedded file data, file names, small data and all data
+     * before {@link #init} unchanged. Only computes the reference, the blob has to be
+     * stored by {@link #storeIfEmbedded} first.
+     */
+    static String getReference(String data) {
+        if (!isStoredAsBlob(data))
+            return data;
+
+        String hash = sha256(data);
+        synchronized (BlobStore.class) {
+            if (mContext == null || hash == null)
+                return data;
+        }
+        return VpnProfile.BLOB_TAG + hash;
+    }
+
+    // Do not move file names into the store, only the inline data. Smaller values are
+    // kept in place, a reference would not save anything
+    private static boolean isStoredAsBlob(String data) {
+        return data != null && data.length() >= MIN_BLOB_SIZE
+                && (data.startsWith(VpnProfile.INLINE_TAG) || data.startsWith(VpnProfile.DISPLAYNAME_TAG));
+    }
+
+    /**
+     * @return the content a reference points to or data itself if it is not a reference.
+     * null if the referenced blob is missing
+     */
+    public static String resolve(String data) {
+        if (!isReference(data))
+            return data;
+
+        String hash = data.substring(VpnProfile.BLOB_TAG.length());
+        synchronized (BlobStore.class) {
+            SoftReference<String> ref = mLoaded.get(hash);
+            String value = ref == null ? null : ref.get();
+            if (value != null)
+                return value;
+
+            value = load(hash);
+            if (value != null)
+                mLoaded.put(hash, new SoftReference<>(value));
+            return value;
+        }
+    }
+
+    private static String load(String hash) {
+        if (mContext == null) {
+            VpnStatus.logError("Blob store used before initialisation");
+            return null;
+        }
+        try {
+            return new String(readFile(new File(new File(mContext.getFilesDir(), BLOB_DIR), hash)), UTF8);
+        } catch (IOException e) {
+            VpnStatus.logException("Loading embedded file " + hash, e);
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the blobs no stored profile refers to, soon and in the background. Called
+     * whenever a profile is saved or deleted, so removed keys do not stay on disk.
+     */
+    static void sweepLater() {
+        synchronized (BlobStore.class) {
+            if (mContext == null || mSweepScheduled)
+                return;
+            mSweepScheduled = true;
+        }
+        Thread sweeper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(SWEEP_DELAY_MS);
+                    ProfileWriter.flush();
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    synchronized (BlobStore.class) {
+                        mSweepScheduled = false;
+                    }
+                }
+                sweep();
+            }
+        }, "OpenVPNBlobSweep");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    private static void sweep() {
+        long start = System.currentTimeMillis();
+        File filesDir = mContext.getFilesDir();
+        File[] profiles = filesDir.listFiles();
+        if (profiles == null)
+            return;
+
+        // References are ASCII, so a byte search over the stored profiles finds all of them
+        HashSet<String> referenced = new HashSet<>();
+        for (File profile : profiles) {
+            if (!profile.getName().endsWith(ProfileCodec.FILE_EXTENSION))
+                continue;
+            try {
+                String content = new String(readFile(profile), LATIN1);
+                int pos = 0;
+                while ((pos = content.indexOf(VpnProfile.BLOB_TAG, pos)) >= 0) {
+                    pos += VpnProfile.BLOB_TAG.length();
+                    if (pos + HASH_LENGTH <= content.length())
+                        referenced.add(content.substring(pos, pos + HASH_LENGTH));
+                }
+            } catch (IOException e) {
+                // A profile we cannot read may still refer to anything
+                VpnStatus.logException("Reading " + profile.getName() + " for unused embedded files", e);
+                return;
+            }
+        }
+
+        int deleted = 0;
+        synchronized (BlobStore.class) {
+            File[] blobs = new File(filesDir, BLOB_DIR).listFiles();
+            if (blobs == null)
+                return;
+            for (File blob : blobs) {
+                String hash = blob.getName();
+                if (referenced.contains(hash) || blob.lastModified() > start - SWEEP_GRACE_MS)
+                    continue;
+                if (blob.delete()) {
+                    mLoaded.remove(hash);
+                    deleted++;
+                }
+            }
+        }
+        if (deleted > 0)
+            VpnStatus.logDebug(String.format(Locale.US, "Deleted %d unused embedded files", deleted));
+    }
+
+    private static byte[] readFile(File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        try {
+            byte[] data = new byte[(int) f.length()];
+            int pos = 0;
+            while (pos < data.length) {
+                int read = in.read(data, pos, data.length - pos);
+                if (read < 0)
+                    break;
+                pos += read;
+            }
+            if (pos < data.length) {
+                byte[] shorter = new byte[pos];
+                System.arraycopy(data, 0, shorter, 0, pos);
+                return shorter;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(value.getBytes(UTF8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            VpnStatus.logException(e);
+            return null;
+        }
+    }
+}
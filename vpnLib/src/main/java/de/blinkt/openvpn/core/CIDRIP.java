@@ -5,8 +5,6 @@
 
 package de.blinkt.openvpn.core;
 
-import java.util.Locale;
-
 class CIDRIP {
     String mIp;
     int len;
@@ -19,25 +17,8 @@ class CIDRIP {
     }
 
     public static int calculateLenFromMask(String mask) {
-        long netmask = getInt(mask);
-
-        // Add 33. bit to ensure the loop terminates
-        netmask += 1l << 32;
-
-        int lenZeros = 0;
-        while ((netmask & 0x1) == 0) {
-            lenZeros++;
-            netmask = netmask >> 1;
-        }
-        int len;
-        // Check if rest of netmask is only 1s
-        if (netmask != (0x1ffffffffl >> lenZeros)) {
-            // Asume no CIDR, set /32
-            len = 32;
-        } else {
-            len = 32 - lenZeros;
-        }
-        return len;
+        // Asume no CIDR, set /32 if the mask is not only 1s followed by 0s
+        return IpCodec.maskToPrefixLength(getInt(mask));
     }
 
     public CIDRIP(String address, int prefix_length) {
@@ -47,15 +28,15 @@ class CIDRIP {
 
     @Override
     public String toString() {
-        return String.format(Locale.ENGLISH, "%s/%d", mIp, len);
+        return mIp + "/" + len;
     }
 
     public boolean normalise() {
         long ip = getInt(mIp);
 
-        long newip = ip & (0xffffffffL << (32 - len));
+        long newip = ip & IpCodec.prefixLengthToMask(len);
         if (newip != ip) {
-            mIp = String.format(Locale.US,"%d.%d.%d.%d", (newip & 0xff000000) >> 24, (newip & 0xff0000) >> 16, (newip & 0xff00) >> 8, newip & 0xff);
+            mIp = IpCodec.formatIPv4(newip);
             return true;
         } else {
             return false;
@@ -64,15 +45,7 @@ class CIDRIP {
     }
 
     static long getInt(String ipaddr) {
-        String[] ipt = ipaddr.split("\\.");
-        long ip = 0;
-
-        ip += Long.parseLong(ipt[0]) << 24;
-        ip += Integer.parseInt(ipt[1]) << 16;
-        ip += Integer.parseInt(ipt[2]) << 8;
-        ip += Integer.parseInt(ipt[3]);
-
-        return ip;
+        return IpCodec.parseIPv4(ipaddr);
     }
 
     public long getInt() {
@@ -129,6 +129,8 @@ public class ConfigParser {
     private HashMap<String, Vector<Vector<String>>> options = new HashMap<>();
     private HashMap<String, Vector<String>> meta = new HashMap<String, Vector<String>>();
     private String auth_user_pass_file;
+    // Reused for every token and inline block so parsing stays linear in the size of the file
+    private final StringBuilder mTokenBuffer = new StringBuilder(256);
 
     static public void useEmbbedUserAuth(VpnProfile np, String inlinedata) {
         String data = VpnProfile.getEmbeddedContent(inlinedata);
@@ -219,7 +221,9 @@ public class ConfigParser {
         // CHeck for <foo>
         if (arg0.startsWith("<") && arg0.endsWith(">")) {
             String argname = arg0.substring(1, arg0.length() - 1);
-            String inlinefile = VpnProfile.INLINE_TAG;
+            StringBuilder inlinefile = mTokenBuffer;
+            inlinefile.setLength(0);
+            inlinefile.append(VpnProfile.INLINE_TAG);
 
             String endtag = String.format("</%s>", argname);
             do {
@@ -230,17 +234,17 @@ public class ConfigParser {
                 if (line.trim().equals(endtag))
                     break;
                 else {
-                    inlinefile += line;
-                    inlinefile += "\n";
+                    inlinefile.append(line).append('\n');
                 }
             } while (true);
 
-            if (inlinefile.endsWith("\n"))
-                inlinefile = inlinefile.substring(0, inlinefile.length() - 1);
+            int len = inlinefile.length();
+            if (len > VpnProfile.INLINE_TAG.length() && inlinefile.charAt(len - 1) == '\n')
+                inlinefile.setLength(len - 1);
 
             args.clear();
             args.add(argname);
-            args.add(inlinefile);
+            args.add(inlinefile.toString());
         }
 
     }
@@ -269,12 +273,14 @@ public class ConfigParser {
         char out = 0;
 
         int pos = 0;
-        String currentarg = "";
+        int len = line.length();
+        StringBuilder currentarg = mTokenBuffer;
+        currentarg.setLength(0);
 
         do {
             // Emulate the c parsing ...
             char in;
-            if (pos < line.length())
+            if (pos < len)
                 in = line.charAt(pos);
             else
                 in = '\0';
@@ -315,8 +321,8 @@ public class ConfigParser {
                 if (state == linestate.done) {
                     /* ASSERT (parm_len > 0); */
                     state = linestate.initial;
-                    parameters.add(currentarg);
-                    currentarg = "";
+                    parameters.add(currentarg.toString());
+                    currentarg.setLength(0);
                     out = 0;
                 }
 
@@ -330,9 +336,9 @@ public class ConfigParser {
 
             /* store parameter character */
             if (out != 0) {
-                currentarg += out;
+                currentarg.append(out);
             }
-        } while (pos++ < line.length());
+        } while (pos++ < len);
 
         return parameters;
     }
@@ -364,8 +370,8 @@ public class ConfigParser {
 
         Vector<Vector<String>> routes = getAllOption("route", 1, 4);
         if (routes != null) {
-            String routeopt = "";
-            String routeExcluded = "";
+            StringBuilder routeopt = new StringBuilder();
+            StringBuilder routeExcluded = new StringBuilder();
             for (Vector<String> route : routes) {
                 String netmask = "255.255.255.255";
                 String gateway = "vpn_gateway";
@@ -379,9 +385,9 @@ public class ConfigParser {
                 try {
                     CIDRIP cidr = new CIDRIP(net, netmask);
                     if (gateway.equals("net_gateway"))
-                        routeExcluded += cidr.toString() + " ";
+                        routeExcluded.append(cidr.mIp).append('/').append(cidr.len).append(' ');
                     else
-                        routeopt += cidr.toString() + " ";
+                        routeopt.append(cidr.mIp).append('/').append(cidr.len).append(' ');
                 } catch (ArrayIndexOutOfBoundsException aioob) {
                     throw new ConfigParseError("Could not parse netmask of route " + netmask);
                 } catch (NumberFormatException ne) {
@@ -391,18 +397,18 @@ public class ConfigParser {
                 }
 
             }
-            np.mCustomRoutes = routeopt;
-            np.mExcludedRoutes = routeExcluded;
+            np.mCustomRoutes = routeopt.toString();
+            np.mExcludedRoutes = routeExcluded.toString();
         }
 
         Vector<Vector<String>> routesV6 = getAllOption("route-ipv6", 1, 4);
         if (routesV6 != null) {
-            String customIPv6Routes = "";
+            StringBuilder customIPv6Routes = new StringBuilder();
             for (Vector<String> route : routesV6) {
-                customIPv6Routes += route.get(1) + " ";
+                customIPv6Routes.append(route.get(1)).append(' ');
             }
 
-            np.mCustomRoutesv6 = customIPv6Routes;
+            np.mCustomRoutesv6 = customIPv6Routes.toString();
         }
 
         Vector<String> routeNoPull = getOption("route-nopull", 0, 0);
@@ -960,21 +966,21 @@ public class ConfigParser {
 
     //! Generate options for custom options
     private String getOptionStrings(Vector<Vector<String>> option) {
-        String custom = "";
+        StringBuilder custom = new StringBuilder();
         for (Vector<String> optionsline : option) {
             if (!ignoreThisOption(optionsline)) {
                 // Check if option had been inlined and inline again
                 if (optionsline.size() == 2 &&
                         "extra-certs".equals(optionsline.get(0))) {
-                    custom += VpnProfile.insertFileData(optionsline.get(0), optionsline.get(1));
+                    custom.append(VpnProfile.insertFileData(optionsline.get(0), optionsline.get(1)));
                 } else {
                     for (String arg : optionsline)
-                        custom += VpnProfile.openVpnEscape(arg) + " ";
-                    custom += "\n";
+                        custom.append(VpnProfile.openVpnEscape(arg)).append(' ');
+                    custom.append('\n');
                 }
             }
         }
-        return custom;
+        return custom.toString();
     }
 
     private void fixup(VpnProfile np) {
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.os.Bundle;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records where the time of establishing a connection goes. A session starts when the
+ * connection is started (or OpenVPN reconnects) and ends when it is connected. Every state
+ * change and every phase of opening the tun device is a mark; the time since the previous
+ * mark is added to the histogram of the mark, so a phase is named after the event ending it.
+ * <p>
+ * Histograms are kept for all profiles and per profile and only cover the last
+ * {@link #WINDOW} samples of a phase, so they follow changes of the network.
+ */
+public class ConnectTimeline {
+    // Upper bounds of the histogram buckets, the last bucket takes everything above
+    public static final long[] BUCKET_BOUNDS_MS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+    // Phase covering the whole session from start to connected
+    public static final String PHASE_TOTAL = "TOTAL";
+
+    // Marks of OpenVPNService.startOpenVPN: launch steps started, previous connection
+    // stopped
+    static final String PREPARED = "PREPARED";
+    static final String OLD_PROCESS_STOPPED = "OLD_PROCESS_STOPPED";
+    // Marks for the phases of OpenVPNService.openTun
+    static final String TUN_START = "TUN_START";
+    static final String TUN_ROUTES = "TUN_ROUTES";
+    static final String TUN_APPS = "TUN_APPS";
+    static final String TUN_ESTABLISH = "TUN_ESTABLISH";
+
+    private static final int WINDOW = 50;
+    private static final int MAX_PROFILES = 32;
+    private static final String ALL_PROFILES = "";
+
+    /**
+     * Latencies of the last {@link #WINDOW} samples of a phase
+     */
+    static class Histogram {
+        private final long[] mSamples = new long[WINDOW];
+        private int mCount;
+        private int mNext;
+
+        void add(long ms) {
+            mSamples[mNext] = ms;
+            mNext = (mNext + 1) % WINDOW;
+            if (mCount < WINDOW)
+                mCount++;
+        }
+
+        long[] getBuckets() {
+            long[] buckets = new long[BUCKET_BOUNDS_MS.length + 1];
+            for (int i = 0; i < mCount; i++) {
+                int b = 0;
+                while (b < BUCKET_BOUNDS_MS.length && mSamples[i] > BUCKET_BOUNDS_MS[b])
+                    b++;
+                buckets[b]++;
+            }
+            return buckets;
+        }
+
+        /**
+         * @param p percentile between 0 and 100
+         */
+        long getPercentile(int p) {
+            if (mCount == 0)
+                return 0;
+            long[] sorted = new long[mCount];
+            System.arraycopy(mSamples, 0, sorted, 0, mCount);
+            Arrays.sort(sorted);
+            return sorted[Math.min(mCount - 1, (mCount * p) / 100)];
+        }
+
+        Bundle toBundle() {
+            Bundle b = new Bundle();
+            b.putInt("count", mCount);
+            b.putLong("p50_ms", getPercentile(50));
+            b.putLong("p90_ms", getPercentile(90));
+            b.putLong("max_ms", getPercentile(100));
+            b.putLongArray("buckets", getBuckets());
+            return b;
+        }
+    }
+
+    // Profile UUID (ALL_PROFILES for the sum of all) -> phase -> histogram, least recently
+    // connected profiles are dropped first
+    private static final LinkedHashMap<String, LinkedHashMap<String, Histogram>> mHistograms =
+            new LinkedHashMap<String, LinkedHashMap<String, Histogram>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, LinkedHashMap<String, Histogram>> eldest) {
+                    return size() > MAX_PROFILES + 1;
+                }
+            };
+
+    private static String mProfile;
+    private static String mLastProfile;
+    private static long mStart;
+    private static long mLastMark;
+    private static final ArrayList<String> mTimeline = new ArrayList<>();
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Starts a new session, an unfinished session is discarded
+     */
+    public static synchronized void startSession(String profileUuid) {
+        mProfile = profileUuid;
+        mLastProfile = profileUuid;
+        mStart = mLastMark = now();
+        mTimeline.clear();
+    }
+
+    /**
+     * Marks the end of a phase of the current session
+     */
+    static synchronized void mark(String phase) {
+        if (mProfile == null)
+            return;
+        long now = now();
+        record(phase, now - mLastMark);
+        mTimeline.add(phase + " +" + (now - mLastMark) + "ms");
+        mLastMark = now;
+    }
+
+    /**
+     * Adds the duration of a step that ran concurrently to others. Unlike {@link #mark}
+     * this does not end a phase of the timeline.
+     */
+    static synchronized void addSample(String phase, long ms) {
+        if (mProfile != null)
+            record(phase, ms);
+    }
+
+    /**
+     * Called by {@link VpnStatus} for every state change
+     */
+    static void stateChanged(String state, ConnectionStatus level) {
+        String timeline = null;
+        synchronized (ConnectTimeline.class) {
+            // OpenVPN reconnecting by itself starts a new session for the same profile
+            if (mProfile == null && "RECONNECTING".equals(state) && mLastProfile != null)
+                startSession(mLastProfile);
+            // The process of the previous connection may report its end after the new
+            // session started, so not connected states neither count nor end a session
+            if (mProfile == null || level == ConnectionStatus.LEVEL_NOTCONNECTED)
+                return;
+
+            mark(state);
+            if (level == ConnectionStatus.LEVEL_CONNECTED) {
+                long total = mLastMark - mStart;
+                record(PHASE_TOTAL, total);
+                timeline = "Connect timeline (" + total + "ms): " + TextUtils.join(", ", mTimeline);
+                mProfile = null;
+            } else if (level == ConnectionStatus.LEVEL_AUTH_FAILED) {
+                mProfile = null;
+            }
+        }
+        // Logged outside the lock, VpnStatus calls us with its own lock held
+        if (timeline != null)
+            VpnStatus.logDebug(timeline);
+    }
+
+    private static void record(String phase, long ms) {
+        getHistogram(ALL_PROFILES, phase).add(ms);
+        getHistogram(mProfile, phase).add(ms);
+    }
+
+    private static Histogram getHistogram(String profile, String phase) {
+        LinkedHashMap<String, Histogram> phases = mHistograms.get(profile);
+        if (phases == null) {
+            phases = new LinkedHashMap<>();
+            mHistograms.put(profile, phases);
+        }
+        Histogram h = phases.get(phase);
+        if (h == null) {
+            h = new Histogram();
+            phases.put(phase, h);
+        }
+        return h;
+    }
+
+    /**
+     * Returns the histograms of a profile, or of all profiles if profileUuid is null. The
+     * bundle has the bucket bounds as "bucket_bounds_ms", the phase names in the order they
+     * were first seen as "phases" and a bundle per phase with "count", "p50_ms", "p90_ms",
+     * "max_ms" and the bucket counts as "buckets".
+     */
+    public static synchronized Bundle getTimings(String profileUuid) {
+        Bundle result = new Bundle();
+        result.putLongArray("bucket_bounds_ms", BUCKET_BOUNDS_MS);
+
+        // get() would reorder the profiles, this is not a use
+        LinkedHashMap<String, Histogram> phases = null;
+        String key = profileUuid == null ? ALL_PROFILES : profileUuid;
+        for (Map.Entry<String, LinkedHashMap<String, Histogram>> e : mHistograms.entrySet()) {
+            if (e.getKey().equals(key))
+                phases = e.getValue();
+        }
+
+        ArrayList<String> names = new ArrayList<>();
+        if (phases != null) {
+            for (Map.Entry<String, Histogram> e : phases.entrySet()) {
+                names.add(e.getKey());
+                result.putBundle(e.getKey(), e.getValue().toBundle());
+            }
+        }
+        result.putStringArray("phases", names.toArray(new String[0]));
+        return result;
+    }
+}
@@ -18,7 +18,6 @@ import android.preference.PreferenceManager;
 import de.blinkt.openvpn.R;
 import de.blinkt.openvpn.core.VpnStatus.ByteCountListener;
 
-import java.util.LinkedList;
 import java.util.Objects;
 import java.util.StringTokenizer;
 
@@ -29,10 +28,16 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
     private int lastNetwork = -1;
     private OpenVPNManagement mManagement;
 
-    // Window time in s
-    private final int TRAFFIC_WINDOW = 60;
-    // Data traffic limit in bytes
-    private final long TRAFFIC_LIMIT = 64 * 1024;
+    // Default window time in s
+    public static final int TRAFFIC_WINDOW = 60;
+    // Default data traffic limit in bytes
+    public static final long TRAFFIC_LIMIT = 64 * 1024;
+    // Resolution of the traffic window, matches the byte count interval for the default window
+    private static final int TRAFFIC_WINDOW_BUCKETS = 30;
+
+    private final int mTrafficWindowSeconds;
+    private final long mTrafficLimit;
+    private final TrafficWindow mTrafficWindow;
 
     // Time to wait after network disconnect to pause the VPN
     private final int DISCONNECT_WAIT = 20;
@@ -71,39 +76,18 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
         DISCONNECTED
     }
 
-    private static class Datapoint {
-        private Datapoint(long t, long d) {
-            timestamp = t;
-            data = d;
-        }
-
-        long timestamp;
-        long data;
-    }
-
-    private LinkedList<Datapoint> trafficdata = new LinkedList<>();
-
-
     @Override
     public void updateByteCount(long in, long out, long diffIn, long diffOut) {
         if (screen != connectState.PENDINGDISCONNECT)
             return;
 
-        long total = diffIn + diffOut;
-        trafficdata.add(new Datapoint(System.currentTimeMillis(), total));
+        long now = System.currentTimeMillis();
+        mTrafficWindow.add(now, diffIn + diffOut);
 
-        while (trafficdata.getFirst().timestamp <= (System.currentTimeMillis() - TRAFFIC_WINDOW * 1000)) {
-            trafficdata.removeFirst();
-        }
-
-        long windowtraffic = 0;
-        for (Datapoint dp : trafficdata)
-            windowtraffic += dp.data;
-
-        if (windowtraffic < TRAFFIC_LIMIT) {
+        if (mTrafficWindow.isBelow(now, mTrafficLimit)) {
             screen = connectState.DISCONNECTED;
             VpnStatus.logInfo(R.string.screenoff_pause,
-                    "64 kB", TRAFFIC_WINDOW);
+                    (mTrafficLimit / 1024) + " kB", mTrafficWindowSeconds);
 
             mManagement.pause(getPauseReason());
         }
@@ -127,10 +111,23 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
     }
 
     public DeviceStateReceiver(OpenVPNManagement magnagement) {
+        this(magnagement, TRAFFIC_WINDOW, TRAFFIC_LIMIT);
+    }
+
+    /**
+     * @param trafficWindow window in s over which the traffic is summed up in screen off state
+     * @param trafficLimit  traffic in bytes below which the VPN is paused in screen off state
+     */
+    public DeviceStateReceiver(OpenVPNManagement magnagement, int trafficWindow, long trafficLimit) {
         super();
         mManagement = magnagement;
         mManagement.setPauseCallback(this);
         mDisconnectHandler = new Handler();
+
+        mTrafficWindowSeconds = trafficWindow > 0 ? trafficWindow : TRAFFIC_WINDOW;
+        mTrafficLimit = trafficLimit > 0 ? trafficLimit : TRAFFIC_LIMIT;
+        mTrafficWindow = new TrafficWindow(mTrafficWindowSeconds * 1000L,
+                Math.min(TRAFFIC_WINDOW_BUCKETS, mTrafficWindowSeconds));
     }
 
 
@@ -172,7 +169,9 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
 
 
     private void fillTrafficData() {
-        trafficdata.add(new Datapoint(System.currentTimeMillis(), TRAFFIC_LIMIT));
+        // Start with a full window so we do not pause before a complete window has passed
+        mTrafficWindow.clear();
+        mTrafficWindow.add(System.currentTimeMillis(), mTrafficLimit);
     }
 
     public static boolean equalsObj(Object a, Object b) {
@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.net.VpnService;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Resolves host names to their IPv4 and IPv6 addresses in parallel. Answers are cached
+ * in memory for their TTL, shared by all resolvers using the same DNS server.
+ * <p>
+ * With a DNS server set, A and AAAA queries are sent directly to it over a socket that is
+ * protected from the VPN. Otherwise the system resolver is used, which does not report
+ * TTLs, so its answers are kept for {@link #DEFAULT_TTL} seconds.
+ * <p>
+ * Expired answers stay cached for {@link #STALE_MS} as a fallback when the server does not
+ * answer. The cache holds at most {@link #MAX_CACHE} names, the least recently used are
+ * dropped first.
+ */
+class DomainResolver {
+    static final int DEFAULT_TTL = 300;
+    // Bounds for TTLs, avoids hammering the server and keeping addresses forever
+    private static final int MIN_TTL = 30;
+    private static final int MAX_TTL = 86400;
+    // Negative answers (NXDOMAIN, no records) are retried after this
+    private static final int NEGATIVE_TTL = 60;
+    static final long STALE_MS = 60 * 60 * 1000;
+    static final int MAX_CACHE = 1024;
+
+    static final int TYPE_A = 1;
+    static final int TYPE_AAAA = 28;
+    private static final int DNS_PORT = 53;
+    private static final int QUERY_TIMEOUT_MS = 2000;
+    private static final int QUERY_TRIES = 2;
+    private static final int MAX_THREADS = 4;
+
+    // Server and name -> answer, in access order
+    private static final LinkedHashMap<String, Addresses> mCache =
+            new LinkedHashMap<String, Addresses>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Addresses> eldest) {
+                    return size() > MAX_CACHE;
+                }
+            };
+
+    /**
+     * Addresses of a name. IPv4 addresses are unsigned ints in a long, IPv6 addresses
+     * stored as upper and lower 64 bit halves one after another.
+     */
+    static class Addresses {
+        static final long[] NONE = new long[0];
+
+        final long[] v4;
+        final long[] v6;
+        // elapsedRealtime style timestamp in ms, see now()
+        final long expires;
+
+        Addresses(long[] v4, long[] v6, long expires) {
+            this.v4 = v4;
+            this.v6 = v6;
+            this.expires = expires;
+        }
+
+        boolean isEmpty() {
+            return v4.length == 0 && v6.length == 0;
+        }
+
+        boolean sameAddresses(Addresses other) {
+            return Arrays.equals(v4, other.v4) && Arrays.equals(v6, other.v6);
+        }
+    }
+
+    private final InetAddress mServer;
+    private final int mPort;
+    private final String mServerKey;
+    private final VpnService mProtector;
+    private final ExecutorService mExecutor;
+    private final Random mRandom = new Random();
+
+    /**
+     * @param server    IP address of the DNS server or null/empty for the system resolver
+     * @param protector used to protect the query sockets from the VPN, may be null
+     * @throws UnknownHostException if server is not an IP address
+     */
+    DomainResolver(String server, VpnService protector) throws UnknownHostException {
+        this(server, DNS_PORT, protector);
+    }
+
+    DomainResolver(String server, int port, VpnService protector) throws UnknownHostException {
+        mPort = port;
+        if (server == null || server.trim().isEmpty()) {
+            mServer = null;
+            mServerKey = "";
+        } else {
+            server = server.trim();
+            // Only literals, never look up the DNS server itself
+            if (IpCodec.parseIPv4(server, 0, server.length()) < 0
+                    && !IpCodec.parseIPv6(server, 0, server.length(), new long[2]))
+                throw new UnknownHostException("DNS server is not an IP address: " + server);
+            mServer = InetAddress.getByName(server);
+            mServerKey = server;
+        }
+        mProtector = protector;
+        mExecutor = Executors.newFixedThreadPool(MAX_THREADS, r -> {
+            Thread t = new Thread(r, "DomainResolver");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Resolves all names, cached answers are used until they expire. Names that are not
+     * resolved within timeoutMs keep their expired answer if there is one and are left
+     * out otherwise.
+     */
+    Map<String, Addresses> resolve(Collection<String> names, long timeoutMs) {
+        HashMap<String, Addresses> result = new HashMap<>();
+        HashMap<String, Future<Addresses>> pending = new HashMap<>();
+        long now = now();
+
+        for (String name : names) {
+            Addresses cached = getCached(name);
+            if (cached != null && cached.expires > now)
+                result.put(name, cached);
+            else
+                pending.put(name, mExecutor.submit(() -> lookup(name)));
+        }
+
+        long deadline = now + timeoutMs;
+        for (Map.Entry<String, Future<Addresses>> e : pending.entrySet()) {
+            String name = e.getKey();
+            Addresses addresses = null;
+            try {
+                addresses = e.getValue().get(Math.max(0, deadline - now()), TimeUnit.MILLISECONDS);
+                putCached(name, addresses);
+            } catch (TimeoutException te) {
+                e.getValue().cancel(true);
+                VpnStatus.logInfo("Timeout resolving " + name);
+            } catch (ExecutionException ee) {
+                VpnStatus.logInfo("Error resolving " + name + ": " + ee.getCause().getLocalizedMessage());
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (addresses == null)
+                addresses = getCached(name);
+            if (addresses != null)
+                result.put(name, addresses);
+        }
+        return result;
+    }
+
+    Addresses getCached(String name) {
+        synchronized (mCache) {
+            return mCache.get(mServerKey + "|" + name);
+        }
+    }
+
+    /**
+     * Caches an answer and drops the answers that expired more than {@link #STALE_MS} ago
+     */
+    void putCached(String name, Addresses addresses) {
+        long stale = now() - STALE_MS;
+        synchronized (mCache) {
+            for (Iterator<Addresses> it = mCache.values().iterator(); it.hasNext(); ) {
+                if (it.next().expires < stale)
+                    it.remove();
+            }
+            mCache.put(mServerKey + "|" + name, addresses);
+        }
+    }
+
+    private Addresses lookup(String name) throws IOException {
+        if (mServer == null)
+            return lookupSystem(name);
+
+        long[] ttl = {MAX_TTL};
+        long[] v4 = query(name, TYPE_A, ttl);
+        long[] v6 = query(name, TYPE_AAAA, ttl);
+        int seconds = (int) ttl[0];
+        if (v4.length == 0 && v6.length == 0)
+            seconds = NEGATIVE_TTL;
+        return new Addresses(v4, v6, now() + Math.max(MIN_TTL, seconds) * 1000L);
+    }
+
+    private static Addresses lookupSystem(String name) {
+        long[] v4 = new long[0];
+        long[] v6 = new long[0];
+        try {
+            for (InetAddress addr : InetAddress.getAllByName(name)) {
+                byte[] b = addr.getAddress();
+                if (addr instanceof Inet4Address) {
+                    v4 = Arrays.copyOf(v4, v4.length + 1);
+                    v4[v4.length - 1] = readLong(b, 0, 4);
+                } else if (addr instanceof Inet6Address) {
+                    v6 = Arrays.copyOf(v6, v6.length + 2);
+                    v6[v6.length - 2] = readLong(b, 0, 8);
+                    v6[v6.length - 1] = readLong(b, 8, 8);
+                }
+            }
+        } catch (UnknownHostException e) {
+            return new Addresses(Addresses.NONE, Addresses.NONE, now() + NEGATIVE_TTL * 1000L);
+        }
+        Arrays.sort(v4);
+        return new Addresses(v4, sortPairs(v6), now() + DEFAULT_TTL * 1000L);
+    }
+
+    /**
+     * Sends one query and returns the addresses of the answer
+     *
+     * @param ttl lowered to the smallest TTL of the answer records
+     */
+    private long[] query(String name, int type, long[] ttl) throws IOException {
+        byte[] request = buildQuery(name, type);
+        int id = ((request[0] & 0xff) << 8) | (request[1] & 0xff);
+
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            if (mProtector != null && !mProtector.protect(socket))
+                throw new IOException("Could not protect DNS socket");
+            socket.setSoTimeout(QUERY_TIMEOUT_MS);
+            socket.connect(mServer, mPort);
+
+            byte[] buf = new byte[1500];
+            for (int i = 0; i < QUERY_TRIES; i++) {
+                socket.send(new DatagramPacket(request, request.length));
+                try {
+                    while (true) {
+                        DatagramPacket response = new DatagramPacket(buf, buf.length);
+                        socket.receive(response);
+                        // Ignore stray answers to earlier queries
+                        if (response.getLength() >= 12 && (((buf[0] & 0xff) << 8) | (buf[1] & 0xff)) == id)
+                            return parseResponse(buf, response.getLength(), type, ttl);
+                    }
+                } catch (SocketTimeoutException ignored) {
+                }
+            }
+            throw new IOException("No answer from " + mServerKey);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private byte[] buildQuery(String name, int type) throws IOException {
+        byte[] q = new byte[12 + name.length() + 2 + 4];
+        int id;
+        synchronized (mRandom) {
+            id = mRandom.nextInt(0x10000);
+        }
+        q[0] = (byte) (id >> 8);
+        q[1] = (byte) id;
+        q[2] = 0x01; // recursion desired
+        q[5] = 1; // one question
+
+        int pos = 12;
+        int labelStart = 0;
+        for (int i = 0; i <= name.length(); i++) {
+            if (i == name.length() || name.charAt(i) == '.') {
+                int len = i - labelStart;
+                if (len == 0 || len > 63)
+                    throw new IOException("Invalid domain name " + name);
+                q[pos++] = (byte) len;
+                for (int j = labelStart; j < i; j++)
+                    q[pos++] = (byte) name.charAt(j);
+                labelStart = i + 1;
+            }
+        }
+        q[pos++] = 0;
+        q[pos++] = (byte) (type >> 8);
+        q[pos++] = (byte) type;
+        q[pos++] = 0;
+        q[pos] = 1; // class IN
+        return q;
+    }
+
+    /**
+     * Collects all records of type from the answer section. Records of a CNAME chain are
+     * part of the same answer, so their owner names are not checked.
+     */
+    static long[] parseResponse(byte[] b, int len, int type, long[] ttl) throws IOException {
+        if ((b[2] & 0x80) == 0)
+            throw new IOException("DNS response is not an answer");
+        int rcode = b[3] & 0x0f;
+        // NXDOMAIN is a valid, empty answer
+        if (rcode == 3)
+            return Addresses.NONE;
+        if (rcode != 0)
+            throw new IOException("DNS server returned error " + rcode);
+
+        int questions = readShort(b, 4, len);
+        int answers = readShort(b, 6, len);
+        int pos = 12;
+        for (int i = 0; i < questions; i++)
+            pos = skipName(b, pos, len) + 4;
+
+        int size = type == TYPE_A ? 4 : 16;
+        long[] result = new long[0];
+        for (int i = 0; i < answers; i++) {
+            pos = skipName(b, pos, len);
+            int rrType = readShort(b, pos, len);
+            long rrTtl = ((long) readShort(b, pos + 4, len) << 16) | readShort(b, pos + 6, len);
+            int rdLength = readShort(b, pos + 8, len);
+            pos += 10;
+            if (pos + rdLength > len)
+                throw new IOException("Truncated DNS response");
+
+            if (rrType == type && rdLength == size) {
+                ttl[0] = Math.min(ttl[0], rrTtl);
+                if (type == TYPE_A) {
+                    result = Arrays.copyOf(result, result.length + 1);
+                    result[result.length - 1] = readLong(b, pos, 4);
+                } else {
+                    result = Arrays.copyOf(result, result.length + 2);
+                    result[result.length - 2] = readLong(b, pos, 8);
+                    result[result.length - 1] = readLong(b, pos + 8, 8);
+                }
+            }
+            pos += rdLength;
+        }
+
+        if (type == TYPE_A) {
+            Arrays.sort(result);
+            return result;
+        }
+        return sortPairs(result);
+    }
+
+    private static int skipName(byte[] b, int pos, int len) throws IOException {
+        while (pos < len) {
+            int l = b[pos] & 0xff;
+            if (l == 0)
+                return pos + 1;
+            // Compression pointer ends the name
+            if ((l & 0xc0) == 0xc0)
+                return pos + 2;
+            pos += l + 1;
+        }
+        throw new IOException("Truncated DNS response");
+    }
+
+    private static int readShort(byte[] b, int pos, int len) throws IOException {
+        if (pos + 2 > len)
+            throw new IOException("Truncated DNS response");
+        return ((b[pos] & 0xff) << 8) | (b[pos + 1] & 0xff);
+    }
+
+    private static long readLong(byte[] b, int pos, int bytes) {
+        long v = 0;
+        for (int i = 0; i < bytes; i++)
+            v = (v << 8) | (b[pos + i] & 0xff);
+        return v;
+    }
+
+    /**
+     * Sorts IPv6 addresses stored as pairs, so equal sets compare equal
+     */
+    private static long[] sortPairs(long[] pairs) {
+        int n = pairs.length / 2;
+        for (int i = 1; i < n; i++) {
+            long hi = pairs[2 * i], lo = pairs[2 * i + 1];
+            int j = i - 1;
+            while (j >= 0 && NetworkSpace.IpAddress.compareUnsigned(pairs[2 * j], pairs[2 * j + 1], hi, lo) > 0) {
+                pairs[2 * j + 2] = pairs[2 * j];
+                pairs[2 * j + 3] = pairs[2 * j + 1];
+                j--;
+            }
+            pairs[2 * j + 2] = hi;
+            pairs[2 * j + 3] = lo;
+        }
+        return pairs;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.net.VpnService;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import de.blinkt.openvpn.VpnProfile;
+
+/**
+ * Routes for the domains of {@link VpnProfile#mIncludedDomains} and
+ * {@link VpnProfile#mExcludedDomains}. The domains are resolved when the connection starts
+ * and again when their answers expire. The addresses become host routes of the tun
+ * device; if the set of addresses changes in a way the open tun device does not already
+ * route the same, the listener is told so it can reopen the tun device with the new
+ * routes. openTun never waits for DNS, a tun device opened before the first answers
+ * arrived is updated the same way.
+ * <p>
+ * Addresses that disappear from the answers are kept for {@link #ADDRESS_GRACE_MS}, names
+ * with rotating addresses would otherwise change the routes on every refresh.
+ */
+class DomainRoutes {
+    interface Listener {
+        /**
+         * @return true if the open tun device routes the address through the VPN
+         */
+        boolean isRoutedThroughVpn(long hi, long lo, boolean isV4);
+
+        void onDomainRoutesChanged();
+    }
+
+    private static final long ADDRESS_GRACE_MS = 60 * 60 * 1000;
+    private static final long RESOLVE_TIMEOUT_MS = 5000;
+    private static final long MIN_REFRESH_MS = 30 * 1000;
+    private static final long MAX_REFRESH_MS = 60 * 60 * 1000;
+
+    private static class Route {
+        final long hi;
+        final long lo;
+        final boolean isV4;
+        final boolean included;
+
+        Route(long hi, long lo, boolean isV4, boolean included) {
+            this.hi = hi;
+            this.lo = lo;
+            this.isV4 = isV4;
+            this.included = included;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Route))
+                return false;
+            Route r = (Route) o;
+            return hi == r.hi && lo == r.lo && isV4 == r.isV4 && included == r.included;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = hi * 31 + lo;
+            return (int) (h ^ (h >>> 32)) * 4 + (isV4 ? 2 : 0) + (included ? 1 : 0);
+        }
+    }
+
+    private final List<String> mIncluded;
+    private final List<String> mExcluded;
+    private final DomainResolver mResolver;
+    private final Listener mListener;
+    private final ScheduledExecutorService mScheduler;
+
+    // Route -> time it was last part of an answer
+    private final HashMap<Route, Long> mRoutes = new HashMap<>();
+    // Routes of the last addTo, the ones the open tun device has
+    private HashSet<Route> mApplied = new HashSet<>();
+    private boolean mAddedToTun;
+    private boolean mResolved;
+    private int mVersion;
+
+    private DomainRoutes(List<String> included, List<String> excluded, DomainResolver resolver, Listener listener) {
+        mIncluded = included;
+        mExcluded = excluded;
+        mResolver = resolver;
+        mListener = listener;
+        mScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "DomainRoutes");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return the domain routes of the profile or null if it has no domain rules
+     */
+    static DomainRoutes create(VpnProfile profile, VpnService service, Listener listener) {
+        List<String> included = parseDomains(profile.mIncludedDomains);
+        List<String> excluded = parseDomains(profile.mExcludedDomains);
+        if (included.isEmpty() && excluded.isEmpty())
+            return null;
+
+        try {
+            DomainResolver resolver = new DomainResolver(profile.mDomainDnsServer, service);
+            return new DomainRoutes(included, excluded, resolver, listener);
+        } catch (UnknownHostException e) {
+            VpnStatus.logError(e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    static List<String> parseDomains(String domains) {
+        List<String> result = new ArrayList<>();
+        if (domains == null)
+            return result;
+
+        for (String domain : domains.trim().split("\\s+")) {
+            domain = domain.toLowerCase(Locale.US);
+            if (domain.endsWith("."))
+                domain = domain.substring(0, domain.length() - 1);
+            if (domain.isEmpty())
+                continue;
+            if (domain.startsWith("*.")) {
+                // DNS cannot list the names below a domain, so these cannot become routes
+                VpnStatus.logInfo("Ignoring wildcard domain " + domain + ", only exact names can be routed");
+            } else if (!isValidDomain(domain)) {
+                VpnStatus.logError("Ignoring invalid domain " + domain);
+            } else if (!result.contains(domain)) {
+                result.add(domain);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isValidDomain(String domain) {
+        if (domain.length() > 253)
+            return false;
+        int labelLength = 0;
+        for (int i = 0; i < domain.length(); i++) {
+            char c = domain.charAt(i);
+            if (c == '.') {
+                if (labelLength == 0)
+                    return false;
+                labelLength = 0;
+            } else if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_') {
+                if (++labelLength > 63)
+                    return false;
+            } else {
+                return false;
+            }
+        }
+        return labelLength > 0;
+    }
+
+    /**
+     * Starts resolving in the background
+     */
+    void start() {
+        mScheduler.execute(this::refresh);
+    }
+
+    void stop() {
+        mScheduler.shutdownNow();
+        mResolver.shutdown();
+    }
+
+    /**
+     * Changes whenever the routes change
+     */
+    synchronized int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Adds the host routes of the domains resolved so far, does not wait for DNS. Excluded
+     * domains win if a name is in both lists.
+     *
+     * @return the version of the added routes, see {@link #getVersion()}
+     */
+    int addTo(NetworkSpace v4, NetworkSpace v6) {
+        int count = 0;
+        int version;
+        synchronized (this) {
+            if (!mResolved)
+                VpnStatus.logInfo("Domains not resolved yet, opening the tun device without their routes");
+            version = mVersion;
+            mAddedToTun = true;
+            mApplied = new HashSet<>(mRoutes.keySet());
+            // Excluded first, the first state of a network wins
+            for (int pass = 0; pass < 2; pass++) {
+                boolean included = pass == 1;
+                for (Route r : mRoutes.keySet()) {
+                    if (r.included != included)
+                        continue;
+                    if (r.isV4)
+                        v4.addIP(r.lo, 32, included);
+                    else
+                        v6.addIPv6(r.hi, r.lo, 128, included);
+                    count++;
+                }
+            }
+        }
+        VpnStatus.logDebug(String.format(Locale.US, "Added %d routes for %d domains", count,
+                mIncluded.size() + mExcluded.size()));
+        return version;
+    }
+
+    /**
+     * @return true if the routes differ from the applied ones in a way the open tun device
+     * does not already cover. Removed routes always count, what the address falls back to
+     * without its host route is not known.
+     */
+    private boolean changesRouting(HashSet<Route> current, HashSet<Route> applied) {
+        for (Route r : applied) {
+            if (!current.contains(r))
+                return true;
+        }
+        for (Route r : current) {
+            if (!applied.contains(r) && mListener.isRoutedThroughVpn(r.hi, r.lo, r.isV4) != r.included)
+                return true;
+        }
+        return false;
+    }
+
+    private void refresh() {
+        List<String> names = new ArrayList<>(mIncluded);
+        names.addAll(mExcluded);
+        Map<String, DomainResolver.Addresses> answers = mResolver.resolve(names, RESOLVE_TIMEOUT_MS);
+        if (Thread.currentThread().isInterrupted())
+            return;
+
+        long now = DomainResolver.now();
+        long nextRefresh = now + MAX_REFRESH_MS;
+        boolean changed = false;
+        int routes;
+        boolean first;
+        boolean addedToTun;
+        HashSet<Route> current;
+        HashSet<Route> applied;
+        synchronized (this) {
+            for (Map.Entry<String, DomainResolver.Addresses> e : answers.entrySet()) {
+                boolean included = !mExcluded.contains(e.getKey());
+                DomainResolver.Addresses addresses = e.getValue();
+                for (long ip : addresses.v4)
+                    changed |= mRoutes.put(new Route(0, ip, true, included), now) == null;
+                for (int i = 0; i < addresses.v6.length; i += 2)
+                    changed |= mRoutes.put(new Route(addresses.v6[i], addresses.v6[i + 1], false, included), now) == null;
+                nextRefresh = Math.min(nextRefresh, addresses.expires);
+            }
+
+            for (Iterator<Long> it = mRoutes.values().iterator(); it.hasNext(); ) {
+                if (it.next() < now - ADDRESS_GRACE_MS) {
+                    it.remove();
+                    changed = true;
+                }
+            }
+            if (changed)
+                mVersion++;
+            routes = mRoutes.size();
+            first = !mResolved;
+            mResolved = true;
+            addedToTun = mAddedToTun;
+            current = new HashSet<>(mRoutes.keySet());
+            applied = mApplied;
+        }
+
+        // Names without an answer are retried soon
+        if (answers.size() < names.size())
+            nextRefresh = now;
+        long delay = Math.max(MIN_REFRESH_MS, Math.min(MAX_REFRESH_MS, nextRefresh - now));
+        try {
+            mScheduler.schedule(this::refresh, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped in the meantime
+            return;
+        }
+
+        if (first)
+            VpnStatus.logInfo(String.format(Locale.US, "Resolved %d of %d domains to %d addresses",
+                    answers.size(), names.size(), routes));
+        // Before the tun device is opened there is nothing to update, openTun adds the
+        // current routes
+        if (changed && addedToTun) {
+            if (changesRouting(current, applied))
+                mListener.onDomainRoutesChanged();
+            else
+                VpnStatus.logDebug("Changed addresses of the routed domains are already routed the same way");
+        }
+    }
+}
@@ -42,6 +42,12 @@ public class ICSOpenVPNApplication extends Application {
         }
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ProfileManager.onTrimMemory(level);
+    }
+
     private void enableStrictModes() {
         StrictMode.VmPolicy policy = new StrictMode.VmPolicy.Builder()
                 .detectAll()
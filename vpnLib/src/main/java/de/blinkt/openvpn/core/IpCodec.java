@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+/**
+ * Parsing and formatting of IPv4 and IPv6 addresses without going through split(),
+ * String.format or InetAddress. IPv4 addresses are unsigned ints in a long, IPv6 addresses
+ * two longs with the upper and lower 64 bits. Formatting can append to a caller's
+ * StringBuilder so a buffer can be reused for many addresses.
+ */
+public class IpCodec {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * @return the address or -1 if s from start to end is not a dotted quad
+     */
+    public static long parseIPv4(CharSequence s, int start, int end) {
+        long ip = 0;
+        int pos = start;
+        for (int octet = 0; octet < 4; octet++) {
+            if (octet > 0) {
+                if (pos >= end || s.charAt(pos) != '.')
+                    return -1;
+                pos++;
+            }
+            int digitsStart = pos;
+            int value = 0;
+            while (pos < end && pos - digitsStart < 3) {
+                char c = s.charAt(pos);
+                if (c < '0' || c > '9')
+                    break;
+                value = value * 10 + c - '0';
+                pos++;
+            }
+            if (pos == digitsStart || value > 255)
+                return -1;
+            ip = (ip << 8) | value;
+        }
+        return pos == end ? ip : -1;
+    }
+
+    /**
+     * @throws NumberFormatException if ip is not a dotted quad
+     */
+    public static long parseIPv4(String ip) {
+        long result = ip == null ? -1 : parseIPv4(ip, 0, ip.length());
+        if (result < 0)
+            throw new NumberFormatException("Invalid IPv4 address: " + ip);
+        return result;
+    }
+
+    /**
+     * @return the prefix length of a netmask or 32 if the netmask is not contiguous
+     */
+    public static int maskToPrefixLength(long mask) {
+        mask &= 0xffffffffL;
+        int len = Long.bitCount(mask);
+        if (mask != prefixLengthToMask(len))
+            return 32;
+        return len;
+    }
+
+    public static long prefixLengthToMask(int len) {
+        return (0xffffffffL << (32 - len)) & 0xffffffffL;
+    }
+
+    public static StringBuilder appendIPv4(StringBuilder sb, long ip) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            sb.append((int) ((ip >> shift) & 0xff));
+            if (shift > 0)
+                sb.append('.');
+        }
+        return sb;
+    }
+
+    public static String formatIPv4(long ip) {
+        return appendIPv4(new StringBuilder(15), ip).toString();
+    }
+
+    /**
+     * Parses an IPv6 address, including the :: shorthand and a dotted quad in the last
+     * 32 bits. Zone ids (%...) are not accepted.
+     *
+     * @param out receives the upper 64 bits in out[0] and the lower in out[1]
+     * @return false if s from start to end is not an IPv6 address
+     */
+    public static boolean parseIPv6(CharSequence s, int start, int end, long[] out) {
+        long headHi = 0, headLo = 0, tailHi = 0, tailLo = 0;
+        int headGroups = 0, tailGroups = 0;
+        boolean compressed = false;
+        int pos = start;
+
+        if (end - start >= 2 && s.charAt(start) == ':' && s.charAt(start + 1) == ':') {
+            compressed = true;
+            pos += 2;
+        } else if (pos < end && s.charAt(pos) == ':') {
+            return false;
+        }
+
+        while (pos < end) {
+            int groups = headGroups + tailGroups;
+            int tokenEnd = pos;
+            boolean dotted = false;
+            while (tokenEnd < end && s.charAt(tokenEnd) != ':') {
+                if (s.charAt(tokenEnd) == '.')
+                    dotted = true;
+                tokenEnd++;
+            }
+
+            long value;
+            int count;
+            if (dotted) {
+                // Dotted quad only as the last part
+                if (tokenEnd != end || groups > 6)
+                    return false;
+                value = parseIPv4(s, pos, tokenEnd);
+                if (value < 0)
+                    return false;
+                count = 2;
+            } else {
+                int digits = tokenEnd - pos;
+                if (digits == 0 || digits > 4 || groups >= 8)
+                    return false;
+                value = 0;
+                for (int i = pos; i < tokenEnd; i++) {
+                    int d = hexDigit(s.charAt(i));
+                    if (d < 0)
+                        return false;
+                    value = (value << 4) | d;
+                }
+                count = 1;
+            }
+
+            for (int i = count - 1; i >= 0; i--) {
+                long group = (value >>> (16 * i)) & 0xffff;
+                if (compressed) {
+                    tailHi = (tailHi << 16) | (tailLo >>> 48);
+                    tailLo = (tailLo << 16) | group;
+                    tailGroups++;
+                } else {
+                    headHi = (headHi << 16) | (headLo >>> 48);
+                    headLo = (headLo << 16) | group;
+                    headGroups++;
+                }
+            }
+
+            pos = tokenEnd;
+            if (pos == end)
+                break;
+            // Skip the separator, a second colon starts the compressed zeros
+            pos++;
+            if (pos < end && s.charAt(pos) == ':') {
+                if (compressed)
+                    return false;
+                compressed = true;
+                pos++;
+            } else if (pos == end) {
+                // Single trailing colon
+                return false;
+            }
+        }
+
+        int groups = headGroups + tailGroups;
+        if (groups > 8 || (compressed && groups == 8) || (!compressed && groups != 8))
+            return false;
+
+        // Shift the head to the top and place the tail below it
+        for (int i = headGroups; i < 8; i++) {
+            headHi = (headHi << 16) | (headLo >>> 48);
+            headLo = headLo << 16;
+        }
+        out[0] = headHi | tailHi;
+        out[1] = headLo | tailLo;
+        return true;
+    }
+
+    /**
+     * Appends the address in the RFC 5952 form: lower case, no leading zeros and the
+     * longest run of two or more zero groups replaced by ::
+     */
+    public static StringBuilder appendIPv6(StringBuilder sb, long hi, long lo) {
+        // Find the longest run of zero groups, the first one if there are several
+        int bestStart = -1, bestLen = 0;
+        int runStart = -1;
+        for (int i = 0; i <= 8; i++) {
+            if (i < 8 && getGroup(hi, lo, i) == 0) {
+                if (runStart < 0)
+                    runStart = i;
+            } else if (runStart >= 0) {
+                if (i - runStart > bestLen) {
+                    bestStart = runStart;
+                    bestLen = i - runStart;
+                }
+                runStart = -1;
+            }
+        }
+        if (bestLen < 2)
+            bestStart = -1;
+
+        for (int i = 0; i < 8; i++) {
+            if (i == bestStart) {
+                sb.append("::");
+                i += bestLen - 1;
+                continue;
+            }
+            if (i > 0 && i != bestStart + bestLen)
+                sb.append(':');
+            appendHex(sb, getGroup(hi, lo, i));
+        }
+        return sb;
+    }
+
+    public static String formatIPv6(long hi, long lo) {
+        return appendIPv6(new StringBuilder(39), hi, lo).toString();
+    }
+
+    private static int getGroup(long hi, long lo, int i) {
+        long half = i < 4 ? hi : lo;
+        return (int) ((half >>> (16 * (3 - (i & 3)))) & 0xffff);
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        return -1;
+    }
+
+    private static void appendHex(StringBuilder sb, int value) {
+        boolean started = false;
+        for (int shift = 12; shift >= 0; shift -= 4) {
+            int d = (value >> shift) & 0xf;
+            if (d != 0 || started || shift == 0) {
+                sb.append(HEX[d]);
+                started = true;
+            }
+        }
+    }
+}
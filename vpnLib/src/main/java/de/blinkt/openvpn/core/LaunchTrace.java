@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.util.Locale;
+
+/**
+ * Durations of the steps of launching a connection. Steps may run on different threads at
+ * the same time, each one is timed on its own and added to the {@link ConnectTimeline}
+ * histograms as LAUNCH_&lt;step&gt;.
+ */
+class LaunchTrace {
+    private final long mStart = now();
+    private final StringBuilder mSteps = new StringBuilder();
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    long begin() {
+        return now();
+    }
+
+    void end(String step, long begin) {
+        long ms = now() - begin;
+        synchronized (this) {
+            if (mSteps.length() > 0)
+                mSteps.append(", ");
+            mSteps.append(step).append(' ').append(ms).append("ms");
+        }
+        ConnectTimeline.addSample("LAUNCH_" + step.toUpperCase(Locale.US), ms);
+    }
+
+    void log() {
+        String steps;
+        synchronized (this) {
+            steps = mSteps.toString();
+        }
+        VpnStatus.logDebug(String.format(Locale.US, "Launch trace: %s, total %dms", steps, now() - mStart));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+/**
+ * Per link statistics as reported by the management interface status command:
+ *
+ * <pre>
+ * OpenVPN STATISTICS
+ * Updated,Thu Jan  1 00:00:00 2024
+ * TUN/TAP read bytes,1234
+ * TUN/TAP write bytes,1234
+ * TCP/UDP read bytes,1234
+ * TCP/UDP write bytes,1234
+ * Auth read bytes,1234
+ * pre-compress bytes,0
+ * post-compress bytes,0
+ * pre-decompress bytes,0
+ * post-decompress bytes,0
+ * END
+ * </pre>
+ * <p>
+ * Values that are not reported (e.g. compression without comp-lzo) are {@link #UNAVAILABLE}.
+ */
+public class LinkStatistics {
+    public static final long UNAVAILABLE = -1;
+
+    public long timestamp;
+    public long tunReadBytes = UNAVAILABLE;
+    public long tunWriteBytes = UNAVAILABLE;
+    public long linkReadBytes = UNAVAILABLE;
+    public long linkWriteBytes = UNAVAILABLE;
+    public long authReadBytes = UNAVAILABLE;
+    public long preCompressBytes = UNAVAILABLE;
+    public long postCompressBytes = UNAVAILABLE;
+    public long preDecompressBytes = UNAVAILABLE;
+    public long postDecompressBytes = UNAVAILABLE;
+
+    void reset() {
+        timestamp = 0;
+        tunReadBytes = UNAVAILABLE;
+        tunWriteBytes = UNAVAILABLE;
+        linkReadBytes = UNAVAILABLE;
+        linkWriteBytes = UNAVAILABLE;
+        authReadBytes = UNAVAILABLE;
+        preCompressBytes = UNAVAILABLE;
+        postCompressBytes = UNAVAILABLE;
+        preDecompressBytes = UNAVAILABLE;
+        postDecompressBytes = UNAVAILABLE;
+    }
+
+    LinkStatistics copy() {
+        LinkStatistics ls = new LinkStatistics();
+        ls.timestamp = timestamp;
+        ls.tunReadBytes = tunReadBytes;
+        ls.tunWriteBytes = tunWriteBytes;
+        ls.linkReadBytes = linkReadBytes;
+        ls.linkWriteBytes = linkWriteBytes;
+        ls.authReadBytes = authReadBytes;
+        ls.preCompressBytes = preCompressBytes;
+        ls.postCompressBytes = postCompressBytes;
+        ls.preDecompressBytes = preDecompressBytes;
+        ls.postDecompressBytes = postDecompressBytes;
+        return ls;
+    }
+
+    /**
+     * Parses one "name,value" line of the status output into this record.
+     *
+     * @return false if the line is not a statistics line we know about
+     */
+    boolean parseLine(String line) {
+        int comma = line.indexOf(',');
+        if (comma < 0)
+            return false;
+
+        long value;
+        try {
+            value = Long.parseLong(line.substring(comma + 1).trim());
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+
+        switch (line.substring(0, comma)) {
+            case "TUN/TAP read bytes":
+                tunReadBytes = value;
+                break;
+            case "TUN/TAP write bytes":
+                tunWriteBytes = value;
+                break;
+            case "TCP/UDP read bytes":
+                linkReadBytes = value;
+                break;
+            case "TCP/UDP write bytes":
+                linkWriteBytes = value;
+                break;
+            case "Auth read bytes":
+                authReadBytes = value;
+                break;
+            case "pre-compress bytes":
+                preCompressBytes = value;
+                break;
+            case "post-compress bytes":
+                postCompressBytes = value;
+                break;
+            case "pre-decompress bytes":
+                preDecompressBytes = value;
+                break;
+            case "post-decompress bytes":
+                postDecompressBytes = value;
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the overhead of the tunnel (bytes on the link per byte on the tun device) for
+     * sent traffic or 0 if not known
+     */
+    public double getSendOverhead() {
+        if (tunReadBytes <= 0 || linkWriteBytes == UNAVAILABLE)
+            return 0;
+        return (double) linkWriteBytes / tunReadBytes;
+    }
+
+    /**
+     * @return the compression ratio for sent traffic or 0 if compression is not used
+     */
+    public double getCompressionRatio() {
+        if (preCompressBytes <= 0 || postCompressBytes == UNAVAILABLE)
+            return 0;
+        return (double) postCompressBytes / preCompressBytes;
+    }
+}
@@ -8,11 +8,7 @@ package de.blinkt.openvpn.core;
 import android.os.Build;
 import androidx.annotation.NonNull;
 
-import java.math.BigInteger;
-import java.net.Inet6Address;
 import java.util.Collection;
-import java.util.Locale;
-import java.util.PriorityQueue;
 import java.util.TreeSet;
 import java.util.Vector;
 
@@ -28,13 +24,21 @@ public class NetworkSpace {
             throw new IllegalStateException();
     }
 
+    /**
+     * Immutable IPv4 or IPv6 network. The address is stored as two unsigned 64 bit halves
+     * (IPv4 uses only the lower half), so masking, comparing and splitting networks does not
+     * allocate anything apart from the resulting networks.
+     */
     static class IpAddress implements Comparable<IpAddress> {
-        private BigInteger netAddress;
-        public int networkMask;
-        private boolean included;
-        private boolean isV4;
-        private BigInteger firstAddress;
-        private BigInteger lastAddress;
+        private final long netHi;
+        private final long netLo;
+        public final int networkMask;
+        final boolean included;
+        final boolean isV4;
+        final long firstHi;
+        final long firstLo;
+        final long lastHi;
+        final long lastLo;
 
 
         /**
@@ -44,7 +48,7 @@ public class NetworkSpace {
          */
         @Override
         public int compareTo(@NonNull IpAddress another) {
-            int comp = getFirstAddress().compareTo(another.getFirstAddress());
+            int comp = compareUnsigned(firstHi, firstLo, another.firstHi, another.firstLo);
             if (comp != 0)
                 return comp;
 
@@ -69,145 +73,146 @@ public class NetworkSpace {
 
 
             IpAddress on = (IpAddress) o;
-            return (networkMask == on.networkMask) && on.getFirstAddress().equals(getFirstAddress());
+            return (networkMask == on.networkMask) && sameFirstAddress(on);
         }
 
-        public IpAddress(CIDRIP ip, boolean include) {
-            included = include;
-            netAddress = BigInteger.valueOf(ip.getInt());
-            networkMask = ip.len;
-            isV4 = true;
+        @Override
+        public int hashCode() {
+            long h = firstHi * 31 + firstLo;
+            return (int) (h ^ (h >>> 32)) * 31 + networkMask;
         }
 
-        public IpAddress(Inet6Address address, int mask, boolean include) {
-            networkMask = mask;
-            included = include;
+        public IpAddress(CIDRIP ip, boolean include) {
+            this(0, ip.getInt(), ip.len, include, true);
+        }
 
-            int s = 128;
+        IpAddress(long hi, long lo, int mask, boolean included, boolean isV4) {
+            this.netHi = hi;
+            this.netLo = lo;
+            this.networkMask = mask;
+            this.included = included;
+            this.isV4 = isV4;
 
-            netAddress = BigInteger.ZERO;
-            for (byte b : address.getAddress()) {
-                s -= 8;
-                netAddress = netAddress.add(BigInteger.valueOf((b & 0xFF)).shiftLeft(s));
+            long hostHi;
+            long hostLo;
+            int hostBits = (isV4 ? 32 : 128) - mask;
+            if (hostBits >= 64) {
+                hostLo = -1L;
+                hostHi = hostBits == 128 ? -1L : (1L << (hostBits - 64)) - 1;
+            } else {
+                hostLo = (1L << hostBits) - 1;
+                hostHi = 0;
             }
+            firstHi = hi & ~hostHi;
+            firstLo = lo & ~hostLo;
+            lastHi = hi | hostHi;
+            lastLo = lo | hostLo;
         }
 
-        public BigInteger getLastAddress() {
-            if (lastAddress == null)
-                lastAddress = getMaskedAddress(true);
-            return lastAddress;
+        /**
+         * Compares two 128 bit unsigned numbers given as upper and lower half
+         */
+        static int compareUnsigned(long hi1, long lo1, long hi2, long lo2) {
+            if (hi1 != hi2)
+                return (hi1 + Long.MIN_VALUE) < (hi2 + Long.MIN_VALUE) ? -1 : 1;
+            if (lo1 != lo2)
+                return (lo1 + Long.MIN_VALUE) < (lo2 + Long.MIN_VALUE) ? -1 : 1;
+            return 0;
         }
 
-
-        public BigInteger getFirstAddress() {
-            if (firstAddress == null)
-                firstAddress = getMaskedAddress(false);
-            return firstAddress;
+        boolean sameFirstAddress(IpAddress other) {
+            return firstHi == other.firstHi && firstLo == other.firstLo;
         }
 
+        boolean sameLastAddress(IpAddress other) {
+            return lastHi == other.lastHi && lastLo == other.lastLo;
+        }
 
-        private BigInteger getMaskedAddress(boolean one) {
-            BigInteger numAddress = netAddress;
-
-            int numBits;
-            if (isV4) {
-                numBits = 32 - networkMask;
-            } else {
-                numBits = 128 - networkMask;
-            }
-
-            for (int i = 0; i < numBits; i++) {
-                if (one)
-                    numAddress = numAddress.setBit(i);
-                else
-                    numAddress = numAddress.clearBit(i);
-            }
-            return numAddress;
+        /**
+         * @return true if the last address of this network is below the first address of other
+         */
+        boolean endsBefore(IpAddress other) {
+            return compareUnsigned(lastHi, lastLo, other.firstHi, other.firstLo) < 0;
         }
 
 
         @Override
         public String toString() {
             //String in = included ? "+" : "-";
+            StringBuilder sb = new StringBuilder(isV4 ? 18 : 43);
             if (isV4)
-                return String.format(Locale.US, "%s/%d", getIPv4Address(), networkMask);
+                IpCodec.appendIPv4(sb, netLo);
             else
-                return String.format(Locale.US, "%s/%d", getIPv6Address(), networkMask);
-        }
-
-        IpAddress(BigInteger baseAddress, int mask, boolean included, boolean isV4) {
-            this.netAddress = baseAddress;
-            this.networkMask = mask;
-            this.included = included;
-            this.isV4 = isV4;
+                IpCodec.appendIPv6(sb, netHi, netLo);
+            return sb.append('/').append(networkMask).toString();
         }
 
 
         public IpAddress[] split() {
-            IpAddress firstHalf = new IpAddress(getFirstAddress(), networkMask + 1, included, isV4);
-            IpAddress secondHalf = new IpAddress(firstHalf.getLastAddress().add(BigInteger.ONE), networkMask + 1, included, isV4);
+            // The second half is the first address with the highest host bit set
+            int bit = (isV4 ? 32 : 128) - networkMask - 1;
+            long secondHi = firstHi;
+            long secondLo = firstLo;
+            if (bit >= 64)
+                secondHi |= 1L << (bit - 64);
+            else
+                secondLo |= 1L << bit;
+
+            IpAddress firstHalf = new IpAddress(firstHi, firstLo, networkMask + 1, included, isV4);
+            IpAddress secondHalf = new IpAddress(secondHi, secondLo, networkMask + 1, included, isV4);
             if (BuildConfig.DEBUG)
-                assertTrue(secondHalf.getLastAddress().equals(getLastAddress()));
+                assertTrue(secondHalf.sameLastAddress(this));
             return new IpAddress[]{firstHalf, secondHalf};
         }
 
         String getIPv4Address() {
             if (BuildConfig.DEBUG) {
                 assertTrue(isV4);
-                assertTrue(netAddress.longValue() <= 0xffffffffl);
-                assertTrue(netAddress.longValue() >= 0);
+                assertTrue(netHi == 0);
+                assertTrue(netLo <= 0xffffffffL);
+                assertTrue(netLo >= 0);
             }
-            long ip = netAddress.longValue();
-            return String.format(Locale.US, "%d.%d.%d.%d", (ip >> 24) % 256, (ip >> 16) % 256, (ip >> 8) % 256, ip % 256);
+            return IpCodec.formatIPv4(netLo);
         }
 
         String getIPv6Address() {
             if (BuildConfig.DEBUG) assertTrue(!isV4);
-            BigInteger r = netAddress;
-
-            String ipv6str = null;
-            boolean lastPart = true;
-
-            while (r.compareTo(BigInteger.ZERO) == 1) {
-
-                long part = r.mod(BigInteger.valueOf(0x10000)).longValue();
-                if (ipv6str != null || part != 0) {
-                    if (ipv6str == null && !lastPart)
-                            ipv6str = ":";
-
-                    if (lastPart)
-                        ipv6str = String.format(Locale.US, "%x", part, ipv6str);
-                    else
-                        ipv6str = String.format(Locale.US, "%x:%s", part, ipv6str);
-                }
-
-                r = r.shiftRight(16);
-                lastPart = false;
-            }
-            if (ipv6str == null)
-                return "::";
-
-
-            return ipv6str;
+            return IpCodec.formatIPv6(netHi, netLo);
         }
 
         public boolean containsNet(IpAddress network) {
             // this.first >= net.first &&  this.last <= net.last
-            BigInteger ourFirst = getFirstAddress();
-            BigInteger ourLast = getLastAddress();
-            BigInteger netFirst = network.getFirstAddress();
-            BigInteger netLast = network.getLastAddress();
-
-            boolean a = ourFirst.compareTo(netFirst) != 1;
-            boolean b = ourLast.compareTo(netLast) != -1;
+            boolean a = compareUnsigned(firstHi, firstLo, network.firstHi, network.firstLo) <= 0;
+            boolean b = compareUnsigned(lastHi, lastLo, network.lastHi, network.lastLo) >= 0;
             return a && b;
 
         }
+
+        /**
+         * @return true if this network and other are the two halves of the same network
+         */
+        boolean isSiblingOf(IpAddress other) {
+            if (networkMask != other.networkMask || networkMask == 0 || isV4 != other.isV4)
+                return false;
+            IpAddress parent = new IpAddress(firstHi, firstLo, networkMask - 1, included, isV4);
+            return parent.sameFirstAddress(this) ? parent.sameLastAddress(other)
+                    : parent.sameFirstAddress(other) && parent.sameLastAddress(this);
+        }
     }
 
 
     TreeSet<IpAddress> mIpAddresses = new TreeSet<IpAddress>();
 
+    // Order independent sum of the hashes of mIpAddresses, updated on every add
+    private long mRouteSumHi;
+    private long mRouteSumLo;
+
+    // Last result of getPositiveIPList and the route set it was computed for
+    private Vector<IpAddress> mCachedPositive;
+    private long mCachedSumHi;
+    private long mCachedSumLo;
+    private int mCachedSize = -1;
+
 
     public Collection<IpAddress> getNetworks(boolean included) {
         Vector<IpAddress> ips = new Vector<IpAddress>();
@@ -220,114 +225,117 @@ public class NetworkSpace {
 
     public void clear() {
         mIpAddresses.clear();
+        mRouteSumHi = 0;
+        mRouteSumLo = 0;
+    }
+
+    private void add(IpAddress ip) {
+        // A network already in the set keeps its first state, like in the set itself
+        if (!mIpAddresses.add(ip))
+            return;
+        long state = (ip.networkMask << 2) | (ip.included ? 2 : 0) | (ip.isV4 ? 1 : 0);
+        mRouteSumHi += TunFingerprint.hashHi(ip.firstHi, ip.firstLo, state);
+        mRouteSumLo += TunFingerprint.hashLo(ip.firstHi, ip.firstLo, state);
+    }
+
+    /**
+     * Adds the networks to a fingerprint, independent of the order they were added in
+     */
+    void addToFingerprint(TunFingerprint fingerprint) {
+        fingerprint.update(mRouteSumHi).update(mRouteSumLo).update(mIpAddresses.size());
     }
 
 
     void addIP(CIDRIP cidrIp, boolean include) {
 
-        mIpAddresses.add(new IpAddress(cidrIp, include));
+        add(new IpAddress(cidrIp, include));
+    }
+
+    void addIP(long ip, int len, boolean include) {
+        add(new IpAddress(0, ip, len, include, true));
     }
 
     public void addIPSplit(CIDRIP cidrIp, boolean include) {
         IpAddress newIP = new IpAddress(cidrIp, include);
         IpAddress[] splitIps = newIP.split();
         for (IpAddress split : splitIps)
-            mIpAddresses.add(split);
+            add(split);
     }
 
-    void addIPv6(Inet6Address address, int mask, boolean included) {
-        mIpAddresses.add(new IpAddress(address, mask, included));
+    void addIPv6(long hi, long lo, int mask, boolean included) {
+        add(new IpAddress(hi, lo, mask, included, false));
     }
 
+    /**
+     * Resolves overlapping included and excluded networks. Every address gets the state of
+     * the most specific network covering it, the result contains non overlapping networks.
+     */
     TreeSet<IpAddress> generateIPList() {
-
-        PriorityQueue<IpAddress> networks = new PriorityQueue<IpAddress>(mIpAddresses);
+        RouteTrie v4 = new RouteTrie(true);
+        RouteTrie v6 = new RouteTrie(false);
+        for (IpAddress ip : mIpAddresses) {
+            if (ip.isV4)
+                v4.add(ip);
+            else
+                v6.add(ip);
+        }
 
         TreeSet<IpAddress> ipsDone = new TreeSet<IpAddress>();
+        v4.resolve(ipsDone);
+        v6.resolve(ipsDone);
+        return ipsDone;
+    }
 
-        IpAddress currentNet = networks.poll();
-        if (currentNet == null)
-            return ipsDone;
-
-        while (currentNet != null) {
-            // Check if it and the next of it are compatible
-            IpAddress nextNet = networks.poll();
-
-            if (BuildConfig.DEBUG) assertTrue(currentNet!=null);
-            if (nextNet == null || currentNet.getLastAddress().compareTo(nextNet.getFirstAddress()) == -1) {
-                // Everything good, no overlapping nothing to do
-                ipsDone.add(currentNet);
-
-                currentNet = nextNet;
-            } else {
-                // This network is smaller or equal to the next but has the same base address
-                if (currentNet.getFirstAddress().equals(nextNet.getFirstAddress()) && currentNet.networkMask >= nextNet.networkMask) {
-                    if (currentNet.included == nextNet.included) {
-                        // Included in the next next and same type
-                        // Simply forget our current network
-                        currentNet = nextNet;
-                    } else {
-                        // our currentNet is included in next and types differ. Need to split the next network
-                        IpAddress[] newNets = nextNet.split();
-
-
-                        // TODO: The contains method of the Priority is stupid linear search
-
-                        // First add the second half to keep the order in networks
-                        if (!networks.contains(newNets[1]))
-                            networks.add(newNets[1]);
-
-                        if (newNets[0].getLastAddress().equals(currentNet.getLastAddress())) {
-                            if (BuildConfig.DEBUG)
-                                assertTrue(newNets[0].networkMask == currentNet.networkMask);
-                            // Don't add the lower half that would conflict with currentNet
-                        } else {
-                            if (!networks.contains(newNets[0]))
-                                networks.add(newNets[0]);
-                        }
-                        // Keep currentNet as is
-                    }
+    /**
+     * Reduces a list of routes to the smallest list covering the same addresses: routes
+     * inside another route are dropped and the two halves of a network are merged into it.
+     * The state (included) of the routes is ignored, the list should only contain routes
+     * of the same kind.
+     */
+    static Vector<IpAddress> aggregate(Collection<IpAddress> routes) {
+        // Sorted by first address, smaller networks first
+        TreeSet<IpAddress> sorted = new TreeSet<IpAddress>(routes);
+        Vector<IpAddress> result = new Vector<IpAddress>(sorted.size());
+
+        for (IpAddress ip : sorted) {
+            if (!result.isEmpty() && result.lastElement().containsNet(ip))
+                continue;
+
+            IpAddress merged = ip;
+            while (!result.isEmpty()) {
+                IpAddress last = result.lastElement();
+                if (merged.containsNet(last)) {
+                    result.remove(result.size() - 1);
+                } else if (last.isSiblingOf(merged)) {
+                    result.remove(result.size() - 1);
+                    merged = new IpAddress(last.firstHi, last.firstLo, last.networkMask - 1, last.included, last.isV4);
                 } else {
-                    if (BuildConfig.DEBUG) {
-                        assertTrue(currentNet.networkMask < nextNet.networkMask);
-                        assertTrue(nextNet.getFirstAddress().compareTo(currentNet.getFirstAddress()) == 1);
-                        assertTrue(currentNet.getLastAddress().compareTo(nextNet.getLastAddress()) != -1);
-                    }
-                    // This network is bigger than the next and last ip of current >= next
-
-                    //noinspection StatementWithEmptyBody
-                    if (currentNet.included == nextNet.included) {
-                        // Next network is in included in our network with the same type,
-                        // simply ignore the next and move on
-                    } else {
-                        // We need to split our network
-                        IpAddress[] newNets = currentNet.split();
-
-
-                        if (newNets[1].networkMask == nextNet.networkMask) {
-                            if (BuildConfig.DEBUG) {
-                                assertTrue(newNets[1].getFirstAddress().equals(nextNet.getFirstAddress()));
-                                assertTrue(newNets[1].getLastAddress().equals(currentNet.getLastAddress()));
-                                // split second equal the next network, do not add it
-                            }
-                            networks.add(nextNet);
-                        } else {
-                            // Add the smaller network first
-                            networks.add(newNets[1]);
-                            networks.add(nextNet);
-                        }
-                        currentNet = newNets[0];
-
-                    }
+                    break;
                 }
             }
-
+            result.add(merged);
         }
-
-        return ipsDone;
+        return result;
     }
 
+    /**
+     * @return the included networks after resolving. The result for the last set of networks
+     * is cached, so a reconnect with the same routes does not resolve them again.
+     */
     Collection<IpAddress> getPositiveIPList() {
+        if (mCachedPositive != null && mCachedSize == mIpAddresses.size()
+                && mCachedSumHi == mRouteSumHi && mCachedSumLo == mRouteSumLo)
+            return new Vector<IpAddress>(mCachedPositive);
+
+        Vector<IpAddress> ips = computePositiveIPList();
+        mCachedPositive = new Vector<IpAddress>(ips);
+        mCachedSumHi = mRouteSumHi;
+        mCachedSumLo = mRouteSumLo;
+        mCachedSize = mIpAddresses.size();
+        return ips;
+    }
+
+    private Vector<IpAddress> computePositiveIPList() {
         TreeSet<IpAddress> ipsSorted = generateIPList();
 
         Vector<IpAddress> ips = new Vector<IpAddress>();
@@ -35,6 +35,7 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.system.OsConstants;
 import android.text.TextUtils;
 import android.util.Base64;
@@ -48,17 +49,21 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.net.Inet6Address;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import de.blinkt.openvpn.DisconnectVPNActivity;
 import de.blinkt.openvpn.LaunchVPN;
@@ -97,6 +102,18 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
     private static final int PRIORITY_MIN = -2;
     private static final int PRIORITY_DEFAULT = 0;
     private static final int PRIORITY_MAX = 2;
+    // Route lists longer than this are shortened in the log
+    private static final int MAX_LOGGED_ROUTES = 100;
+    // Reconnects for changed domain addresses are at most this frequent
+    private static final long MIN_DOMAIN_RECONNECT_MS = 5 * 60 * 1000;
+    // Time the old OpenVPN process gets for each step of stopping it
+    private static final long PROCESS_EXIT_TIMEOUT_MS = 1000;
+    // Runs the steps of starting a connection that do not depend on each other
+    private static final ExecutorService mLaunchExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "OpenVPNLaunch");
+        t.setDaemon(true);
+        return t;
+    });
     private static boolean mNotificationAlwaysVisible = false;
     private static boolean mHideAllNotifications = false;
     private static Class<? extends Activity> mNotificationActivityClass;
@@ -106,6 +123,8 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
     private final Object mProcessLock = new Object();
     private String lastChannel;
     private Thread mProcessThread = null;
+    // Reads the management socket of the OpenVPN 2 process, ends with the process
+    private Thread mManagementThread = null;
     private VpnProfile mProfile;
     private String mDomain = null;
     private CIDRIP mLocalIP = null;
@@ -155,11 +174,21 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
     private final IBinder mBinder = new LocalBinder();
     private static String state = "";
     boolean flag = false;
-    private String mLastTunCfg;
+    // Fingerprint of the configuration of the open tun device
+    private TunFingerprint mLastTunFingerprint;
+    // Updated on every addDNS, the order of DNS servers matters
+    private final TunFingerprint mDnsFingerprint = new TunFingerprint();
     private String mRemoteGW;
     private Handler guiHandler;
     private Toast mlastToast;
     private Runnable mOpenVPNThread;
+    private DomainRoutes mDomainRoutes;
+    // Routes through the VPN of the open tun device
+    private volatile Collection<IpAddress> mTunRoutes = Collections.emptyList();
+    private volatile Collection<IpAddress> mTunRoutesv6 = Collections.emptyList();
+    private long mLastDomainReconnect;
+    private boolean mDomainReconnectPending;
+    private List<String> mLoggedAllowedApps;
 
     // From: http://stackoverflow.com/questions/3758606/how-to-convert-byte-size-into-human-readable-format-in-java
     public static String humanReadableByteCount(long bytes, boolean speed, Resources res) {
@@ -273,8 +302,10 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
             mProcessThread = null;
         }
         VpnStatus.removeByteCountListener(this);
+        TotalTraffic.saveTotal(this);
         unregisterDeviceStateReceiver();
         ProfileManager.setConntectedVpnProfileDisconnected(this);
+        stopDomainRoutes();
         mOpenVPNThread = null;
         flag = false; // Ensure flag is set to false when service ends
         
@@ -514,7 +545,11 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
         filter.addAction(Intent.ACTION_SCREEN_OFF);
         filter.addAction(Intent.ACTION_SCREEN_ON);
-        mDeviceStateReceiver = new DeviceStateReceiver(magnagement);
+        if (mProfile != null)
+            mDeviceStateReceiver = new DeviceStateReceiver(magnagement,
+                    mProfile.mScreenOffTrafficWindow, mProfile.mScreenOffTrafficLimit);
+        else
+            mDeviceStateReceiver = new DeviceStateReceiver(magnagement);
 
         // Fetch initial network state
         mDeviceStateReceiver.networkStateChange(this);
@@ -654,31 +689,53 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
     }
 
     private void startOpenVPN() {
-        try {
-            mProfile.writeConfigFile(this);
-        } catch (IOException e) {
-            VpnStatus.logException("Error writing config file", e);
-            endVpnService();
-            return;
-        }
-        String nativeLibraryDirectory = getApplicationInfo().nativeLibraryDir;
-        String tmpDir;
-        try {
-            tmpDir = getApplication().getCacheDir().getCanonicalPath();
-        } catch (IOException e) {
-            e.printStackTrace();
-            tmpDir = "/tmp";
-        }
+        ConnectTimeline.startSession(mProfile.getUUIDString());
+        LaunchTrace trace = new LaunchTrace();
+        VpnProfile profile = mProfile;
+
+        // Config file and binary do not depend on stopping the old process or on the
+        // management socket, prepare them in the background meanwhile
+        Future<IOException> configWritten = mLaunchExecutor.submit(() -> {
+            long begin = trace.begin();
+            try {
+                profile.writeConfigFile(this);
+                return null;
+            } catch (IOException e) {
+                return e;
+            } finally {
+                trace.end("config", begin);
+            }
+        });
+        Future<String[]> argvBuilt = mLaunchExecutor.submit(() -> {
+            long begin = trace.begin();
+            try {
+                return VPNLaunchHelper.buildOpenvpnArgv(this);
+            } finally {
+                trace.end("binary", begin);
+            }
+        });
 
-        // Write OpenVPN binary
-        String[] argv = VPNLaunchHelper.buildOpenvpnArgv(this);
+        // Resolve the routed domains while the connection is set up
+        stopDomainRoutes();
+        DomainRoutes domainRoutes = DomainRoutes.create(mProfile, this, mDomainRoutesListener);
+        if (domainRoutes != null)
+            domainRoutes.start();
+        synchronized (this) {
+            mDomainRoutes = domainRoutes;
+        }
 
+        String nativeLibraryDirectory = getApplicationInfo().nativeLibraryDir;
+        String tmpDir = VPNLaunchHelper.getTmpDir(this);
 
         // Set a flag that we are starting a new VPN
         mStarting = true;
         // Stop the previous session by interrupting the thread.
 
+        ConnectTimeline.mark(ConnectTimeline.PREPARED);
+        long begin = trace.begin();
         stopOldOpenVPNProcess();
+        trace.end("stop_old", begin);
+        ConnectTimeline.mark(ConnectTimeline.OLD_PROCESS_STOPPED);
         // An old running VPN should now be exited
         mStarting = false;
 
@@ -686,20 +743,48 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         boolean useOpenVPN3 = VpnProfile.doUseOpenVPN3(this);
 
         // Open the Management Interface
+        OpenVpnManagementThread ovpnManagementThread = null;
         if (!useOpenVPN3) {
-            // start a Thread that handles incoming messages of the managment socket
-            OpenVpnManagementThread ovpnManagementThread = new OpenVpnManagementThread(mProfile, this);
-            if (ovpnManagementThread.openManagementInterface(this)) {
-                Thread mSocketManagerThread = new Thread(ovpnManagementThread, "OpenVPNManagementThread");
-                mSocketManagerThread.start();
-                mManagement = ovpnManagementThread;
-                VpnStatus.logInfo("started Socket Thread");
-            } else {
+            ovpnManagementThread = new OpenVpnManagementThread(mProfile, this);
+            begin = trace.begin();
+            boolean opened = ovpnManagementThread.openManagementInterface(this);
+            trace.end("management", begin);
+            if (!opened) {
                 endVpnService();
                 return;
             }
         }
 
+        String[] argv = null;
+        boolean prepared = false;
+        try {
+            IOException configError = configWritten.get();
+            if (configError != null)
+                VpnStatus.logException("Error writing config file", configError);
+            argv = argvBuilt.get();
+            prepared = configError == null && (argv != null || useOpenVPN3);
+        } catch (ExecutionException e) {
+            VpnStatus.logException("Error preparing OpenVPN binary", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!prepared) {
+            if (ovpnManagementThread != null)
+                ovpnManagementThread.closeManagementInterface();
+            endVpnService();
+            return;
+        }
+        trace.log();
+
+        if (ovpnManagementThread != null) {
+            // start a Thread that handles incoming messages of the managment socket
+            Thread mSocketManagerThread = new Thread(ovpnManagementThread, "OpenVPNManagementThread");
+            mSocketManagerThread.start();
+            mManagementThread = mSocketManagerThread;
+            mManagement = ovpnManagementThread;
+            VpnStatus.logInfo("started Socket Thread");
+        }
+
         Runnable processThread;
         if (useOpenVPN3) {
             OpenVPNManagement mOpenVPN3 = instantiateOpenVPN3Core();
@@ -726,34 +811,89 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
     }
 
 
+    /**
+     * Stops the previous OpenVPN process and waits for its management thread to end, the
+     * new connection binds the same management socket
+     */
     private void stopOldOpenVPNProcess() {
+        Thread oldThread;
+        synchronized (mProcessLock) {
+            oldThread = mProcessThread;
+        }
+        Thread oldManagementThread = mManagementThread;
+        boolean processAlive = oldThread != null && oldThread.isAlive();
+        boolean managementAlive = oldManagementThread != null && oldManagementThread.isAlive();
+        if (!processAlive && !managementAlive)
+            return;
+
+        long start = SystemClock.elapsedRealtime();
+        boolean exited = !processAlive;
         if (mManagement != null) {
-            if (mOpenVPNThread != null)
+            if (processAlive && mOpenVPNThread != null)
                 ((OpenVPNThread) mOpenVPNThread).setReplaceConnection();
-            if (mManagement.stopVPN(true)) {
-                // an old was asked to exit, wait 1s
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    //ignore
-                }
+            // an old was asked to exit, wait until it has
+            if (mManagement.stopVPN(true) && processAlive)
+                exited = waitForExit(oldThread, PROCESS_EXIT_TIMEOUT_MS);
+        }
+
+        if (!exited)
+            forceStopOpenVpnProcess();
+        long processStopped = SystemClock.elapsedRealtime();
+
+        if (managementAlive) {
+            // The thread ends when the process closes the socket or, if the process never
+            // connected, when the server socket is closed
+            if (!waitForExit(oldManagementThread, PROCESS_EXIT_TIMEOUT_MS)
+                    && mManagement instanceof OpenVpnManagementThread) {
+                ((OpenVpnManagementThread) mManagement).closeManagementInterface();
+                if (!waitForExit(oldManagementThread, PROCESS_EXIT_TIMEOUT_MS))
+                    VpnStatus.logError("Old management thread did not exit, opening the new management interface anyway");
             }
         }
+        mManagementThread = null;
 
-        forceStopOpenVpnProcess();
+        long end = SystemClock.elapsedRealtime();
+        VpnStatus.logDebug(String.format(Locale.US, "Stopped old OpenVPN process in %d ms%s, management thread after %d ms",
+                processStopped - start, exited ? "" : " (forced)", end - processStopped));
     }
 
+    /**
+     * Interrupts the OpenVPN thread and waits for it to end. If it does not, the OpenVPN
+     * process is killed.
+     */
     public void forceStopOpenVpnProcess() {
+        Thread thread;
         synchronized (mProcessLock) {
-            if (mProcessThread != null) {
-                mProcessThread.interrupt();
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    //ignore
-                }
-            }
+            thread = mProcessThread;
+        }
+        // Wait without holding the lock, an ending thread takes it in endVpnService
+        if (thread == null || !thread.isAlive())
+            return;
+
+        thread.interrupt();
+        if (waitForExit(thread, PROCESS_EXIT_TIMEOUT_MS))
+            return;
+
+        // Only OpenVPN 2 runs a separate process, the OpenVPN 3 core runs in the thread
+        if (mOpenVPNThread instanceof OpenVPNThread) {
+            VpnStatus.logInfo("Old OpenVPN process did not exit, killing it");
+            ((OpenVPNThread) mOpenVPNThread).stopProcess();
+            if (waitForExit(thread, PROCESS_EXIT_TIMEOUT_MS))
+                return;
+        }
+        VpnStatus.logError("Old OpenVPN thread did not exit, starting the new connection anyway");
+    }
+
+    /**
+     * @return true if thread has ended within timeoutMs
+     */
+    private static boolean waitForExit(Thread thread, long timeoutMs) {
+        try {
+            thread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        return !thread.isAlive();
     }
 
     private OpenVPNManagement instantiateOpenVPN3Core() {
@@ -776,6 +916,8 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
     @Override
     public void onCreate() {
         super.onCreate();
+        // Have the binary and paths ready before the first connection is started
+        mLaunchExecutor.execute(() -> VPNLaunchHelper.prewarm(this));
     }
 
     @Override
@@ -801,29 +943,62 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         VpnStatus.flushLog();
     }
 
-    private String getTunConfigString() {
-        // The format of the string is not important, only that
-        // two identical configurations produce the same result
-        String cfg = "TUNCFG UNQIUE STRING ips:";
+    /**
+     * Fingerprint of the configuration the tun device would be opened with now. openTun adds
+     * routes of its own to the pushed ones; for those only their inputs are hashed, they
+     * are not known before openTun computes them.
+     */
+    private TunFingerprint getTunFingerprint() {
+        DomainRoutes domainRoutes;
+        synchronized (this) {
+            domainRoutes = mDomainRoutes;
+        }
+        int domainRoutesVersion = domainRoutes == null ? -1 : domainRoutes.getVersion();
+        return getPushedConfigFingerprint().update(getDerivedRoutesFingerprint(domainRoutesVersion));
+    }
 
+    /**
+     * Two identical pushed configurations produce the same fingerprint. Routes and DNS
+     * servers are hashed as they arrive, so this is cheap even with many routes.
+     */
+    private TunFingerprint getPushedConfigFingerprint() {
+        TunFingerprint fingerprint = new TunFingerprint();
         if (mLocalIP != null)
-            cfg += mLocalIP.toString();
-        if (mLocalIPv6 != null)
-            cfg += mLocalIPv6;
+            fingerprint.update(mLocalIP.mIp).update(mLocalIP.len);
+        else
+            fingerprint.update(-1);
+        fingerprint.update(mLocalIPv6);
 
+        mRoutes.addToFingerprint(fingerprint);
+        mRoutesv6.addToFingerprint(fingerprint);
+        fingerprint.update(mDnsFingerprint).update(mDnslist.size());
+        fingerprint.update(mDomain);
+        fingerprint.update(mMtu);
+        return fingerprint;
+    }
 
-        cfg += "routes: " + TextUtils.join("|", mRoutes.getNetworks(true)) + TextUtils.join("|", mRoutesv6.getNetworks(true));
-        cfg += "excl. routes:" + TextUtils.join("|", mRoutes.getNetworks(false)) + TextUtils.join("|", mRoutesv6.getNetworks(false));
-        cfg += "dns: " + TextUtils.join("|", mDnslist);
-        cfg += "domain: " + mDomain;
-        cfg += "mtu: " + mMtu;
-        return cfg;
+    /**
+     * Inputs of the routes openTun adds to the pushed ones: the version of the domain
+     * routes, the local networks and the bulk excluded routes of the profile
+     */
+    private TunFingerprint getDerivedRoutesFingerprint(int domainRoutesVersion) {
+        TunFingerprint fingerprint = new TunFingerprint();
+        fingerprint.update(domainRoutesVersion);
+        for (String net : NetworkUtils.getLocalNetworks(this, false))
+            fingerprint.update(net);
+        if (mProfile.mAllowLocalLAN) {
+            for (String net : NetworkUtils.getLocalNetworks(this, true))
+                fingerprint.update(net);
+        }
+        fingerprint.update(mProfile.getBulkExcludedRoutesKey());
+        return fingerprint;
     }
 
     public ParcelFileDescriptor openTun() {
 
         //Debug.startMethodTracing(getExternalFilesDir(null).toString() + "/opentun.trace", 40* 1024 * 1024);
 
+        ConnectTimeline.mark(ConnectTimeline.TUN_START);
         Builder builder = new Builder();
 
         VpnStatus.logInfo(R.string.last_openvpn_tun_config);
@@ -838,10 +1013,24 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
             return null;
         }
 
+        // Taken before the own routes are added, getTunReopenStatus only knows the pushed ones
+        TunFingerprint tunFingerprint = getPushedConfigFingerprint();
+
+        DomainRoutes domainRoutes;
+        synchronized (this) {
+            domainRoutes = mDomainRoutes;
+        }
+        int domainRoutesVersion = -1;
+        if (domainRoutes != null)
+            domainRoutesVersion = domainRoutes.addTo(mRoutes, mRoutesv6);
+        tunFingerprint.update(getDerivedRoutesFingerprint(domainRoutesVersion));
+
         if (mLocalIP != null) {
             // OpenVPN3 manages excluded local networks by callback
-            if (!VpnProfile.doUseOpenVPN3(this))
+            if (!VpnProfile.doUseOpenVPN3(this)) {
                 addLocalNetworksToRoutes();
+                addBulkExcludedRoutes();
+            }
             try {
                 builder.addAddress(mLocalIP.mIp, mLocalIP.len);
             } catch (IllegalArgumentException iae) {
@@ -907,25 +1096,41 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
 
         IpAddress multicastRange = new IpAddress(new CIDRIP("224.0.0.0", 3), true);
 
+        // Multicast routes are filtered before aggregating, a merged route must not cover them
+        Vector<IpAddress> unicastIPv4Routes = new Vector<>(positiveIPv4Routes.size());
         for (IpAddress route : positiveIPv4Routes) {
-            try {
+            if (multicastRange.containsNet(route))
+                VpnStatus.logDebug(R.string.ignore_multicast_route, route.toString());
+            else
+                unicastIPv4Routes.add(route);
+        }
 
-                if (multicastRange.containsNet(route))
-                    VpnStatus.logDebug(R.string.ignore_multicast_route, route.toString());
-                else
-                    builder.addRoute(route.getIPv4Address(), route.networkMask);
+        Collection<IpAddress> aggregatedIPv4Routes = NetworkSpace.aggregate(unicastIPv4Routes);
+        Collection<IpAddress> aggregatedIPv6Routes = NetworkSpace.aggregate(positiveIPv6Routes);
+        mTunRoutes = aggregatedIPv4Routes;
+        mTunRoutesv6 = aggregatedIPv6Routes;
+        int removedRoutes = unicastIPv4Routes.size() - aggregatedIPv4Routes.size()
+                + positiveIPv6Routes.size() - aggregatedIPv6Routes.size();
+        if (removedRoutes > 0)
+            VpnStatus.logDebug(String.format(Locale.US, "Route aggregation removed %d of %d routes",
+                    removedRoutes, unicastIPv4Routes.size() + positiveIPv6Routes.size()));
+
+        for (IpAddress route : aggregatedIPv4Routes) {
+            try {
+                builder.addRoute(route.getIPv4Address(), route.networkMask);
             } catch (IllegalArgumentException ia) {
                 VpnStatus.logError(getString(R.string.route_rejected) + route + " " + ia.getLocalizedMessage());
             }
         }
 
-        for (IpAddress route6 : positiveIPv6Routes) {
+        for (IpAddress route6 : aggregatedIPv6Routes) {
             try {
                 builder.addRoute(route6.getIPv6Address(), route6.networkMask);
             } catch (IllegalArgumentException ia) {
                 VpnStatus.logError(getString(R.string.route_rejected) + route6 + " " + ia.getLocalizedMessage());
             }
         }
+        ConnectTimeline.mark(ConnectTimeline.TUN_ROUTES);
 
 
         if (mDomain != null)
@@ -959,11 +1164,12 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         if (mDomain != null) builder.addSearchDomain(mDomain);
         VpnStatus.logInfo(R.string.local_ip_info, ipv4info, ipv4len, ipv6info, mMtu);
         VpnStatus.logInfo(R.string.dns_server_info, TextUtils.join(", ", mDnslist), mDomain);
-        VpnStatus.logInfo(R.string.routes_info_incl, TextUtils.join(", ", mRoutes.getNetworks(true)), TextUtils.join(", ", mRoutesv6.getNetworks(true)));
-        VpnStatus.logInfo(R.string.routes_info_excl, TextUtils.join(", ", mRoutes.getNetworks(false)), TextUtils.join(", ", mRoutesv6.getNetworks(false)));
-        VpnStatus.logDebug(R.string.routes_debug, TextUtils.join(", ", positiveIPv4Routes), TextUtils.join(", ", positiveIPv6Routes));
+        VpnStatus.logInfo(R.string.routes_info_incl, joinRoutes(mRoutes.getNetworks(true)), joinRoutes(mRoutesv6.getNetworks(true)));
+        VpnStatus.logInfo(R.string.routes_info_excl, joinRoutes(mRoutes.getNetworks(false)), joinRoutes(mRoutesv6.getNetworks(false)));
+        VpnStatus.logDebug(R.string.routes_debug, joinRoutes(aggregatedIPv4Routes), joinRoutes(aggregatedIPv6Routes));
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             setAllowedVpnPackages(builder);
+            ConnectTimeline.mark(ConnectTimeline.TUN_APPS);
         }
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
             // VPN always uses the default network
@@ -985,10 +1191,11 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         if (mDnslist.size() == 0)
             VpnStatus.logInfo(R.string.warn_no_dns);
 
-        mLastTunCfg = getTunConfigString();
+        mLastTunFingerprint = tunFingerprint;
 
         // Reset information
         mDnslist.clear();
+        mDnsFingerprint.reset();
         mRoutes.clear();
         mRoutesv6.clear();
         mLocalIP = null;
@@ -1002,6 +1209,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
             ParcelFileDescriptor tun = builder.establish();
             if (tun == null)
                 throw new NullPointerException("Android establish() method returned null (Really broken network configuration?)");
+            ConnectTimeline.mark(ConnectTimeline.TUN_ESTABLISH);
             return tun;
         } catch (Exception e) {
             VpnStatus.logError(R.string.tun_open_error);
@@ -1030,6 +1238,90 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         builder.allowFamily(OsConstants.AF_INET6);
     }
 
+    private synchronized void stopDomainRoutes() {
+        if (mDomainRoutes != null) {
+            mDomainRoutes.stop();
+            mDomainRoutes = null;
+        }
+    }
+
+    private final DomainRoutes.Listener mDomainRoutesListener = new DomainRoutes.Listener() {
+        @Override
+        public boolean isRoutedThroughVpn(long hi, long lo, boolean isV4) {
+            IpAddress host = new IpAddress(hi, lo, isV4 ? 32 : 128, true, isV4);
+            for (IpAddress route : isV4 ? mTunRoutes : mTunRoutesv6) {
+                if (route.containsNet(host))
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onDomainRoutesChanged() {
+            OpenVPNService.this.onDomainRoutesChanged();
+        }
+    };
+
+    /**
+     * The addresses of the routed domains changed and the open tun device routes some of
+     * them the wrong way. The routes of a tun device cannot be changed and OpenVPN 2 only
+     * opens a new one when it restarts the connection, so this reconnects. The new
+     * fingerprint makes the restart reopen the tun device before closing the old one, so
+     * no traffic leaves the VPN in between.
+     */
+    private synchronized void onDomainRoutesChanged() {
+        if (mManagement == null || !VpnStatus.isVPNActive())
+            return;
+
+        long wait = mLastDomainReconnect + MIN_DOMAIN_RECONNECT_MS - SystemClock.elapsedRealtime();
+        if (wait > 0) {
+            if (!mDomainReconnectPending) {
+                mDomainReconnectPending = true;
+                guiHandler.postDelayed(() -> {
+                    synchronized (OpenVPNService.this) {
+                        mDomainReconnectPending = false;
+                    }
+                    onDomainRoutesChanged();
+                }, wait);
+            }
+            return;
+        }
+
+        mLastDomainReconnect = SystemClock.elapsedRealtime();
+        VpnStatus.logInfo("Addresses of the routed domains changed, reconnecting to update the routes");
+        mManagement.reconnect();
+    }
+
+    /**
+     * Adds the excluded routes that are not part of the config (see
+     * {@link VpnProfile#getBulkExcludedRoutes()}) in one pass
+     */
+    private void addBulkExcludedRoutes() {
+        RouteList routes = mProfile.getBulkExcludedRoutes();
+        if (routes == null)
+            return;
+        routes.addTo(mRoutes, false);
+        VpnStatus.logDebug(String.format(Locale.US, "Added %d excluded routes from the profile", routes.size()));
+    }
+
+    /**
+     * Joins routes for logging, very long lists are shortened
+     */
+    private static String joinRoutes(Collection<IpAddress> routes) {
+        if (routes.size() <= MAX_LOGGED_ROUTES)
+            return TextUtils.join(", ", routes);
+
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        for (IpAddress route : routes) {
+            if (i++ == MAX_LOGGED_ROUTES)
+                break;
+            sb.append(route).append(", ");
+        }
+        sb.append(String.format(Locale.US, "... (%d more)", routes.size() - MAX_LOGGED_ROUTES));
+        return sb.toString();
+    }
+
     private void addLocalNetworksToRoutes() {
         for (String net : NetworkUtils.getLocalNetworks(this, false)) {
             String[] netparts = net.split("/");
@@ -1079,7 +1371,8 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
             }
         }
 
-        for (String pkg : mProfile.mAllowedAppsVpn) {
+        List<String> packages = AllowedApps.getValidatedPackages(this, mProfile);
+        for (String pkg : packages) {
             try {
                 if (mProfile.mAllowedAppsVpnAreDisallowed) {
                     builder.addDisallowedApplication(pkg);
@@ -1090,7 +1383,9 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
                     }
                 }
             } catch (PackageManager.NameNotFoundException e) {
+                // Removed since the list was validated
                 mProfile.mAllowedAppsVpn.remove(pkg);
+                AllowedApps.invalidate();
                 VpnStatus.logInfo(R.string.app_no_longer_exists, pkg);
             }
         }
@@ -1104,11 +1399,15 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
             }
         }
 
-        if (mProfile.mAllowedAppsVpnAreDisallowed) {
-            VpnStatus.logDebug(R.string.disallowed_vpn_apps_info, TextUtils.join(", ", mProfile.mAllowedAppsVpn));
+        // Long lists are only logged when they change
+        if (packages.equals(mLoggedAllowedApps)) {
+            VpnStatus.logDebug(String.format(Locale.US, "App filter unchanged (%d apps)", packages.size()));
+        } else if (mProfile.mAllowedAppsVpnAreDisallowed) {
+            VpnStatus.logDebug(R.string.disallowed_vpn_apps_info, TextUtils.join(", ", packages));
         } else {
-            VpnStatus.logDebug(R.string.allowed_vpn_apps_info, TextUtils.join(", ", mProfile.mAllowedAppsVpn));
+            VpnStatus.logDebug(R.string.allowed_vpn_apps_info, TextUtils.join(", ", packages));
         }
+        mLoggedAllowedApps = packages;
 
         if (mProfile.mAllowAppVpnBypass) {
             builder.allowBypass();
@@ -1118,6 +1417,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
 
     public void addDNS(String dns) {
         mDnslist.add(dns);
+        mDnsFingerprint.update(dns);
     }
 
     public void setDomain(String domain) {
@@ -1169,15 +1469,19 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
     }
 
     public void addRoutev6(String network, boolean included) {
-        String[] v6parts = network.split("/");
+        int slash = network.indexOf('/');
+        long[] address = new long[2];
 
         try {
-            Inet6Address ip = (Inet6Address) InetAddress.getAllByName(v6parts[0])[0];
-            int mask = Integer.parseInt(v6parts[1]);
-            mRoutesv6.addIPv6(ip, mask, included);
+            if (slash < 0 || !IpCodec.parseIPv6(network, 0, slash, address))
+                throw new NumberFormatException("Invalid IPv6 address");
+            int mask = Integer.parseInt(network.substring(slash + 1));
+            if (mask < 0 || mask > 128)
+                throw new NumberFormatException("Invalid prefix length");
+            mRoutesv6.addIPv6(address[0], address[1], mask, included);
 
-        } catch (UnknownHostException e) {
-            VpnStatus.logException(e);
+        } catch (NumberFormatException e) {
+            VpnStatus.logError("Could not parse IPv6 route " + network + ": " + e.getMessage());
         }
 
 
@@ -1301,7 +1605,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
 
     @Override
     public void updateByteCount(long in, long out, long diffIn, long diffOut) {
-        TotalTraffic.calcTraffic(this, in, out, diffIn, diffOut);
+        boolean published = TotalTraffic.calcTraffic(this, in, out, diffIn, diffOut);
         if (mDisplayBytecount) {
             String netstat = String.format(getString(R.string.statusline_bytecount),
                     humanReadableByteCount(in, false, getResources()),
@@ -1311,28 +1615,22 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
 
 
             showNotification(netstat, null, NOTIFICATION_CHANNEL_BG_ID, mConnecttime, LEVEL_CONNECTED, null);
-            // byteIn = String.format("↓%2$s", getString(R.string.statusline_bytecount),
-            //         humanReadableByteCount(in, false, getResources())) + " - " + humanReadableByteCount(diffIn / OpenVPNManagement.mBytecountInterval, false, getResources()) + "/s";
-            // byteOut = String.format("↑%2$s", getString(R.string.statusline_bytecount),
-            //         humanReadableByteCount(out, false, getResources())) + " - " + humanReadableByteCount(diffOut / OpenVPNManagement.mBytecountInterval, false, getResources()) + "/s";
+
+            // The local broadcast follows the rate limit of the traffic publisher
+            if (!published)
+                return;
 
             byteIn = String.valueOf(in);
             byteOut = String.valueOf(out);
 
-            if(byteIn.isEmpty() ||byteIn.trim().length() == 0) byteIn = "0";
-            if(byteOut.isEmpty() || byteOut.trim().length() == 0) byteOut = "0";
+            time = System.currentTimeMillis() - c;
+            lastPacketReceive = (int) (time / 1000) % 60 - Integer.parseInt(seconds);
 
-            time = Calendar.getInstance().getTimeInMillis() - c;
-            lastPacketReceive = Integer.parseInt(convertTwoDigit((int) (time / 1000) % 60)) - Integer.parseInt(seconds);
-//            seconds = convertTwoDigit((int) (time / 1000) % 60);
-//            minutes = convertTwoDigit((int) ((time / (1000 * 60)) % 60));
-//            hours = convertTwoDigit((int) ((time / (1000 * 60 * 60)) % 24));
-
-            Calendar connectedOn = Calendar.getInstance();
-            connectedOn.setTimeInMillis(c);
-
-            @SuppressLint("SimpleDateFormat") DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            duration = dateFormat.format(connectedOn.getTime());
+            // The connect time does not change, only format it once
+            if (duration == null) {
+                @SuppressLint("SimpleDateFormat") DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+                duration = dateFormat.format(new Date(c));
+            }
             lastPacketReceive = checkPacketReceive(lastPacketReceive);
             sendMessage(duration, String.valueOf(lastPacketReceive), byteIn, byteOut);
         }
@@ -1366,8 +1664,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
     }
 
     public String getTunReopenStatus() {
-        String currentConfiguration = getTunConfigString();
-        if (currentConfiguration.equals(mLastTunCfg)) {
+        if (getTunFingerprint().equals(mLastTunFingerprint)) {
             return "NOACTION";
         } else {
             String release = Build.VERSION.RELEASE;
@@ -9,6 +9,7 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
@@ -125,7 +126,17 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
 
         @Override
         public TrafficHistory getTrafficHistory() throws RemoteException {
-            return VpnStatus.trafficHistory;
+            return VpnStatus.getTrafficHistorySince(Long.MIN_VALUE);
+        }
+
+        @Override
+        public TrafficHistory getTrafficHistorySince(long timestamp) throws RemoteException {
+            return VpnStatus.getTrafficHistorySince(timestamp);
+        }
+
+        @Override
+        public Bundle getConnectTimings(String profileUuid) throws RemoteException {
+            return ConnectTimeline.getTimings(profileUuid);
         }
 
     };
@@ -44,6 +44,8 @@ public class OpenVPNThread implements Runnable {
     private String mDumpPath;
     private boolean mBrokenPie = false;
     private boolean mNoProcessExitStatus = false;
+    private static String mLibraryPathKey;
+    private static String mLibraryPath;
 
     public OpenVPNThread(OpenVPNService service, String[] argv, String nativelibdir, String tmpdir) {
         mArgv = argv;
@@ -206,6 +208,13 @@ public class OpenVPNThread implements Runnable {
     }
 
     private String genLibraryPath(String[] argv, ProcessBuilder pb) {
+        // Only depends on the binary, the native lib dir and our own environment
+        String key = argv[0] + "|" + mNativeDir;
+        synchronized (OpenVPNThread.class) {
+            if (key.equals(mLibraryPathKey))
+                return mLibraryPath;
+        }
+
         // Hack until I find a good way to get the real library path
         String applibpath = argv[0].replaceFirst("/cache/.*$", "/lib");
 
@@ -218,6 +227,10 @@ public class OpenVPNThread implements Runnable {
         if (!applibpath.equals(mNativeDir)) {
             lbpath = mNativeDir + ":" + lbpath;
         }
+        synchronized (OpenVPNThread.class) {
+            mLibraryPathKey = key;
+            mLibraryPath = lbpath;
+        }
         return lbpath;
     }
 }
@@ -34,6 +34,8 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
     public static final int ORBOT_TIMEOUT_MS = 20 * 1000;
     private static final String TAG = "openvpn";
     private static final Vector<OpenVpnManagementThread> active = new Vector<>();
+    // Interval in s to poll the status command, 0 disables polling
+    private static int mStatusPollInterval = 0;
     private final Handler mResumeHandler;
     private LocalSocket mSocket;
     private VpnProfile mProfile;
@@ -92,6 +94,20 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
     };
     private transient Connection mCurrentProxyConnection;
 
+    // Reused for every status response, a copy is handed to the listeners
+    private final LinkStatistics mPendingStatistics = new LinkStatistics();
+    private boolean mReadingStatus = false;
+    private Runnable mStatusPollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mShuttingDown || mStatusPollInterval <= 0)
+                return;
+            if (!mWaitingForRelease)
+                managmentCommand("status\n");
+            mResumeHandler.postDelayed(this, mStatusPollInterval * 1000L);
+        }
+    };
+
     public OpenVpnManagementThread(VpnProfile profile, OpenVPNService openVpnService) {
         mProfile = profile;
         mOpenVPNService = openVpnService;
@@ -99,6 +115,15 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
     }
 
+    /**
+     * Sets the interval in which the OpenVPN status command is issued to collect per link
+     * statistics ({@link VpnStatus#addLinkStatisticsListener}). 0 disables polling (default).
+     * Takes effect on the next connection.
+     */
+    public static void setStatusPollInterval(int seconds) {
+        mStatusPollInterval = Math.max(0, seconds);
+    }
+
     private static boolean stopOpenVPN() {
         synchronized (active) {
             boolean sendCMD = false;
@@ -151,6 +176,20 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
     }
 
+    /**
+     * Closes an opened management interface that will not be used, e.g. because starting
+     * the connection failed after opening it or OpenVPN never connected to it. A waiting
+     * {@link #run()} then ends.
+     */
+    void closeManagementInterface() {
+        try {
+            if (mServerSocket != null)
+                mServerSocket.close();
+        } catch (IOException e) {
+            VpnStatus.logException(e);
+        }
+    }
+
     /**
      * @param cmd command to write to management socket
      * @return true if command have been sent
@@ -223,6 +262,7 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
             if (!e.getMessage().equals("socket closed") && !e.getMessage().equals("Connection reset by peer"))
                 VpnStatus.logException(e);
         }
+        mResumeHandler.removeCallbacks(mStatusPollRunnable);
         synchronized (active) {
             active.remove(this);
         }
@@ -333,12 +373,28 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
             FileDescriptor fdtoprotect = mFDList.pollFirst();
             if (fdtoprotect != null)
                 protectFileDescriptor(fdtoprotect);
+        } else if (mReadingStatus || command.equals("OpenVPN STATISTICS")) {
+            processStatusLine(command);
         } else {
             Log.i(TAG, "Got unrecognized line from managment" + command);
             VpnStatus.logWarning("MGMT: Got unrecognized line from management:" + command);
         }
     }
 
+    private void processStatusLine(String line) {
+        if (line.equals("OpenVPN STATISTICS")) {
+            mReadingStatus = true;
+            mPendingStatistics.reset();
+        } else if (line.equals("END")) {
+            mReadingStatus = false;
+            mPendingStatistics.timestamp = System.currentTimeMillis();
+            VpnStatus.updateLinkStatistics(mPendingStatistics.copy());
+        } else {
+            // Ignore the Updated, line and unknown counters
+            mPendingStatistics.parseLine(line);
+        }
+    }
+
     private void processInfoMessage(String info)
     {
         if (info.startsWith("OPEN_URL:") || info.startsWith("CR_TEXT:"))
@@ -435,6 +491,11 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         managmentCommand("bytecount " + mBytecountInterval + "\n");
         managmentCommand("state on\n");
         //managmentCommand("log on all\n");
+
+        if (mStatusPollInterval > 0) {
+            mResumeHandler.removeCallbacks(mStatusPollRunnable);
+            mResumeHandler.postDelayed(mStatusPollRunnable, mStatusPollInterval * 1000L);
+        }
     }
 
     public void releaseHold() {
@@ -790,6 +851,7 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
     @Override
     public boolean stopVPN(boolean replaceConnection) {
         boolean stopSucceed = stopOpenVPN();
+        mResumeHandler.removeCallbacks(mStatusPollRunnable);
         if (stopSucceed) {
             mShuttingDown = true;
 
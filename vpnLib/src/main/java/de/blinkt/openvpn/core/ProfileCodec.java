@@ -0,0 +1,473 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import de.blinkt.openvpn.VpnProfile;
+
+/**
+ * Binary profile format that replaces Java serialization for the stored profiles.
+ * <p>
+ * Layout: magic, schema version, then a list of fields terminated by tag 0. Every field is
+ * (tag, type, length, payload). Tags are the fixed numbers of {@link #PROFILE_TAGS} and
+ * {@link #CONNECTION_TAGS}, renaming a Java field does not change the format. Strings and
+ * other blobs are length prefixed UTF-8 and are not limited to 64k like
+ * {@link DataOutputStream#writeUTF(String)}. Embedded files are written as references to
+ * the {@link BlobStore} and resolved again when reading. Writing does not store them, the
+ * save path stores {@link #getEmbeddedFiles} before it writes the profile.
+ * <p>
+ * Schema rules, none of them needs a new schema version:
+ * <ul>
+ * <li>A tag is never reused. Removing a field removes its line from the table and
+ * leaves its number unused.</li>
+ * <li>Unknown tags were written by a newer version and are skipped by their length.</li>
+ * <li>A known tag with another type than its field has (the field changed its type) is
+ * skipped as well.</li>
+ * <li>Skipped and missing fields keep the default of a new profile.</li>
+ * <li>Every persistent field must have a tag and a type the format can encode, otherwise
+ * building the table fails. A field is never left out silently.</li>
+ * </ul>
+ */
+public class ProfileCodec {
+    public static final String FILE_EXTENSION = ".vpb";
+
+    private static final int MAGIC = 0x4f56504e; // "OVPN"
+    static final int SCHEMA_VERSION = 2;
+
+    private static final int END_TAG = 0;
+
+    private static final byte TYPE_BOOLEAN = 'Z';
+    private static final byte TYPE_INT = 'I';
+    private static final byte TYPE_LONG = 'J';
+    private static final byte TYPE_STRING = 'S';
+    private static final byte TYPE_STRINGSET = 'A';
+    private static final byte TYPE_UUID = 'U';
+    private static final byte TYPE_ENUM = 'E';
+    private static final byte TYPE_CONNECTIONS = 'C';
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Tag, field name. Append new fields with the next free tag, never renumber
+    private static final Object[] PROFILE_TAGS = {
+            1, "mUuid",
+            2, "mProfileVersion",
+            3, "mVersion",
+            4, "mLastUsed",
+            5, "mName",
+            6, "mTemporaryProfile",
+            7, "importedProfileHash",
+            8, "mProfileCreator",
+            9, "mUserEditable",
+            10, "mAuthenticationType",
+            11, "mAlias",
+            12, "mClientCertFilename",
+            13, "mTLSAuthDirection",
+            14, "mTLSAuthFilename",
+            15, "mClientKeyFilename",
+            16, "mCaFilename",
+            17, "mUseLzo",
+            18, "mPKCS12Filename",
+            19, "mPKCS12Password",
+            20, "mUseTLSAuth",
+            21, "mDNS1",
+            22, "mDNS2",
+            23, "mIPv4Address",
+            24, "mIPv6Address",
+            25, "mOverrideDNS",
+            26, "mSearchDomain",
+            27, "mUseDefaultRoute",
+            28, "mUsePull",
+            29, "mCustomRoutes",
+            30, "mCheckRemoteCN",
+            31, "mExpectTLSCert",
+            32, "mRemoteCN",
+            33, "mPassword",
+            34, "mUsername",
+            35, "mRoutenopull",
+            36, "mUseRandomHostname",
+            37, "mUseFloat",
+            38, "mUseCustomConfig",
+            39, "mCustomConfigOptions",
+            40, "mVerb",
+            41, "mCipher",
+            42, "mNobind",
+            43, "mUseDefaultRoutev6",
+            44, "mCustomRoutesv6",
+            45, "mKeyPassword",
+            46, "mPersistTun",
+            47, "mConnectRetryMax",
+            48, "mConnectRetry",
+            49, "mConnectRetryMaxTime",
+            50, "mAuth",
+            51, "mX509AuthType",
+            52, "mx509UsernameField",
+            53, "mAllowLocalLAN",
+            54, "mExcludedRoutes",
+            55, "mExcludedRoutesv6",
+            56, "mMssFix",
+            57, "mConnections",
+            58, "mRemoteRandom",
+            59, "mAllowedAppsVpn",
+            60, "mAllowedAppsVpnAreDisallowed",
+            61, "mAllowAppVpnBypass",
+            62, "mCrlFilename",
+            63, "mExternalAuthenticator",
+            64, "mAuthRetry",
+            65, "mTunMtu",
+            66, "mPushPeerInfo",
+            67, "mServerName",
+            68, "mServerPort",
+            69, "mUseUdp",
+            70, "mBlockUnusedAddressFamilies",
+            71, "mScreenOffTrafficWindow",
+            72, "mScreenOffTrafficLimit",
+            73, "mExcludedRoutesFile",
+            74, "mIncludedDomains",
+            75, "mExcludedDomains",
+            76, "mDomainDnsServer",
+    };
+
+    // Fields with embedded files (CA, certificate, key, tls-auth, PKCS12, CRL)
+    private static final Set<Integer> EMBEDDED_FILE_TAGS = new HashSet<>(Arrays.asList(12, 14, 15, 16, 18, 62));
+
+    private static final Object[] CONNECTION_TAGS = {
+            1, "mServerName",
+            2, "mServerPort",
+            3, "mUseUdp",
+            4, "mCustomConfiguration",
+            5, "mUseCustomConfig",
+            6, "mEnabled",
+            7, "mConnectTimeout",
+            8, "mProxyType",
+            9, "mProxyName",
+            10, "mProxyPort",
+            11, "mUseProxyAuth",
+            12, "mProxyAuthUser",
+            13, "mProxyAuthPassword",
+    };
+
+    private static class TaggedField {
+        final int tag;
+        final Field field;
+        final byte type;
+        final boolean embeddedFile;
+
+        TaggedField(int tag, Field field, byte type, boolean embeddedFile) {
+            this.tag = tag;
+            this.field = field;
+            this.type = type;
+            this.embeddedFile = embeddedFile;
+        }
+    }
+
+    private static class Schema {
+        final List<TaggedField> fields = new ArrayList<>();
+        final HashMap<Integer, TaggedField> byTag = new HashMap<>();
+    }
+
+    private static Schema mProfileSchema;
+    private static Schema mConnectionSchema;
+
+    public static void write(VpnProfile profile, OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(MAGIC);
+        dos.writeInt(SCHEMA_VERSION);
+        writeFields(dos, profile, getSchema(VpnProfile.class));
+        dos.flush();
+    }
+
+    public static VpnProfile read(InputStream in) throws IOException {
+        DataInputStream dis = new DataInputStream(in);
+        if (dis.readInt() != MAGIC)
+            throw new IOException("Not a binary VPN profile");
+        int version = dis.readInt();
+        if (version != SCHEMA_VERSION)
+            throw new IOException("Unsupported profile schema version " + version);
+
+        VpnProfile profile = new VpnProfile(null);
+        readFields(dis, profile, getSchema(VpnProfile.class));
+        return profile;
+    }
+
+    /**
+     * @return the embedded file fields of profile that are not null, these have to be in
+     * the {@link BlobStore} before the profile is written
+     */
+    static List<String> getEmbeddedFiles(VpnProfile profile) {
+        List<String> files = new ArrayList<>();
+        for (TaggedField tf : getSchema(VpnProfile.class).fields) {
+            Object value = tf.embeddedFile ? get(tf.field, profile) : null;
+            if (value != null)
+                files.add((String) value);
+        }
+        return files;
+    }
+
+    private static void writeFields(DataOutputStream dos, Object o, Schema schema) throws IOException {
+        // Reused payload buffer, each field is written to it first to know its length
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+        DataOutputStream pos = new DataOutputStream(payload);
+        for (TaggedField tf : schema.fields) {
+            Object value = get(tf.field, o);
+            if (tf.embeddedFile)
+                value = BlobStore.getReference((String) value);
+            payload.reset();
+            writeValue(pos, tf.type, value);
+            pos.flush();
+            dos.writeShort(tf.tag);
+            dos.writeByte(tf.type);
+            dos.writeInt(payload.size());
+            payload.writeTo(dos);
+        }
+        dos.writeShort(END_TAG);
+    }
+
+    private static void writeValue(DataOutputStream pos, byte type, Object value) throws IOException {
+        switch (type) {
+            case TYPE_BOOLEAN:
+                pos.writeBoolean((Boolean) value);
+                break;
+            case TYPE_INT:
+                pos.writeInt((Integer) value);
+                break;
+            case TYPE_LONG:
+                pos.writeLong((Long) value);
+                break;
+            case TYPE_STRING:
+                writeString(pos, (String) value);
+                break;
+            case TYPE_STRINGSET:
+                @SuppressWarnings("unchecked")
+                HashSet<String> set = (HashSet<String>) value;
+                pos.writeInt(set == null ? -1 : set.size());
+                if (set != null)
+                    for (String s : set)
+                        writeString(pos, s);
+                break;
+            case TYPE_UUID:
+                UUID uuid = (UUID) value;
+                pos.writeLong(uuid.getMostSignificantBits());
+                pos.writeLong(uuid.getLeastSignificantBits());
+                break;
+            case TYPE_ENUM:
+                writeString(pos, value == null ? null : ((Enum<?>) value).name());
+                break;
+            case TYPE_CONNECTIONS:
+                Connection[] conns = (Connection[]) value;
+                pos.writeInt(conns.length);
+                for (Connection c : conns)
+                    writeFields(pos, c, getSchema(Connection.class));
+                break;
+        }
+    }
+
+    private static void readFields(DataInputStream dis, Object o, Schema schema) throws IOException {
+        while (true) {
+            int tag = dis.readUnsignedShort();
+            if (tag == END_TAG)
+                return;
+            TaggedField tf = schema.byTag.get(tag);
+            byte type = dis.readByte();
+            int len = dis.readInt();
+
+            // Field of a newer version or one that changed its type
+            if (tf == null || tf.type != type) {
+                skip(dis, len);
+                continue;
+            }
+            Object value = readValue(dis, tf);
+            if (tf.embeddedFile) {
+                // A missing blob stays a reference, generating the config reports it
+                String data = BlobStore.resolve((String) value);
+                if (data != null)
+                    value = data;
+            }
+            set(tf.field, o, value);
+        }
+    }
+
+    private static Object readValue(DataInputStream dis, TaggedField tf) throws IOException {
+        switch (tf.type) {
+            case TYPE_BOOLEAN:
+                return dis.readBoolean();
+            case TYPE_INT:
+                return dis.readInt();
+            case TYPE_LONG:
+                return dis.readLong();
+            case TYPE_STRING:
+                return readString(dis);
+            case TYPE_STRINGSET:
+                int count = dis.readInt();
+                if (count < 0)
+                    return null;
+                HashSet<String> set = new HashSet<>();
+                for (int i = 0; i < count; i++)
+                    set.add(readString(dis));
+                return set;
+            case TYPE_UUID:
+                return new UUID(dis.readLong(), dis.readLong());
+            case TYPE_ENUM:
+                return readEnum(tf.field.getType(), readString(dis));
+            case TYPE_CONNECTIONS:
+                Connection[] conns = new Connection[dis.readInt()];
+                for (int i = 0; i < conns.length; i++) {
+                    conns[i] = new Connection();
+                    readFields(dis, conns[i], getSchema(Connection.class));
+                }
+                return conns;
+            default:
+                throw new IllegalStateException("No decoding for type " + tf.type);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object readEnum(Class<?> t, String name) {
+        if (name == null || !t.isEnum())
+            return null;
+        try {
+            return Enum.valueOf((Class<? extends Enum>) t, name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void writeString(DataOutputStream dos, String s) throws IOException {
+        if (s == null) {
+            dos.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(UTF8);
+        dos.writeInt(b.length);
+        dos.write(b);
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        int len = dis.readInt();
+        if (len < 0)
+            return null;
+        byte[] b = new byte[len];
+        dis.readFully(b);
+        return new String(b, UTF8);
+    }
+
+    private static void skip(DataInputStream dis, int len) throws IOException {
+        while (len > 0) {
+            int skipped = dis.skipBytes(len);
+            if (skipped <= 0)
+                throw new IOException("Truncated profile");
+            len -= skipped;
+        }
+    }
+
+    private static byte typeOf(Class<?> t) {
+        if (t == boolean.class)
+            return TYPE_BOOLEAN;
+        else if (t == int.class)
+            return TYPE_INT;
+        else if (t == long.class)
+            return TYPE_LONG;
+        else if (t == String.class)
+            return TYPE_STRING;
+        else if (t == HashSet.class)
+            return TYPE_STRINGSET;
+        else if (t == UUID.class)
+            return TYPE_UUID;
+        else if (t.isEnum())
+            return TYPE_ENUM;
+        else if (t == Connection[].class)
+            return TYPE_CONNECTIONS;
+        return 0;
+    }
+
+    private static synchronized Schema getSchema(Class<?> cls) {
+        if (cls == VpnProfile.class && mProfileSchema != null)
+            return mProfileSchema;
+        if (cls == Connection.class && mConnectionSchema != null)
+            return mConnectionSchema;
+
+        Object[] tags = cls == VpnProfile.class ? PROFILE_TAGS : CONNECTION_TAGS;
+        Schema schema = new Schema();
+        HashSet<String> names = new HashSet<>();
+        for (int i = 0; i < tags.length; i += 2) {
+            int tag = (Integer) tags[i];
+            String name = (String) tags[i + 1];
+            Field f;
+            try {
+                f = cls.getDeclaredField(name);
+            } catch (NoSuchFieldException e) {
+                throw new IllegalStateException("Tag " + tag + " refers to missing field " + name);
+            }
+            byte type = typeOf(f.getType());
+            if (type == 0)
+                throw new IllegalStateException("Field " + name + " has a type the profile format cannot store: " + f.getType().getName());
+            if (tag <= END_TAG || tag > 0xffff || schema.byTag.containsKey(tag))
+                throw new IllegalStateException("Invalid or duplicate tag " + tag + " for " + name);
+            f.setAccessible(true);
+            TaggedField tf = new TaggedField(tag, f, type,
+                    cls == VpnProfile.class && EMBEDDED_FILE_TAGS.contains(tag));
+            schema.fields.add(tf);
+            schema.byTag.put(tag, tf);
+            names.add(name);
+        }
+
+        for (Field f : getPersistentFields(cls)) {
+            if (!names.contains(f.getName()))
+                throw new IllegalStateException("Field " + f.getName() + " of " + cls.getSimpleName() + " has no tag in ProfileCodec");
+        }
+
+        if (cls == VpnProfile.class)
+            mProfileSchema = schema;
+        else if (cls == Connection.class)
+            mConnectionSchema = schema;
+        return schema;
+    }
+
+    /**
+     * @return the fields that have to be stored, everything that is neither static nor
+     * transient
+     */
+    private static List<Field> getPersistentFields(Class<?> cls) {
+        List<Field> fields = new ArrayList<>();
+        for (Field f : cls.getDeclaredFields()) {
+            int mod = f.getModifiers();
+            if (!Modifier.isStatic(mod) && !Modifier.isTransient(mod) && !f.isSynthetic())
+                fields.add(f);
+        }
+        return fields;
+    }
+
+    private static Object get(Field f, Object o) {
+        try {
+            return f.get(o);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void set(Field f, Object o, Object value) {
+        try {
+            f.set(o, value);
+        } catch (IllegalAccessException | IllegalArgumentException e) {
+            VpnStatus.logError("Could not restore profile field " + f.getName() + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import de.blinkt.openvpn.VpnProfile;
+
+/**
+ * Field by field difference between two converted profiles. Used when the config of an
+ * existing profile changes, to only make the service reload and reconnect for edits that
+ * matter to a running connection.
+ */
+public class ProfileDiff {
+
+    // Identity and bookkeeping of the stored profile, never taken from the new profile
+    private static final Set<String> KEEP_FIELDS = new HashSet<>(Arrays.asList(
+            "mUuid", "mVersion", "mProfileVersion", "mLastUsed", "mAlias", "mTemporaryProfile"));
+
+    // Fields that can change without the running connection noticing, see apply
+    private static final Set<String> NO_RECONNECT_FIELDS = new HashSet<>(Arrays.asList(
+            "mName", "importedProfileHash", "mProfileCreator", "mUserEditable"));
+
+    private static final String CONNECTIONS_FIELD = "mConnections";
+
+    private static List<Field> mProfileFields;
+    private static List<Field> mConnectionFields;
+
+    private final List<String> mChangedFields = new ArrayList<>();
+    private boolean mNeedsReconnect;
+    private VpnProfile mMerged;
+
+    private ProfileDiff() {
+    }
+
+    public static ProfileDiff compute(VpnProfile oldProfile, VpnProfile newProfile) {
+        ProfileDiff diff = new ProfileDiff();
+        for (Field f : getFields(VpnProfile.class)) {
+            if (f.getName().equals(CONNECTIONS_FIELD)) {
+                diff.compareConnections(oldProfile.mConnections, newProfile.mConnections);
+            } else if (!valueEquals(get(f, oldProfile), get(f, newProfile))) {
+                diff.addChange(f.getName(), !NO_RECONNECT_FIELDS.contains(f.getName()));
+            }
+        }
+        return diff;
+    }
+
+    private void compareConnections(Connection[] oldConns, Connection[] newConns) {
+        if (oldConns.length != newConns.length) {
+            addChange(CONNECTIONS_FIELD, true);
+            return;
+        }
+        for (int i = 0; i < oldConns.length; i++) {
+            for (Field f : getFields(Connection.class)) {
+                if (!valueEquals(get(f, oldConns[i]), get(f, newConns[i])))
+                    addChange(CONNECTIONS_FIELD + "[" + i + "]." + f.getName(), true);
+            }
+        }
+    }
+
+    private void addChange(String field, boolean needsReconnect) {
+        mChangedFields.add(field);
+        mNeedsReconnect |= needsReconnect;
+    }
+
+    public boolean isEmpty() {
+        return mChangedFields.isEmpty();
+    }
+
+    /**
+     * @return true if a running connection with the old profile has to be restarted
+     * to pick up the changes
+     */
+    public boolean needsReconnect() {
+        return mNeedsReconnect;
+    }
+
+    public List<String> getChangedFields() {
+        return Collections.unmodifiableList(mChangedFields);
+    }
+
+    /**
+     * @return the profile to store after {@link #apply}
+     */
+    public VpnProfile getMerged() {
+        return mMerged;
+    }
+
+    /**
+     * Merges the changes of newProfile, a freshly converted profile owned by the caller,
+     * with oldProfile. If a reconnect is needed, the merged profile is newProfile with the
+     * identity (UUID, version, keystore alias, ...) of oldProfile; oldProfile is not
+     * touched, a running connection may still use it. Otherwise only the
+     * {@link #NO_RECONNECT_FIELDS} are copied into oldProfile, which stays the profile.
+     * Store the result of {@link #getMerged()} with the {@link ProfileManager}.
+     * <p>
+     * Limitation: a reconnect replaces the whole profile, not only the changed fields.
+     * Unchanged fields have equal values in newProfile, but the transient state of
+     * oldProfile (loaded private key, generated config) is not carried over. The service
+     * loses it as well when it reloads the profile for the new version.
+     */
+    public static ProfileDiff apply(VpnProfile oldProfile, VpnProfile newProfile) {
+        ProfileDiff diff = compute(oldProfile, newProfile);
+        if (diff.needsReconnect()) {
+            newProfile.setUUID(oldProfile.getUUID());
+            newProfile.mVersion = oldProfile.mVersion;
+            newProfile.mLastUsed = oldProfile.mLastUsed;
+            newProfile.mAlias = oldProfile.mAlias;
+            newProfile.mTemporaryProfile = oldProfile.mTemporaryProfile;
+            diff.mMerged = newProfile;
+        } else {
+            // Only read for showing and listing profiles, never by a running connection
+            oldProfile.mName = newProfile.mName;
+            oldProfile.importedProfileHash = newProfile.importedProfileHash;
+            oldProfile.mProfileCreator = newProfile.mProfileCreator;
+            oldProfile.mUserEditable = newProfile.mUserEditable;
+            diff.mMerged = oldProfile;
+        }
+        return diff;
+    }
+
+    private static synchronized List<Field> getFields(Class<?> cls) {
+        if (cls == VpnProfile.class && mProfileFields != null)
+            return mProfileFields;
+        if (cls == Connection.class && mConnectionFields != null)
+            return mConnectionFields;
+
+        List<Field> fields = new ArrayList<>();
+        for (Field f : cls.getDeclaredFields()) {
+            int mod = f.getModifiers();
+            if (Modifier.isStatic(mod) || Modifier.isTransient(mod) || f.isSynthetic()
+                    || KEEP_FIELDS.contains(f.getName()))
+                continue;
+            f.setAccessible(true);
+            fields.add(f);
+        }
+
+        if (cls == VpnProfile.class)
+            mProfileFields = fields;
+        else if (cls == Connection.class)
+            mConnectionFields = fields;
+        return fields;
+    }
+
+    private static boolean valueEquals(Object a, Object b) {
+        if (a == b)
+            return true;
+        if (a == null || b == null)
+            return false;
+        if (a.getClass().isArray() && b.getClass().isArray())
+            return Arrays.deepEquals(new Object[]{a}, new Object[]{b});
+        return a.equals(b);
+    }
+
+    private static Object get(Field f, Object o) {
+        try {
+            return f.get(o);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
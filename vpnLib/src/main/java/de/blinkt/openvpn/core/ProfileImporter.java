@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import de.blinkt.openvpn.VpnProfile;
+
+/**
+ * Bulk import of configs. Parsing and converting is done in parallel on a fork join pool,
+ * the caller then stores all resulting profiles with a single
+ * {@link ProfileManager#addProfiles(android.content.Context, java.util.Collection)}.
+ */
+public class ProfileImporter {
+
+    private static ForkJoinPool mPool;
+
+    public static class Result {
+        public final int index;
+        public final VpnProfile profile;
+        public final Exception error;
+
+        Result(int index, VpnProfile profile, Exception error) {
+            this.index = index;
+            this.profile = profile;
+            this.error = error;
+        }
+
+        public boolean isSuccess() {
+            return profile != null;
+        }
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (mPool == null)
+            mPool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+        return mPool;
+    }
+
+    /**
+     * Parses and converts all configs. A config that fails to parse does not abort the
+     * import, its result carries the error instead of a profile.
+     *
+     * @return one result per config, in the same order as configs
+     */
+    public static List<Result> parseAll(List<String> configs) {
+        List<Callable<Result>> tasks = new ArrayList<>(configs.size());
+        for (int i = 0; i < configs.size(); i++) {
+            final int index = i;
+            final String config = configs.get(i);
+            tasks.add(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return parse(index, config);
+                }
+            });
+        }
+
+        List<Result> results = new ArrayList<>(configs.size());
+        List<Future<Result>> futures = getPool().invokeAll(tasks);
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+            } catch (InterruptedException | ExecutionException e) {
+                results.add(new Result(i, null, e));
+            }
+        }
+        return results;
+    }
+
+    private static Result parse(int index, String config) {
+        try {
+            ConfigParser cp = new ConfigParser();
+            cp.parseConfig(new StringReader(config));
+            return new Result(index, cp.convertProfile(), null);
+        } catch (Exception e) {
+            return new Result(index, null, e);
+        }
+    }
+}
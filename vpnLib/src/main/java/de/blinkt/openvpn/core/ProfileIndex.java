@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import de.blinkt.openvpn.VpnProfile;
+
+/**
+ * Small on disk index of all profiles with the metadata needed to list and find them
+ * without reading the profile bodies.
+ */
+public class ProfileIndex {
+    static final String INDEX_FILENAME = "profiles.idx";
+    private static final int INDEX_MAGIC = 0x4f564958; // "OVIX"
+    private static final int INDEX_VERSION = 1;
+
+    public static class Entry {
+        public final String uuid;
+        public String name;
+        public long lastUsed;
+        public int version;
+        public String creator;
+        public boolean userEditable;
+
+        Entry(String uuid) {
+            this.uuid = uuid;
+        }
+
+        Entry(VpnProfile vp) {
+            this(vp.getUUID().toString());
+            update(vp);
+        }
+
+        void update(VpnProfile vp) {
+            name = vp.mName;
+            lastUsed = vp.mLastUsed;
+            version = vp.mVersion;
+            creator = vp.mProfileCreator;
+            userEditable = vp.mUserEditable;
+        }
+
+        public String getName() {
+            return name == null || name.isEmpty() ? "No profile name" : name;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>();
+    private final HashMap<String, Entry> mByName = new HashMap<>();
+
+    public synchronized Entry get(String uuid) {
+        return mEntries.get(uuid);
+    }
+
+    public synchronized Entry getByName(String name) {
+        return mByName.get(name);
+    }
+
+    public synchronized boolean contains(String uuid) {
+        return mEntries.containsKey(uuid);
+    }
+
+    public synchronized Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(new ArrayList<>(mEntries.values()));
+    }
+
+    public synchronized Set<String> getUuids() {
+        return Collections.unmodifiableSet(new java.util.HashSet<>(mEntries.keySet()));
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    synchronized void put(VpnProfile vp) {
+        String uuid = vp.getUUID().toString();
+        Entry e = mEntries.get(uuid);
+        if (e == null) {
+            e = new Entry(vp);
+            mEntries.put(uuid, e);
+        } else {
+            if (e.name != null && mByName.get(e.name) == e)
+                mByName.remove(e.name);
+            e.update(vp);
+        }
+        if (e.name != null)
+            mByName.put(e.name, e);
+    }
+
+    synchronized void remove(String uuid) {
+        Entry e = mEntries.remove(uuid);
+        if (e != null && e.name != null && mByName.get(e.name) == e)
+            mByName.remove(e.name);
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        mByName.clear();
+    }
+
+    /**
+     * @return false if there is no index on disk or it could not be read
+     */
+    synchronized boolean read(Context context) {
+        clear();
+        DataInputStream in = null;
+        try {
+            byte[] pending = ProfileWriter.getPending(INDEX_FILENAME);
+            if (pending != null)
+                in = new DataInputStream(new ByteArrayInputStream(pending));
+            else
+                in = new DataInputStream(new BufferedInputStream(context.openFileInput(INDEX_FILENAME)));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() > INDEX_VERSION)
+                return false;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry e = new Entry(in.readUTF());
+                e.name = in.readBoolean() ? in.readUTF() : null;
+                e.lastUsed = in.readLong();
+                e.version = in.readInt();
+                e.creator = in.readBoolean() ? in.readUTF() : null;
+                e.userEditable = in.readBoolean();
+                mEntries.put(e.uuid, e);
+                if (e.name != null)
+                    mByName.put(e.name, e);
+            }
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            VpnStatus.logException("Reading profile index", e);
+            clear();
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues the index to be written by the {@link ProfileWriter}
+     */
+    synchronized void write(Context context) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + mEntries.size() * 96);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(mEntries.size());
+            for (Entry e : mEntries.values()) {
+                out.writeUTF(e.uuid);
+                out.writeBoolean(e.name != null);
+                if (e.name != null)
+                    out.writeUTF(e.name);
+                out.writeLong(e.lastUsed);
+                out.writeInt(e.version);
+                out.writeBoolean(e.creator != null);
+                if (e.creator != null)
+                    out.writeUTF(e.creator);
+                out.writeBoolean(e.userEditable);
+            }
+            out.flush();
+        } catch (IOException e) {
+            VpnStatus.logException("Writing profile index", e);
+            return;
+        }
+        ProfileWriter.write(context, INDEX_FILENAME, bytes.toByteArray(), null);
+    }
+}
@@ -5,20 +5,28 @@
 
 package de.blinkt.openvpn.core;
 
-import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
+import java.util.Vector;
 
 import de.blinkt.openvpn.VpnProfile;
 
@@ -29,32 +37,118 @@ public class ProfileManager {
     private static final String TEMPORARY_PROFILE_FILENAME = "temporary-vpn-profile";
     private static ProfileManager instance;
 
+    // Number of profile bodies kept in memory, the others are read again on access
+    private static final int MAX_CACHED_PROFILES = 16;
+    // Waiting for a profile version also rechecks the files in this interval, to catch
+    // writes from other processes that do not notify us
+    private static final long PROFILE_RECHECK_INTERVAL_MS = 500;
+
+    public interface ProfileChangeListener {
+        void onProfileChanged(String uuid, int version);
+    }
+
+    private static final Vector<ProfileChangeListener> mChangeListeners = new Vector<>();
+    private static final Object mChangeLock = new Object();
+    private static long mChangeSequence;
+
     private static VpnProfile mLastConnectedVpn = null;
-    private HashMap<String, VpnProfile> profiles = new HashMap<>();
     private static VpnProfile tmpprofile = null;
 
+    private final Context mContext;
+    private final ProfileIndex mIndex = new ProfileIndex();
+    private final LinkedHashMap<String, VpnProfile> mBodyCache = new LinkedHashMap<String, VpnProfile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, VpnProfile> eldest) {
+            return size() > MAX_CACHED_PROFILES;
+        }
+    };
+    // Profiles added to the list that have not been written yet, must not be evicted
+    private final HashMap<String, VpnProfile> mUnsaved = new HashMap<>();
+
 
     private static VpnProfile get(String key) {
         if (tmpprofile != null && tmpprofile.getUUIDString().equals(key))
             return tmpprofile;
 
-        if (instance == null)
+        if (instance == null || key == null)
             return null;
-        return instance.profiles.get(key);
+        return instance.getProfileBody(key);
 
     }
 
 
-    private ProfileManager() {
+    private ProfileManager(Context context) {
+        mContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        BlobStore.init(mContext);
     }
 
     private static void checkInstance(Context context) {
         if (instance == null) {
-            instance = new ProfileManager();
+            instance = new ProfileManager(context);
             instance.loadVPNList(context);
         }
     }
 
+    /**
+     * Drops the cached profile bodies if the system is low on memory. They are read
+     * from disk again on the next access.
+     */
+    public static void onTrimMemory(int level) {
+        if (instance != null && level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            synchronized (instance) {
+                instance.mBodyCache.clear();
+            }
+        }
+    }
+
+    // Profile objects are replaced whenever a profile is read again, compare UUIDs instead
+    private static boolean isSameProfile(VpnProfile a, VpnProfile b) {
+        return a != null && b != null && a.getUUID() != null && a.getUUID().equals(b.getUUID());
+    }
+
+    private synchronized VpnProfile getProfileBody(String uuid) {
+        VpnProfile vp = mUnsaved.get(uuid);
+        // The last connected profile is never evicted, the service and the API have to
+        // keep seeing the same object
+        if (vp == null && mLastConnectedVpn != null && uuid.equals(mLastConnectedVpn.getUUIDString())
+                && mIndex.contains(uuid))
+            vp = mLastConnectedVpn;
+        if (vp == null)
+            vp = mBodyCache.get(uuid);
+        if (vp != null || !mIndex.contains(uuid))
+            return vp;
+
+        try {
+            vp = readProfile(mContext, uuid);
+        } catch (IOException | ClassNotFoundException e) {
+            VpnStatus.logException("Loading VPN profile", e);
+            return null;
+        }
+        if (vp == null || vp.getUUID() == null)
+            return null;
+        vp.upgradeProfile();
+        // Last used is only updated in the index, see updateLRU
+        ProfileIndex.Entry entry = mIndex.get(uuid);
+        if (entry != null && entry.lastUsed > vp.mLastUsed)
+            vp.mLastUsed = entry.lastUsed;
+        cacheBody(uuid, vp);
+        return vp;
+    }
+
+    // A newer object of the last connected profile replaces the pinned one
+    private void cacheBody(String uuid, VpnProfile vp) {
+        mBodyCache.put(uuid, vp);
+        if (isSameProfile(mLastConnectedVpn, vp))
+            mLastConnectedVpn = vp;
+    }
+
+    /**
+     * @return the metadata of all profiles without reading the profiles themselves
+     */
+    public Collection<ProfileIndex.Entry> getProfileIndex() {
+        return mIndex.getEntries();
+    }
+
     synchronized public static ProfileManager getInstance(Context context) {
         checkInstance(context);
         return instance;
@@ -95,23 +189,33 @@ public class ProfileManager {
     }
 
 
+    /**
+     * Returns all profiles. This reads every profile that is not cached, use
+     * {@link #getProfileIndex()} if only names or UUIDs are needed.
+     */
     public Collection<VpnProfile> getProfiles() {
-        return profiles.values();
+        List<VpnProfile> all = new ArrayList<>();
+        for (String uuid : mIndex.getUuids()) {
+            VpnProfile vp = getProfileBody(uuid);
+            if (vp != null)
+                all.add(vp);
+        }
+        return all;
     }
 
     public VpnProfile getProfileByName(String name) {
-        for (VpnProfile vpnp : profiles.values()) {
-            if (vpnp.getName().equals(name)) {
-                return vpnp;
-            }
-        }
-        return null;
+        ProfileIndex.Entry entry = mIndex.getByName(name);
+        if (entry == null)
+            return null;
+        return getProfileBody(entry.uuid);
     }
 
     public void saveProfileList(Context context) {
+        mIndex.write(context);
+
         SharedPreferences sharedprefs = Preferences.getSharedPreferencesMulti(PREFS_NAME, context);
         Editor editor = sharedprefs.edit();
-        editor.putStringSet("vpnlist", profiles.keySet());
+        editor.putStringSet("vpnlist", mIndex.getUuids());
 
         // For reasing I do not understand at all
         // Android saves my prefs file only one time
@@ -122,9 +226,69 @@ public class ProfileManager {
 
     }
 
-    public void addProfile(VpnProfile profile) {
-        profiles.put(profile.getUUID().toString(), profile);
+    public synchronized void addProfile(VpnProfile profile) {
+        String uuid = profile.getUUID().toString();
+        mIndex.put(profile);
+        mBodyCache.remove(uuid);
+        mUnsaved.put(uuid, profile);
+        if (isSameProfile(mLastConnectedVpn, profile))
+            mLastConnectedVpn = profile;
+
+    }
+
+    // Keeps index and cache in sync after a profile of the list has been written
+    private synchronized void profileSaved(VpnProfile profile) {
+        String uuid = profile.getUUID().toString();
+        if (!mIndex.contains(uuid))
+            return;
+        mIndex.put(profile);
+        mUnsaved.remove(uuid);
+        cacheBody(uuid, profile);
+    }
 
+    public int addProfiles(Context context, Collection<VpnProfile> newProfiles) {
+        return addProfiles(context, newProfiles, true);
+    }
+
+    /**
+     * Adds and saves all profiles and writes the profile list only once afterwards. The
+     * profiles are written in the background but this waits until they are on disk.
+     * Profiles that could not be written are not added to the list.
+     *
+     * @param updateVersion false if the changes do not require the service to reload the profiles
+     * @return number of profiles that were saved
+     */
+    public int addProfiles(Context context, Collection<VpnProfile> newProfiles, boolean updateVersion) {
+        LinkedHashMap<String, VpnProfile> queued = new LinkedHashMap<>();
+        for (VpnProfile profile : newProfiles) {
+            try {
+                saveProfile(context, profile, updateVersion, false);
+            } catch (RuntimeException e) {
+                continue;
+            }
+            queued.put(profile.getUUID().toString() + ProfileCodec.FILE_EXTENSION, profile);
+        }
+
+        Set<String> failed;
+        try {
+            failed = ProfileWriter.await(queued.keySet());
+        } catch (InterruptedException e) {
+            // The writes stay queued and are read back from the queue until done
+            Thread.currentThread().interrupt();
+            failed = new HashSet<>();
+        }
+
+        int saved = 0;
+        for (Map.Entry<String, VpnProfile> e : queued.entrySet()) {
+            if (failed.contains(e.getKey()))
+                continue;
+            addProfile(e.getValue());
+            profileSaved(e.getValue());
+            saved++;
+        }
+        if (saved > 0)
+            saveProfileList(context);
+        return saved;
     }
 
     public static void setTemporaryProfile(Context c, VpnProfile tmp) {
@@ -133,52 +297,133 @@ public class ProfileManager {
         saveProfile(c, tmp, true, true);
     }
 
+    public synchronized static void addProfileChangeListener(ProfileChangeListener listener) {
+        mChangeListeners.add(listener);
+    }
+
+    public synchronized static void removeProfileChangeListener(ProfileChangeListener listener) {
+        mChangeListeners.remove(listener);
+    }
+
+    private static void notifyProfileChanged(VpnProfile profile) {
+        synchronized (mChangeLock) {
+            mChangeSequence++;
+            mChangeLock.notifyAll();
+        }
+        String uuid = profile.getUUIDString();
+        for (ProfileChangeListener listener : new Vector<>(mChangeListeners))
+            listener.onProfileChanged(uuid, profile.mVersion);
+    }
+
     public static boolean isTempProfile() {
-        return mLastConnectedVpn != null && mLastConnectedVpn  == tmpprofile;
+        return isSameProfile(mLastConnectedVpn, tmpprofile);
     }
 
     public void saveProfile(Context context, VpnProfile profile) {
         saveProfile(context, profile, true, false);
+        profileSaved(profile);
+        mIndex.write(context);
     }
 
     private static void saveProfile(Context context, VpnProfile profile, boolean updateVersion, boolean isTemporary) {
 
         if (updateVersion)
             profile.mVersion += 1;
-        ObjectOutputStream vpnFile;
 
-        String filename = profile.getUUID().toString() + ".vp";
+        String vpnentry = profile.getUUID().toString();
         if (isTemporary)
-            filename = TEMPORARY_PROFILE_FILENAME + ".vp";
+            vpnentry = TEMPORARY_PROFILE_FILENAME;
 
+        BlobStore.init(context);
         try {
-            vpnFile = new ObjectOutputStream(context.openFileOutput(filename, Activity.MODE_PRIVATE));
-
-            vpnFile.writeObject(profile);
-            vpnFile.flush();
-            vpnFile.close();
+            // The written profile refers to its embedded files, they have to be on disk first
+            for (String data : ProfileCodec.getEmbeddedFiles(profile))
+                BlobStore.storeIfEmbedded(data);
+            ByteArrayOutputStream vpnFile = new ByteArrayOutputStream(4096);
+            ProfileCodec.write(profile, vpnFile);
+            // Once written in the binary format the old serialized version is no longer needed
+            ProfileWriter.write(context, vpnentry + ProfileCodec.FILE_EXTENSION, vpnFile.toByteArray(), vpnentry + ".vp");
         } catch (IOException e) {
             VpnStatus.logException("saving VPN profile", e);
             throw new RuntimeException(e);
         }
+        // The previous version may have been the last one using an embedded file
+        BlobStore.sweepLater();
+        if (updateVersion)
+            notifyProfileChanged(profile);
+    }
+
+    /**
+     * Reads a profile from its binary file or, for profiles written by older versions,
+     * from the Java serialized .vp file. The latter is converted to the binary format.
+     */
+    private static VpnProfile readProfile(Context context, String vpnentry) throws IOException, ClassNotFoundException {
+        byte[] pending = ProfileWriter.getPending(vpnentry + ProfileCodec.FILE_EXTENSION);
+        if (pending != null)
+            return ProfileCodec.read(new ByteArrayInputStream(pending));
+
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(context.openFileInput(vpnentry + ProfileCodec.FILE_EXTENSION));
+            return ProfileCodec.read(in);
+        } catch (FileNotFoundException ignored) {
+        } finally {
+            if (in != null)
+                in.close();
+        }
+
+        VpnProfile vp;
+        ObjectInputStream vpnfile = new ObjectInputStream(new BufferedInputStream(context.openFileInput(vpnentry + ".vp")));
+        try {
+            vp = ((VpnProfile) vpnfile.readObject());
+        } finally {
+            vpnfile.close();
+        }
+
+        if (vp != null && vp.mName != null && vp.getUUID() != null) {
+            try {
+                saveProfile(context, vp, false, vpnentry.equals(TEMPORARY_PROFILE_FILENAME));
+            } catch (RuntimeException e) {
+                // Keep using the old file, already logged
+            }
+        }
+        return vp;
     }
 
 
-    private void loadVPNList(Context context) {
-        profiles = new HashMap<>();
+    /**
+     * Loads the profile index. Profile bodies are only read for profiles that are missing
+     * from the index (e.g. the first start after an upgrade), all others are read on
+     * first access.
+     */
+    private synchronized void loadVPNList(Context context) {
+        mBodyCache.clear();
+        boolean indexValid = mIndex.read(context);
+
         SharedPreferences listpref = Preferences.getSharedPreferencesMulti(PREFS_NAME, context);
         Set<String> vlist = listpref.getStringSet("vpnlist", null);
         if (vlist == null) {
             vlist = new HashSet<>();
         }
+
+        boolean indexChanged = !indexValid;
+        for (String uuid : mIndex.getUuids()) {
+            if (!vlist.contains(uuid) && !mUnsaved.containsKey(uuid)) {
+                mIndex.remove(uuid);
+                indexChanged = true;
+            }
+        }
+
         // Always try to load the temporary profile
-        vlist.add(TEMPORARY_PROFILE_FILENAME);
+        Set<String> toRead = new HashSet<>();
+        toRead.add(TEMPORARY_PROFILE_FILENAME);
+        for (String uuid : vlist)
+            if (!mIndex.contains(uuid))
+                toRead.add(uuid);
 
-        for (String vpnentry : vlist) {
-            ObjectInputStream vpnfile=null;
+        for (String vpnentry : toRead) {
             try {
-                 vpnfile = new ObjectInputStream(context.openFileInput(vpnentry + ".vp"));
-                VpnProfile vp = ((VpnProfile) vpnfile.readObject());
+                VpnProfile vp = readProfile(context, vpnentry);
 
                 // Sanity check
                 if (vp == null || vp.mName == null || vp.getUUID() == null)
@@ -188,63 +433,146 @@ public class ProfileManager {
                 if (vpnentry.equals(TEMPORARY_PROFILE_FILENAME)) {
                     tmpprofile = vp;
                 } else {
-                    profiles.put(vp.getUUID().toString(), vp);
+                    mIndex.put(vp);
+                    cacheBody(vp.getUUID().toString(), vp);
+                    indexChanged = true;
                 }
 
 
             } catch (IOException | ClassNotFoundException e) {
                 if (!vpnentry.equals(TEMPORARY_PROFILE_FILENAME))
                     VpnStatus.logException("Loading VPN List", e);
-            } finally {
-                if (vpnfile!=null) {
-                    try {
-                        vpnfile.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
             }
         }
+
+        if (indexChanged)
+            mIndex.write(context);
     }
 
 
     public void removeProfile(Context context, VpnProfile profile) {
-        String vpnentry = profile.getUUID().toString();
-        profiles.remove(vpnentry);
+        deleteProfile(context, profile);
         saveProfileList(context);
+    }
+
+    public void removeProfiles(Context context, Collection<VpnProfile> oldProfiles) {
+        if (oldProfiles.isEmpty())
+            return;
+        for (VpnProfile profile : oldProfiles)
+            deleteProfile(context, profile);
+        saveProfileList(context);
+    }
+
+    /**
+     * Removes a profile from memory and disk, the caller writes the profile list
+     */
+    private void deleteProfile(Context context, VpnProfile profile) {
+        String vpnentry = profile.getUUID().toString();
+        forget(vpnentry);
+        ProfileWriter.cancel(vpnentry + ProfileCodec.FILE_EXTENSION);
+        context.deleteFile(vpnentry + ProfileCodec.FILE_EXTENSION);
         context.deleteFile(vpnentry + ".vp");
-        if (mLastConnectedVpn == profile)
+        BlobStore.sweepLater();
+        if (isSameProfile(mLastConnectedVpn, profile))
             mLastConnectedVpn = null;
+    }
 
+    private synchronized void forget(String uuid) {
+        mIndex.remove(uuid);
+        mBodyCache.remove(uuid);
+        mUnsaved.remove(uuid);
     }
 
     public static VpnProfile get(Context context, String profileUUID) {
         return get(context, profileUUID, 0, 10);
     }
 
+    /**
+     * Returns the profile with at least the requested version. If it is not there yet,
+     * blocks until a writer reports a change or at most tries * 100 ms. While waiting
+     * only the requested profile is read again, not the whole list.
+     */
     public static VpnProfile get(Context context, String profileUUID, int version, int tries) {
         checkInstance(context);
+        long start = System.currentTimeMillis();
+        long deadline = start + tries * 100L;
+
+        long seq;
+        synchronized (mChangeLock) {
+            seq = mChangeSequence;
+        }
         VpnProfile profile = get(profileUUID);
-        int tried = 0;
-        while ((profile == null || profile.mVersion < version) && (tried++ < tries)) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException ignored) {
+
+        while (profile == null || profile.mVersion < version) {
+            long now = System.currentTimeMillis();
+            if (now >= deadline)
+                break;
+
+            synchronized (mChangeLock) {
+                if (seq == mChangeSequence) {
+                    try {
+                        mChangeLock.wait(Math.min(deadline - now, PROFILE_RECHECK_INTERVAL_MS));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                seq = mChangeSequence;
             }
-            instance.loadVPNList(context);
             profile = get(profileUUID);
-            int ver = profile == null ? -1 : profile.mVersion;
+            if (profile == null || profile.mVersion < version) {
+                instance.reloadProfile(context, profileUUID);
+                profile = get(profileUUID);
+            }
         }
 
-        if (tried > 5)
-
-        {
+        long waited = System.currentTimeMillis() - start;
+        if (waited > 500) {
             int ver = profile == null ? -1 : profile.mVersion;
-            VpnStatus.logError(String.format(Locale.US, "Used x %d tries to get current version (%d/%d) of the profile", tried, ver, version));
+            VpnStatus.logError(String.format(Locale.US, "Waited %d ms to get current version (%d/%d) of the profile", waited, ver, version));
         }
         return profile;
     }
 
+    /**
+     * Reads a single profile (or the temporary profile) from disk again, for changes
+     * written by another process.
+     */
+    private synchronized void reloadProfile(Context context, String uuid) {
+        if (uuid == null)
+            return;
+
+        boolean isTemporary = tmpprofile != null && tmpprofile.getUUIDString().equals(uuid);
+        if (isTemporary || !mIndex.contains(uuid)) {
+            try {
+                VpnProfile tmp = readProfile(context, TEMPORARY_PROFILE_FILENAME);
+                if (tmp != null && tmp.getUUID() != null && tmp.getUUIDString().equals(uuid)) {
+                    tmp.upgradeProfile();
+                    tmpprofile = tmp;
+                    if (isSameProfile(mLastConnectedVpn, tmp))
+                        mLastConnectedVpn = tmp;
+                    return;
+                }
+            } catch (IOException | ClassNotFoundException ignored) {
+                // No temporary profile
+            }
+        }
+
+        if (mUnsaved.containsKey(uuid))
+            return;
+
+        try {
+            VpnProfile vp = readProfile(context, uuid);
+            if (vp == null || vp.getUUID() == null)
+                return;
+            vp.upgradeProfile();
+            mIndex.put(vp);
+            cacheBody(uuid, vp);
+        } catch (IOException | ClassNotFoundException ignored) {
+            // Not written yet
+        }
+    }
+
     public static VpnProfile getLastConnectedVpn() {
         return mLastConnectedVpn;
     }
@@ -260,8 +588,15 @@ public class ProfileManager {
 
     public static void updateLRU(Context c, VpnProfile profile) {
         profile.mLastUsed = System.currentTimeMillis();
-        // LRU does not change the profile, no need for the service to refresh
-        if (profile!=tmpprofile)
-            saveProfile(c, profile, false, false);
+        // LRU does not change the profile, no need for the service to refresh and
+        // no need to rewrite the profile itself, the index is enough
+        if (!isSameProfile(profile, tmpprofile)) {
+            if (instance != null && instance.mIndex.contains(profile.getUUID().toString())) {
+                instance.mIndex.put(profile);
+                instance.mIndex.write(c);
+            } else {
+                saveProfile(c, profile, false, false);
+            }
+        }
     }
 }
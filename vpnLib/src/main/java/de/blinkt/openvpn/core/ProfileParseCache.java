@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.blinkt.openvpn.VpnProfile;
+
+/**
+ * Small LRU cache of converted profiles keyed by a hash of the config text. Reconnects
+ * and scheduled connects hand us the same config string again and again, there is no
+ * need to run the parser, the converter and checkProfile every time.
+ * <p>
+ * Callers always get their own copy of the profile, the cached instance is never handed out.
+ */
+public class ProfileParseCache {
+    private static final int DEFAULT_MAX_ENTRIES = 8;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static int mMaxEntries = DEFAULT_MAX_ENTRIES;
+    private static long mHits;
+    private static long mMisses;
+
+    private static final LinkedHashMap<String, Entry> mCache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > mMaxEntries;
+        }
+    };
+
+    private static class Entry {
+        final VpnProfile profile;
+        // checkProfile result, only valid for the OpenVPN flavour it was computed for
+        int checkResult;
+        boolean checkedWithOpenVPN3;
+        boolean checked;
+
+        Entry(VpnProfile profile) {
+            this.profile = profile;
+        }
+    }
+
+    public static class ParsedProfile {
+        public final VpnProfile profile;
+        public final int checkResult;
+
+        ParsedProfile(VpnProfile profile, int checkResult) {
+            this.profile = profile;
+            this.checkResult = checkResult;
+        }
+    }
+
+    /**
+     * Parses and converts config (or takes the result from the cache) and checks the
+     * resulting profile.
+     *
+     * @return a private copy of the converted profile with a fresh UUID together with the
+     * result of {@link VpnProfile#checkProfile(Context)}
+     */
+    public static ParsedProfile get(Context context, String config) throws IOException, ConfigParser.ConfigParseError {
+        String key = hashConfig(config);
+        boolean useOpenVPN3 = VpnProfile.doUseOpenVPN3(context);
+
+        Entry entry;
+        synchronized (ProfileParseCache.class) {
+            entry = key == null ? null : mCache.get(key);
+            if (entry != null)
+                mHits++;
+            else
+                mMisses++;
+        }
+
+        if (entry == null) {
+            ConfigParser cp = new ConfigParser();
+            cp.parseConfig(new StringReader(config));
+            entry = new Entry(cp.convertProfile());
+            if (key != null) {
+                synchronized (ProfileParseCache.class) {
+                    mCache.put(key, entry);
+                }
+            }
+        }
+
+        int checkResult;
+        synchronized (entry) {
+            if (!entry.checked || entry.checkedWithOpenVPN3 != useOpenVPN3) {
+                entry.checkResult = entry.profile.checkProfile(context, useOpenVPN3);
+                entry.checkedWithOpenVPN3 = useOpenVPN3;
+                entry.checked = true;
+            }
+            checkResult = entry.checkResult;
+        }
+        return new ParsedProfile(entry.profile.copy(entry.profile.mName), checkResult);
+    }
+
+    public static synchronized void setMaxEntries(int maxEntries) {
+        mMaxEntries = Math.max(1, maxEntries);
+        while (mCache.size() > mMaxEntries)
+            mCache.remove(mCache.keySet().iterator().next());
+    }
+
+    public static synchronized void clear() {
+        mCache.clear();
+    }
+
+    public static synchronized long getHits() {
+        return mHits;
+    }
+
+    public static synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public static synchronized int size() {
+        return mCache.size();
+    }
+
+    private static String hashConfig(String config) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(config.getBytes(UTF8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Without a hash we just do not cache
+            VpnStatus.logException(e);
+            return null;
+        }
+    }
+}
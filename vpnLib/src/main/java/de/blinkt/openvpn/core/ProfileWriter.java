@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Single background writer for profile and index files. Writes of the same file that
+ * are queued while an earlier one is still pending are coalesced, only the newest
+ * content is written. Files are written to a temporary file, synced and then renamed
+ * over the old file, so a crash never leaves a half written profile behind. Failed writes
+ * are logged on the writer thread; callers that have to know use {@link #await}.
+ */
+class ProfileWriter {
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static class PendingWrite {
+        final byte[] data;
+        final String obsoleteFile;
+
+        PendingWrite(byte[] data, String obsoleteFile) {
+            this.data = data;
+            this.obsoleteFile = obsoleteFile;
+        }
+    }
+
+    private static final LinkedHashMap<String, PendingWrite> mPending = new LinkedHashMap<>();
+    private static File mFilesDir;
+    private static Thread mWriterThread;
+    private static boolean mWriting;
+    private static String mCurrentFile;
+    // Files whose last write failed, until they are queued again
+    private static final HashSet<String> mFailed = new HashSet<>();
+
+    /**
+     * Queues data to be written to filename in the app's files directory.
+     *
+     * @param obsoleteFile file to delete once data has been written or null
+     */
+    static void write(Context context, String filename, byte[] data, String obsoleteFile) {
+        synchronized (mPending) {
+            if (mFilesDir == null)
+                mFilesDir = context.getFilesDir();
+            // Remove and put again to keep the queue in order of the last write
+            mPending.remove(filename);
+            mPending.put(filename, new PendingWrite(data, obsoleteFile));
+            mFailed.remove(filename);
+            if (mWriterThread == null) {
+                mWriterThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeLoop();
+                    }
+                }, "OpenVPNProfileWriter");
+                mWriterThread.setDaemon(true);
+                mWriterThread.start();
+            }
+            mPending.notifyAll();
+        }
+    }
+
+    /**
+     * @return content queued but not yet written for filename or null
+     */
+    static byte[] getPending(String filename) {
+        synchronized (mPending) {
+            PendingWrite pw = mPending.get(filename);
+            return pw == null ? null : pw.data;
+        }
+    }
+
+    /**
+     * Drops a queued write, e.g. because the file is going to be deleted. If the file is
+     * being written right now, waits for that write to finish.
+     */
+    static void cancel(String filename) {
+        synchronized (mPending) {
+            mPending.remove(filename);
+            mFailed.remove(filename);
+            while (mWriting && filename.equals(mCurrentFile)) {
+                try {
+                    mPending.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Blocks until everything queued so far has been written
+     */
+    static void flush() throws InterruptedException {
+        synchronized (mPending) {
+            while (!mPending.isEmpty() || mWriting)
+                mPending.wait();
+        }
+    }
+
+    /**
+     * Blocks until the queued writes of filenames have been done
+     *
+     * @return the files of filenames that could not be written
+     */
+    static Set<String> await(Collection<String> filenames) throws InterruptedException {
+        synchronized (mPending) {
+            while (true) {
+                boolean busy = false;
+                for (String filename : filenames) {
+                    if (mPending.containsKey(filename) || (mWriting && filename.equals(mCurrentFile))) {
+                        busy = true;
+                        break;
+                    }
+                }
+                if (!busy)
+                    break;
+                mPending.wait();
+            }
+            Set<String> failed = new HashSet<>();
+            for (String filename : filenames)
+                if (mFailed.contains(filename))
+                    failed.add(filename);
+            return failed;
+        }
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            String filename;
+            PendingWrite pw;
+            synchronized (mPending) {
+                mWriting = false;
+                mCurrentFile = null;
+                mPending.notifyAll();
+                while (mPending.isEmpty()) {
+                    try {
+                        mPending.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                Iterator<Map.Entry<String, PendingWrite>> it = mPending.entrySet().iterator();
+                Map.Entry<String, PendingWrite> next = it.next();
+                it.remove();
+                filename = next.getKey();
+                pw = next.getValue();
+                mWriting = true;
+                mCurrentFile = filename;
+            }
+
+            boolean failed = false;
+            try {
+                writeAtomic(mFilesDir, filename, pw.data);
+                if (pw.obsoleteFile != null)
+                    //noinspection ResultOfMethodCallIgnored
+                    new File(mFilesDir, pw.obsoleteFile).delete();
+            } catch (IOException e) {
+                VpnStatus.logException("Writing " + filename, e);
+                failed = true;
+            }
+            synchronized (mPending) {
+                // Queued again in the meantime, the new write decides
+                if (failed && !mPending.containsKey(filename))
+                    mFailed.add(filename);
+            }
+        }
+    }
+
+    static void writeAtomic(File dir, String filename, byte[] data) throws IOException {
+        File target = new File(dir, filename);
+        File tmp = new File(dir, filename + TMP_SUFFIX);
+
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            fos.write(data);
+            fos.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        if (!tmp.renameTo(target)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + target);
+        }
+        syncDirectory(target.getParentFile());
+    }
+
+    // The rename is only durable once the directory entry has been synced as well
+    private static void syncDirectory(File dir) throws IOException {
+        FileDescriptor fd = null;
+        try {
+            fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+            Os.fsync(fd);
+        } catch (ErrnoException e) {
+            // Some file systems cannot sync directories, nothing more can be done there
+            if (e.errno != OsConstants.EINVAL)
+                throw new IOException("Could not sync " + dir, e);
+        } finally {
+            if (fd != null) {
+                try {
+                    Os.close(fd);
+                } catch (ErrnoException ignored) {
+                }
+            }
+        }
+    }
+}
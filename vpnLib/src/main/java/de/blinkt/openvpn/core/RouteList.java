@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compact list of IPv4 networks for very large route lists (e.g. tens of thousands of
+ * excluded networks). Networks are kept as packed longs instead of strings and are added
+ * to a {@link NetworkSpace} in one pass.
+ * <p>
+ * Lists can be read from text (networks as a.b.c.d/len or a.b.c.d separated by whitespace)
+ * or from the binary form written by {@link #write(File)}: magic, count and then four
+ * address bytes and one prefix length byte per network.
+ */
+public class RouteList {
+    private static final int MAGIC = 0x4f56524c; // "OVRL"
+    private static final int RECORD_SIZE = 5;
+
+    // address << 8 | prefix length
+    private long[] mRoutes;
+    private int mSize;
+
+    public RouteList() {
+        this(16);
+    }
+
+    private RouteList(int capacity) {
+        mRoutes = new long[Math.max(capacity, 1)];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getAddress(int i) {
+        return mRoutes[i] >>> 8;
+    }
+
+    public int getPrefixLength(int i) {
+        return (int) (mRoutes[i] & 0xff);
+    }
+
+    public void add(long address, int len) {
+        if (len < 0 || len > 32)
+            throw new IllegalArgumentException("Invalid prefix length " + len);
+        if (mSize == mRoutes.length)
+            mRoutes = Arrays.copyOf(mRoutes, mSize * 2);
+        // Host bits are cleared like CIDRIP.normalise does for pushed routes
+        long mask = (0xffffffffL << (32 - len)) & 0xffffffffL;
+        mRoutes[mSize++] = ((address & mask) << 8) | len;
+    }
+
+    public void addAll(RouteList other) {
+        if (mSize + other.mSize > mRoutes.length)
+            mRoutes = Arrays.copyOf(mRoutes, mSize + other.mSize);
+        System.arraycopy(other.mRoutes, 0, mRoutes, mSize, other.mSize);
+        mSize += other.mSize;
+    }
+
+    /**
+     * Adds all networks to space
+     */
+    void addTo(NetworkSpace space, boolean include) {
+        for (int i = 0; i < mSize; i++)
+            space.addIP(getAddress(i), getPrefixLength(i), include);
+    }
+
+    /**
+     * Parses whitespace separated networks without splitting the input into strings.
+     *
+     * @return the parsed list or null if routes contains anything but IPv4 networks
+     */
+    public static RouteList parse(CharSequence routes) {
+        RouteList list = new RouteList(Math.max(16, routes.length() / 16));
+        int len = routes.length();
+        int pos = 0;
+        while (pos < len) {
+            char c = routes.charAt(pos);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                pos++;
+                continue;
+            }
+
+            int start = pos;
+            int slash = -1;
+            while (pos < len && !Character.isWhitespace(c = routes.charAt(pos))) {
+                if (c == '/' && slash < 0)
+                    slash = pos;
+                pos++;
+            }
+
+            long address = IpCodec.parseIPv4(routes, start, slash < 0 ? pos : slash);
+            if (address < 0)
+                return null;
+
+            int prefix = 32;
+            if (slash >= 0) {
+                int digits = pos - slash - 1;
+                if (digits < 1 || digits > 2)
+                    return null;
+                prefix = 0;
+                for (int i = slash + 1; i < pos; i++) {
+                    char d = routes.charAt(i);
+                    if (d < '0' || d > '9')
+                        return null;
+                    prefix = prefix * 10 + d - '0';
+                }
+                if (prefix > 32)
+                    return null;
+            }
+
+            list.add(address, prefix);
+        }
+        return list;
+    }
+
+    /**
+     * Reads a route list in binary or text form
+     */
+    public static RouteList read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int pos = 0;
+            while (pos < data.length) {
+                int read = in.read(data, pos, data.length - pos);
+                if (read < 0)
+                    break;
+                pos += read;
+            }
+            if (pos != data.length)
+                throw new IOException("Short read of route list " + file);
+        } finally {
+            in.close();
+        }
+
+        if (data.length >= 8 && readInt(data, 0) == MAGIC) {
+            int count = readInt(data, 4);
+            if (count < 0 || data.length < 8 + (long) count * RECORD_SIZE)
+                throw new IOException("Truncated route list " + file);
+            RouteList list = new RouteList(count);
+            for (int i = 0, off = 8; i < count; i++, off += RECORD_SIZE)
+                list.add(readInt(data, off) & 0xffffffffL, data[off + 4]);
+            return list;
+        }
+
+        RouteList list = parse(new String(data, "US-ASCII"));
+        if (list == null)
+            throw new IOException("Route list " + file + " contains invalid networks");
+        return list;
+    }
+
+    /**
+     * Writes the list in binary form, atomically replacing file
+     */
+    public void write(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + mSize * RECORD_SIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(mSize);
+        for (int i = 0; i < mSize; i++) {
+            out.writeInt((int) getAddress(i));
+            out.writeByte(getPrefixLength(i));
+        }
+        out.flush();
+        ProfileWriter.writeAtomic(file.getParentFile(), file.getName(), bytes.toByteArray());
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+}
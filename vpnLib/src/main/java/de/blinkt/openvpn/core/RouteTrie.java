@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.util.Collection;
+
+import de.blinkt.openvpn.core.NetworkSpace.IpAddress;
+
+/**
+ * Path compressed binary (Patricia) trie of included and excluded networks of one
+ * address family. Every address takes the state of the most specific network covering
+ * it. {@link #resolve(Collection)} emits the smallest set of non overlapping networks that
+ * describes this in one traversal, without splitting networks in a queue.
+ */
+class RouteTrie {
+    private static final byte NONE = 0;
+    private static final byte INCLUDED = 1;
+    private static final byte EXCLUDED = 2;
+
+    private static class Node {
+        final long hi;
+        final long lo;
+        final int len;
+        byte state;
+        // Bit mask of the states (1 << state) of all nodes below this one
+        int below;
+        final Node[] child = new Node[2];
+
+        Node(long hi, long lo, int len, byte state) {
+            this.hi = hi;
+            this.lo = lo;
+            this.len = len;
+            this.state = state;
+        }
+    }
+
+    private final boolean mIsV4;
+    private final int mBits;
+    private Node mRoot;
+    private int mSize;
+
+    RouteTrie(boolean isV4) {
+        mIsV4 = isV4;
+        mBits = isV4 ? 32 : 128;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Adds a network. If the same network was already added, the first state wins.
+     */
+    void add(IpAddress ip) {
+        byte state = ip.included ? INCLUDED : EXCLUDED;
+        mRoot = insert(mRoot, ip.firstHi, ip.firstLo, ip.networkMask, state);
+    }
+
+    /**
+     * Adds the resolved networks, sorted, to result
+     */
+    void resolve(Collection<IpAddress> result) {
+        if (mRoot == null)
+            return;
+        updateBelow(mRoot);
+        resolve(0, 0, 0, NONE, mRoot, result);
+    }
+
+    private Node insert(Node n, long hi, long lo, int len, byte state) {
+        if (n == null) {
+            mSize++;
+            return new Node(hi, lo, len, state);
+        }
+
+        int common = Math.min(commonPrefix(n.hi, n.lo, hi, lo), Math.min(n.len, len));
+        if (common == n.len && common == len) {
+            if (n.state == NONE) {
+                n.state = state;
+                mSize++;
+            }
+            return n;
+        } else if (common == n.len) {
+            // New network is below n
+            int b = bit(hi, lo, n.len);
+            n.child[b] = insert(n.child[b], hi, lo, len, state);
+            return n;
+        }
+
+        mSize++;
+        Node leaf = new Node(hi, lo, len, state);
+        if (common == len) {
+            // New network covers n
+            leaf.child[bit(n.hi, n.lo, len)] = n;
+            return leaf;
+        }
+
+        // Both differ after common bits, join them below a new inner node
+        Node inner = new Node(hi & ~hostMaskHi(common), lo & ~hostMaskLo(common), common, NONE);
+        inner.child[bit(hi, lo, common)] = leaf;
+        inner.child[bit(n.hi, n.lo, common)] = n;
+        return inner;
+    }
+
+    private static int updateBelow(Node n) {
+        int below = 0;
+        for (Node c : n.child)
+            if (c != null)
+                below |= updateBelow(c);
+        n.below = below;
+        return below | (1 << n.state);
+    }
+
+    /**
+     * Resolves the network hi/lo/len with the inherited state. n is either null, the node for
+     * exactly this network or the topmost node inside it.
+     */
+    private void resolve(long hi, long lo, int len, byte state, Node n, Collection<IpAddress> result) {
+        if (n == null) {
+            emit(hi, lo, len, state, result);
+            return;
+        }
+
+        int below;
+        if (n.len == len) {
+            if (n.state != NONE)
+                state = n.state;
+            below = n.below;
+        } else {
+            below = n.below | (1 << n.state);
+        }
+
+        // Nothing inside differs from the inherited state, the network is emitted as a whole
+        if ((below & ~((1 << NONE) | (1 << state))) == 0) {
+            emit(hi, lo, len, state, result);
+            return;
+        }
+
+        long secondHi = hi | bitMaskHi(len);
+        long secondLo = lo | bitMaskLo(len);
+        if (n.len == len) {
+            resolve(hi, lo, len + 1, state, n.child[0], result);
+            resolve(secondHi, secondLo, len + 1, state, n.child[1], result);
+        } else if (bit(n.hi, n.lo, len) == 0) {
+            resolve(hi, lo, len + 1, state, n, result);
+            emit(secondHi, secondLo, len + 1, state, result);
+        } else {
+            emit(hi, lo, len + 1, state, result);
+            resolve(secondHi, secondLo, len + 1, state, n, result);
+        }
+    }
+
+    private void emit(long hi, long lo, int len, byte state, Collection<IpAddress> result) {
+        if (state != NONE)
+            result.add(new IpAddress(hi, lo, len, state == INCLUDED, mIsV4));
+    }
+
+    /**
+     * @return bit number i counted from the most significant bit of the address
+     */
+    private int bit(long hi, long lo, int i) {
+        return ((hi & bitMaskHi(i)) | (lo & bitMaskLo(i))) != 0 ? 1 : 0;
+    }
+
+    private long bitMaskHi(int i) {
+        int pos = mBits - 1 - i;
+        return pos >= 64 ? 1L << (pos - 64) : 0;
+    }
+
+    private long bitMaskLo(int i) {
+        int pos = mBits - 1 - i;
+        return pos < 64 ? 1L << pos : 0;
+    }
+
+    private long hostMaskHi(int len) {
+        int hostBits = mBits - len;
+        if (hostBits <= 64)
+            return 0;
+        return hostBits == 128 ? -1L : (1L << (hostBits - 64)) - 1;
+    }
+
+    private long hostMaskLo(int len) {
+        int hostBits = mBits - len;
+        return hostBits >= 64 ? -1L : (1L << hostBits) - 1;
+    }
+
+    private int commonPrefix(long hi1, long lo1, long hi2, long lo2) {
+        if (mIsV4)
+            return Long.numberOfLeadingZeros(lo1 ^ lo2) - 32;
+        if (hi1 != hi2)
+            return Long.numberOfLeadingZeros(hi1 ^ hi2);
+        return 64 + Long.numberOfLeadingZeros(lo1 ^ lo2);
+    }
+}
@@ -63,7 +63,13 @@ public class StatusListener implements VpnStatus.LogListener {
                 if (service.queryLocalInterface("de.blinkt.openvpn.core.IServiceStatus") == null) {
                     // Not a local service
                     VpnStatus.setConnectedVPNProfile(serviceStatus.getLastConnectedVPN());
-                    VpnStatus.setTrafficHistory(serviceStatus.getTrafficHistory());
+                    // Only fetch the part of the traffic history that we do not have yet
+                    long lastTimestamp = VpnStatus.getLastTrafficTimestamp();
+                    // After a restart of the service process its history starts again and
+                    // replaces ours
+                    if (lastTimestamp == 0
+                            || !VpnStatus.mergeTrafficHistory(serviceStatus.getTrafficHistorySince(lastTimestamp)))
+                        VpnStatus.setTrafficHistory(serviceStatus.getTrafficHistory());
                     ParcelFileDescriptor pfd = serviceStatus.registerStatusCallback(mCallback);
                     DataInputStream fd = new DataInputStream(new ParcelFileDescriptor.AutoCloseInputStream(pfd));
 
@@ -8,7 +8,9 @@ package de.blinkt.openvpn.core;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Vector;
 
@@ -35,11 +37,11 @@ public class TrafficHistory implements Parcelable {
     }
 
     protected TrafficHistory(Parcel in) {
-        in.readList(trafficHistorySeconds, getClass().getClassLoader());
-        in.readList(trafficHistoryMinutes, getClass().getClassLoader());
-        in.readList(trafficHistoryHours, getClass().getClassLoader());
-        lastSecondUsedForMinute = in.readParcelable(getClass().getClassLoader());
-        lastMinuteUsedForHours = in.readParcelable(getClass().getClassLoader());
+        decodeDatapoints(in.createByteArray(), trafficHistorySeconds);
+        decodeDatapoints(in.createByteArray(), trafficHistoryMinutes);
+        decodeDatapoints(in.createByteArray(), trafficHistoryHours);
+        lastSecondUsedForMinute = readDatapoint(in);
+        lastMinuteUsedForHours = readDatapoint(in);
     }
 
     public static final Creator<TrafficHistory> CREATOR = new Creator<TrafficHistory>() {
@@ -83,14 +85,204 @@ public class TrafficHistory implements Parcelable {
         return 0;
     }
 
+    /* The datapoints are sent as one byte array per list with the timestamp and
+     * byte counters delta encoded as zigzag varints. This is a fraction of the size of
+     * writing each datapoint as Parcelable (which includes the class name for each entry)
+     */
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeList(trafficHistorySeconds);
-        dest.writeList(trafficHistoryMinutes);
-        dest.writeList(trafficHistoryHours);
-        dest.writeParcelable(lastSecondUsedForMinute, 0);
-        dest.writeParcelable(lastMinuteUsedForHours, 0);
+        dest.writeByteArray(encodeDatapoints(trafficHistorySeconds));
+        dest.writeByteArray(encodeDatapoints(trafficHistoryMinutes));
+        dest.writeByteArray(encodeDatapoints(trafficHistoryHours));
+        writeDatapoint(dest, lastSecondUsedForMinute);
+        writeDatapoint(dest, lastMinuteUsedForHours);
+    }
+
+    private static void writeDatapoint(Parcel dest, TrafficDatapoint tdp) {
+        if (tdp == null) {
+            dest.writeInt(0);
+        } else {
+            dest.writeInt(1);
+            dest.writeLong(tdp.timestamp);
+            dest.writeLong(tdp.in);
+            dest.writeLong(tdp.out);
+        }
+    }
+
+    private static TrafficDatapoint readDatapoint(Parcel in) {
+        if (in.readInt() == 0)
+            return null;
+        long timestamp = in.readLong();
+        long inBytes = in.readLong();
+        long outBytes = in.readLong();
+        return new TrafficDatapoint(inBytes, outBytes, timestamp);
+    }
+
+    static byte[] encodeDatapoints(LinkedList<TrafficDatapoint> list) {
+        // Most deltas fit into one to three bytes, the buffer grows if needed
+        byte[] buf = new byte[10 + list.size() * 8];
+        int pos = 0;
+        long lastTs = 0, lastIn = 0, lastOut = 0;
+
+        buf = ensureCapacity(buf, pos);
+        pos = writeVarLong(buf, pos, list.size());
+        for (TrafficDatapoint tdp : list) {
+            buf = ensureCapacity(buf, pos);
+            pos = writeVarLong(buf, pos, zigzag(tdp.timestamp - lastTs));
+            pos = writeVarLong(buf, pos, zigzag(tdp.in - lastIn));
+            pos = writeVarLong(buf, pos, zigzag(tdp.out - lastOut));
+            lastTs = tdp.timestamp;
+            lastIn = tdp.in;
+            lastOut = tdp.out;
+        }
+        return Arrays.copyOf(buf, pos);
+    }
 
+    static void decodeDatapoints(byte[] buf, LinkedList<TrafficDatapoint> list) {
+        if (buf == null)
+            return;
+        long[] cursor = new long[1];
+        long lastTs = 0, lastIn = 0, lastOut = 0;
+
+        long count = readVarLong(buf, cursor);
+        for (long i = 0; i < count; i++) {
+            lastTs += unzigzag(readVarLong(buf, cursor));
+            lastIn += unzigzag(readVarLong(buf, cursor));
+            lastOut += unzigzag(readVarLong(buf, cursor));
+            list.add(new TrafficDatapoint(lastIn, lastOut, lastTs));
+        }
+    }
+
+    // Ensures that there is space for at least one datapoint (3 * 10 bytes) after pos
+    private static byte[] ensureCapacity(byte[] buf, int pos) {
+        if (buf.length - pos >= 30)
+            return buf;
+        return Arrays.copyOf(buf, Math.max(buf.length * 2, pos + 30));
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static int writeVarLong(byte[] buf, int pos, long v) {
+        while ((v & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+        return pos;
+    }
+
+    private static long readVarLong(byte[] buf, long[] cursor) {
+        int pos = (int) cursor[0];
+        long result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf[pos++];
+            result |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        cursor[0] = pos;
+        return result;
+    }
+
+    /**
+     * Returns a copy of this history that only contains the datapoints newer than timestamp.
+     * Used to let clients that already have an older copy only fetch the missing part. The
+     * seconds also contain the newest datapoint at or before timestamp, {@link #merge} uses it
+     * to check that the copy continues the client's history.
+     */
+    public TrafficHistory getHistorySince(long timestamp) {
+        TrafficHistory th = new TrafficHistory();
+        copyNewer(trafficHistorySeconds, th.trafficHistorySeconds, timestamp, true);
+        copyNewer(trafficHistoryMinutes, th.trafficHistoryMinutes, timestamp, false);
+        copyNewer(trafficHistoryHours, th.trafficHistoryHours, timestamp, false);
+        th.lastSecondUsedForMinute = lastSecondUsedForMinute;
+        th.lastMinuteUsedForHours = lastMinuteUsedForHours;
+        return th;
+    }
+
+    private static void copyNewer(LinkedList<TrafficDatapoint> from, LinkedList<TrafficDatapoint> to,
+                                  long timestamp, boolean withAnchor) {
+        Iterator<TrafficDatapoint> it = from.descendingIterator();
+        while (it.hasNext()) {
+            TrafficDatapoint tdp = it.next();
+            if (tdp.timestamp <= timestamp) {
+                if (withAnchor)
+                    to.addFirst(tdp);
+                break;
+            }
+            to.addFirst(tdp);
+        }
+    }
+
+    /**
+     * A history returned by {@link #getHistorySince(long)} with the timestamp of our newest
+     * datapoint continues this history if it starts with that datapoint and the byte counts
+     * never go backwards. Otherwise the service was restarted in between and started a new
+     * history.
+     */
+    boolean isContinuedBy(TrafficHistory newer) {
+        if (trafficHistorySeconds.isEmpty() || newer.trafficHistorySeconds.isEmpty())
+            return false;
+        TrafficDatapoint prev = trafficHistorySeconds.getLast();
+        TrafficDatapoint anchor = newer.trafficHistorySeconds.getFirst();
+        if (anchor.timestamp != prev.timestamp || anchor.in != prev.in || anchor.out != prev.out)
+            return false;
+        for (TrafficDatapoint tdp : newer.trafficHistorySeconds) {
+            if (tdp.in < prev.in || tdp.out < prev.out)
+                return false;
+            prev = tdp;
+        }
+        return true;
+    }
+
+    /**
+     * Appends the datapoints of a history returned by {@link #getHistorySince(long)} and
+     * drops datapoints that are now outside the periods to keep.
+     *
+     * @return false and merges nothing if newer does not continue this history, the caller
+     * has to fetch the full history then
+     */
+    public boolean merge(TrafficHistory newer) {
+        if (!isContinuedBy(newer))
+            return false;
+        mergeList(trafficHistorySeconds, newer.trafficHistorySeconds, TIME_PERIOD_MINTUES);
+        mergeList(trafficHistoryMinutes, newer.trafficHistoryMinutes, TIME_PERIOD_HOURS);
+        mergeList(trafficHistoryHours, newer.trafficHistoryHours, Long.MAX_VALUE);
+        if (newer.lastSecondUsedForMinute != null)
+            lastSecondUsedForMinute = newer.lastSecondUsedForMinute;
+        if (newer.lastMinuteUsedForHours != null)
+            lastMinuteUsedForHours = newer.lastMinuteUsedForHours;
+        return true;
+    }
+
+    private static void mergeList(LinkedList<TrafficDatapoint> list, LinkedList<TrafficDatapoint> newer, long timePeriod) {
+        long last = list.isEmpty() ? Long.MIN_VALUE : list.getLast().timestamp;
+        for (TrafficDatapoint tdp : newer) {
+            if (tdp.timestamp > last)
+                list.add(tdp);
+        }
+        if (list.isEmpty())
+            return;
+
+        long newest = list.getLast().timestamp;
+        while ((newest - list.getFirst().timestamp) / timePeriod >= PERIODS_TO_KEEP)
+            list.removeFirst();
+    }
+
+    /**
+     * @return timestamp of the newest datapoint or 0 if the history is empty
+     */
+    public long getLastTimestamp() {
+        if (trafficHistorySeconds.isEmpty())
+            return 0;
+        return trafficHistorySeconds.getLast().timestamp;
     }
 
     public LinkedList<TrafficDatapoint> getHours() {
@@ -113,7 +305,7 @@ public class TrafficHistory implements Parcelable {
 
 
     public static class TrafficDatapoint implements Parcelable {
-        private TrafficDatapoint(long inBytes, long outBytes, long timestamp) {
+        TrafficDatapoint(long inBytes, long outBytes, long timestamp) {
             this.in = inBytes;
             this.out = outBytes;
             this.timestamp = timestamp;
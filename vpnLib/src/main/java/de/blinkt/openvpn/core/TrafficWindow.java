@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+/**
+ * Sliding window accumulator over a fixed ring of time buckets. Adding a value and
+ * querying the window sum are O(1) amortised and do not allocate, which makes it
+ * usable on every byte count tick (e.g. for screen off pause or idle detection).
+ */
+public class TrafficWindow {
+
+    private final long[] mBuckets;
+    private final long mBucketLength;
+    private final long mWindowLength;
+
+    // Absolute index (time / bucket length) of the newest bucket, -1 if nothing was added yet
+    private long mHead = -1;
+    private long mSum;
+
+    /**
+     * @param windowMillis length of the window in milliseconds
+     * @param bucketCount  number of buckets the window is split into, determines the resolution
+     */
+    public TrafficWindow(long windowMillis, int bucketCount) {
+        if (windowMillis <= 0 || bucketCount <= 0)
+            throw new IllegalArgumentException("Window length and bucket count have to be positive");
+
+        mBuckets = new long[bucketCount];
+        mBucketLength = Math.max(1, windowMillis / bucketCount);
+        mWindowLength = mBucketLength * bucketCount;
+    }
+
+    public long getWindowMillis() {
+        return mWindowLength;
+    }
+
+    public synchronized void add(long now, long value) {
+        advance(now);
+        mBuckets[(int) (mHead % mBuckets.length)] += value;
+        mSum += value;
+    }
+
+    /**
+     * @return the sum of all values added within the window ending at now
+     */
+    public synchronized long getSum(long now) {
+        advance(now);
+        return mSum;
+    }
+
+    /**
+     * @return true if the values in the window ending at now sum up to less than threshold
+     */
+    public boolean isBelow(long now, long threshold) {
+        return getSum(now) < threshold;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < mBuckets.length; i++)
+            mBuckets[i] = 0;
+        mSum = 0;
+        mHead = -1;
+    }
+
+    private void advance(long now) {
+        long idx = now / mBucketLength;
+        if (mHead == -1 || idx - mHead >= mBuckets.length) {
+            // Everything in the window has expired (or was never set)
+            if (mHead != -1) {
+                for (int i = 0; i < mBuckets.length; i++)
+                    mBuckets[i] = 0;
+                mSum = 0;
+            }
+            mHead = idx;
+            return;
+        }
+
+        // Time going backwards (clock change), keep accounting to the newest bucket
+        if (idx <= mHead)
+            return;
+
+        while (mHead < idx) {
+            mHead++;
+            int slot = (int) (mHead % mBuckets.length);
+            mSum -= mBuckets[slot];
+            mBuckets[slot] = 0;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.util.Locale;
+
+/**
+ * 128 bit fingerprint of a tun configuration. It is updated as the parts of the
+ * configuration arrive, so deciding whether a pushed configuration equals the one of the
+ * open tun device does not need to build and compare a description of the whole
+ * configuration.
+ */
+class TunFingerprint {
+    private static final long SEED_HI = 0x9e3779b97f4a7c15L;
+    private static final long SEED_LO = 0xc2b2ae3d27d4eb4fL;
+    private static final long PRIME_HI = 0x100000001b3L;
+    private static final long PRIME_LO = 0xff51afd7ed558ccdL;
+
+    private long mHi = SEED_HI;
+    private long mLo = SEED_LO;
+
+    TunFingerprint() {
+    }
+
+    TunFingerprint(TunFingerprint other) {
+        mHi = other.mHi;
+        mLo = other.mLo;
+    }
+
+    void reset() {
+        mHi = SEED_HI;
+        mLo = SEED_LO;
+    }
+
+    /**
+     * Adds a value, the order of updates matters
+     */
+    TunFingerprint update(long value) {
+        mHi = mix(mHi ^ value);
+        mLo = mix((mLo + value) * PRIME_LO);
+        return this;
+    }
+
+    TunFingerprint update(String value) {
+        if (value == null)
+            return update(-1);
+        long h1 = mHi;
+        long h2 = mLo;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            h1 = (h1 ^ c) * PRIME_HI;
+            h2 = (h2 ^ c) * PRIME_LO;
+        }
+        mHi = h1;
+        mLo = h2;
+        return update(value.length());
+    }
+
+    TunFingerprint update(TunFingerprint other) {
+        return update(other.mHi).update(other.mLo);
+    }
+
+    /**
+     * Upper half of the hash of a network, used for order independent sums of networks
+     */
+    static long hashHi(long a, long b, long c) {
+        return mix(mix(mix(a + SEED_HI) ^ b) ^ c);
+    }
+
+    static long hashLo(long a, long b, long c) {
+        return mix(mix(mix(a * PRIME_LO + SEED_LO) + b) + c * PRIME_HI);
+    }
+
+    // Finaliser of splitmix64
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TunFingerprint))
+            return false;
+        TunFingerprint other = (TunFingerprint) o;
+        return mHi == other.mHi && mLo == other.mLo;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (mHi ^ (mHi >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%016x%016x", mHi, mLo);
+    }
+}
@@ -25,8 +25,20 @@ public class VPNLaunchHelper {
     private static final String MINIPIEVPN = "pie_openvpn";
     private static final String OVPNCONFIGFILE = "android.conf";
 
+    // Parts of the launch that do not change while the app runs
+    private static String mMiniVPN;
+    private static String mTmpDir;
 
-    private static String writeMiniVPN(Context context) {
+
+    private static synchronized String writeMiniVPN(Context context) {
+        // A binary written to the cache directory may have been removed with the cache
+        if (mMiniVPN != null && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P || new File(mMiniVPN).canExecute()))
+            return mMiniVPN;
+        mMiniVPN = findMiniVPN(context);
+        return mMiniVPN;
+    }
+
+    private static String findMiniVPN(Context context) {
         String nativeAPI = NativeUtils.getNativeAPI();
         /* Q does not allow executing binaries written in temp directory anymore */
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P)
@@ -143,6 +155,31 @@ public class VPNLaunchHelper {
     }
 
 
+    /**
+     * Verifies (and if needed writes) the OpenVPN binary and resolves the tmp directory
+     * ahead of the first connection
+     */
+    static void prewarm(Context context) {
+        try {
+            writeMiniVPN(context);
+        } catch (RuntimeException e) {
+            // Reported again when a connection is started
+        }
+        getTmpDir(context);
+    }
+
+    static synchronized String getTmpDir(Context context) {
+        if (mTmpDir == null) {
+            try {
+                mTmpDir = context.getCacheDir().getCanonicalPath();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return "/tmp";
+            }
+        }
+        return mTmpDir;
+    }
+
     public static String getConfigFilePath(Context context) {
         return context.getCacheDir().getAbsolutePath() + "/" + OVPNCONFIGFILE;
     }
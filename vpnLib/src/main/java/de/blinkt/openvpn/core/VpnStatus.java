@@ -28,6 +28,7 @@ public class VpnStatus {
     private static Vector<LogListener> logListener;
     private static Vector<StateListener> stateListener;
     private static Vector<ByteCountListener> byteCountListener;
+    private static Vector<LinkStatisticsListener> linkStatisticsListener;
 
     private static String mLaststatemsg = "";
 
@@ -46,6 +47,8 @@ public class VpnStatus {
 
     public static TrafficHistory trafficHistory;
 
+    private static LinkStatistics mLastLinkStatistics;
+
 
     public static void logException(LogLevel ll, String context, Exception e) {
         StringWriter sw = new StringWriter();
@@ -146,10 +149,22 @@ public class VpnStatus {
         return mLastConnectedVPNUUID;
     }
 
-    public static void setTrafficHistory(TrafficHistory trafficHistory) {
+    public synchronized static void setTrafficHistory(TrafficHistory trafficHistory) {
         VpnStatus.trafficHistory = trafficHistory;
     }
 
+    public synchronized static TrafficHistory getTrafficHistorySince(long timestamp) {
+        return trafficHistory.getHistorySince(timestamp);
+    }
+
+    public synchronized static boolean mergeTrafficHistory(TrafficHistory newer) {
+        return trafficHistory.merge(newer);
+    }
+
+    public synchronized static long getLastTrafficTimestamp() {
+        return trafficHistory.getLastTimestamp();
+    }
+
 
     public enum LogLevel {
         INFO(2),
@@ -203,6 +218,7 @@ public class VpnStatus {
         logListener = new Vector<>();
         stateListener = new Vector<>();
         byteCountListener = new Vector<>();
+        linkStatisticsListener = new Vector<>();
         trafficHistory = new TrafficHistory();
 
         logInformation();
@@ -224,6 +240,10 @@ public class VpnStatus {
         void updateByteCount(long in, long out, long diffIn, long diffOut);
     }
 
+    public interface LinkStatisticsListener {
+        void updateLinkStatistics(LinkStatistics statistics);
+    }
+
     public synchronized static void logMessage(LogLevel level, String prefix, String message) {
         newLogItem(new LogItem(level, prefix + message));
 
@@ -266,6 +286,20 @@ public class VpnStatus {
         byteCountListener.remove(bcl);
     }
 
+    public synchronized static void addLinkStatisticsListener(LinkStatisticsListener lsl) {
+        if (mLastLinkStatistics != null)
+            lsl.updateLinkStatistics(mLastLinkStatistics);
+        linkStatisticsListener.add(lsl);
+    }
+
+    public synchronized static void removeLinkStatisticsListener(LinkStatisticsListener lsl) {
+        linkStatisticsListener.remove(lsl);
+    }
+
+    public synchronized static LinkStatistics getLastLinkStatistics() {
+        return mLastLinkStatistics;
+    }
+
 
     public synchronized static void addStateListener(StateListener sl) {
         if (!stateListener.contains(sl)) {
@@ -394,6 +428,7 @@ public class VpnStatus {
         mLastLevel = level;
         mLastIntent = intent;
 
+        ConnectTimeline.stateChanged(state, level);
 
         for (StateListener sl : stateListener) {
             sl.updateState(state, msg, resid, level, intent);
@@ -481,4 +516,12 @@ public class VpnStatus {
             bcl.updateByteCount(in, out, diff.getDiffIn(), diff.getDiffOut());
         }
     }
+
+    public static synchronized void updateLinkStatistics(LinkStatistics statistics) {
+        mLastLinkStatistics = statistics;
+
+        for (LinkStatisticsListener lsl : linkStatisticsListener) {
+            lsl.updateLinkStatistics(statistics);
+        }
+    }
 }
@@ -37,6 +37,7 @@ public class X509Utils {
 
         Vector<Certificate> certificates = new Vector<>();
 		if(VpnProfile.isEmbedded(certfilename)) {
+            certfilename = VpnProfile.getEmbeddedContent(certfilename);
             int subIndex = certfilename.indexOf("-----BEGIN CERTIFICATE-----");
             do {
                 // The java certifcate reader is ... kind of stupid
@@ -2,12 +2,19 @@ package de.blinkt.openvpn.utils;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 
 import java.util.ArrayList;
 import java.util.List;
 
 import de.blinkt.openvpn.core.OpenVPNService;
 
+/**
+ * Single publishing stage for traffic counters. Byte count ticks from the management
+ * interface are coalesced here and handed out to in-process listeners as raw numbers,
+ * at most once per publish interval and only if enough traffic has accumulated.
+ * The legacy {@link #TRAFFIC_ACTION} broadcast can be kept enabled for compatibility.
+ */
 public class TotalTraffic {
 
     public static final String TRAFFIC_ACTION = "traffic_action";
@@ -17,35 +24,143 @@ public class TotalTraffic {
     public static final String UPLOAD_ALL = "upload_all";
     public static final String UPLOAD_SESSION = "upload_session";
 
+    // Interval in which the lifetime totals are written to the preferences
+    private static final long CHECKPOINT_INTERVAL_MS = 60 * 1000;
+
     public static long inTotal;
     public static long outTotal;
 
+    // Guarded by the class lock like the counters
+    private static final ArrayList<TrafficListener> trafficListener = new ArrayList<>();
+
+    private static long mMinPublishInterval = 1000;
+    private static long mChangeThreshold = 0;
+    private static boolean mBroadcastEnabled = true;
+
+    private static boolean mTotalsLoaded = false;
+    private static long mLastPublish = 0;
+    private static long mLastCheckpoint = 0;
+    private static long mPendingIn = 0;
+    private static long mPendingOut = 0;
+
+    public interface TrafficListener {
+        /**
+         * @param sessionIn  bytes received in the current session
+         * @param sessionOut bytes sent in the current session
+         * @param diffIn     bytes received since the last published update
+         * @param diffOut    bytes sent since the last published update
+         * @param totalIn    lifetime bytes received
+         * @param totalOut   lifetime bytes sent
+         */
+        void onTrafficUpdate(long sessionIn, long sessionOut, long diffIn, long diffOut, long totalIn, long totalOut);
+    }
+
+    public synchronized static void addTrafficListener(TrafficListener tl) {
+        if (!trafficListener.contains(tl))
+            trafficListener.add(tl);
+    }
+
+    public synchronized static void removeTrafficListener(TrafficListener tl) {
+        trafficListener.remove(tl);
+    }
+
+    /**
+     * @param intervalMs minimum time between two published updates, 0 publishes every tick
+     */
+    public synchronized static void setMinPublishInterval(long intervalMs) {
+        mMinPublishInterval = Math.max(0, intervalMs);
+    }
+
+    /**
+     * @param bytes minimum amount of traffic (in + out) that has to accumulate before
+     *              another update is published
+     */
+    public synchronized static void setChangeThreshold(long bytes) {
+        mChangeThreshold = Math.max(0, bytes);
+    }
+
+    /**
+     * Enables or disables the global {@link #TRAFFIC_ACTION} broadcast with the formatted strings
+     */
+    public synchronized static void setBroadcastEnabled(boolean enabled) {
+        mBroadcastEnabled = enabled;
+    }
 
-    public static void calcTraffic(Context context, long in, long out, long diffIn, long diffOut) {
-        List<String> totalTraffic = getTotalTraffic(context, diffIn, diffOut);
+    /**
+     * Feeds a byte count tick into the publishing stage.
+     *
+     * @return true if the tick resulted in a published update
+     */
+    public static boolean calcTraffic(Context context, long in, long out, long diffIn, long diffOut) {
+        TrafficListener[] listeners;
+        long pendingIn, pendingOut, totalIn, totalOut;
+        boolean broadcast;
+        synchronized (TotalTraffic.class) {
+            loadTotals(context);
+            inTotal += diffIn;
+            outTotal += diffOut;
+            mPendingIn += diffIn;
+            mPendingOut += diffOut;
+
+            long now = SystemClock.elapsedRealtime();
+            if (now - mLastCheckpoint >= CHECKPOINT_INTERVAL_MS) {
+                saveTotal(context);
+                mLastCheckpoint = now;
+            }
+
+            if (mLastPublish != 0 && now - mLastPublish < mMinPublishInterval)
+                return false;
+            if (mLastPublish != 0 && mPendingIn + mPendingOut < mChangeThreshold)
+                return false;
+
+            listeners = trafficListener.toArray(new TrafficListener[0]);
+            pendingIn = mPendingIn;
+            pendingOut = mPendingOut;
+            totalIn = inTotal;
+            totalOut = outTotal;
+            broadcast = mBroadcastEnabled;
+
+            mLastPublish = now;
+            mPendingIn = 0;
+            mPendingOut = 0;
+        }
+
+        // Listeners are called without the lock, they may call back into this class
+        for (TrafficListener tl : listeners)
+            tl.onTrafficUpdate(in, out, pendingIn, pendingOut, totalIn, totalOut);
+
+        if (broadcast)
+            sendTrafficBroadcast(context, in, out, totalIn, totalOut);
+        return true;
+    }
 
+    private static void sendTrafficBroadcast(Context context, long in, long out, long totalIn, long totalOut) {
         Intent traffic = new Intent();
         traffic.setAction(TRAFFIC_ACTION);
-        traffic.putExtra(DOWNLOAD_ALL, totalTraffic.get(0));
+        traffic.putExtra(DOWNLOAD_ALL, OpenVPNService.humanReadableByteCount(totalIn, false, context.getResources()));
         traffic.putExtra(DOWNLOAD_SESSION, OpenVPNService.humanReadableByteCount(in, false, context.getResources()));
-        traffic.putExtra(UPLOAD_ALL, totalTraffic.get(1));
+        traffic.putExtra(UPLOAD_ALL, OpenVPNService.humanReadableByteCount(totalOut, false, context.getResources()));
         traffic.putExtra(UPLOAD_SESSION, OpenVPNService.humanReadableByteCount(out, false, context.getResources()));
 
         context.sendBroadcast(traffic);
     }
 
+    private static void loadTotals(Context context) {
+        if (mTotalsLoaded)
+            return;
+        inTotal += PropertiesService.getDownloaded(context);
+        outTotal += PropertiesService.getUploaded(context);
+        mTotalsLoaded = true;
+    }
+
     public static List<String> getTotalTraffic(Context context) {
         return getTotalTraffic(context, 0, 0);
     }
 
-    public static List<String> getTotalTraffic(Context context, long in, long out) {
+    public synchronized static List<String> getTotalTraffic(Context context, long in, long out) {
         List<String> totalTraffic = new ArrayList<String>();
 
-        if (inTotal == 0)
-            inTotal = PropertiesService.getDownloaded(context);
-
-        if (outTotal == 0)
-            outTotal = PropertiesService.getUploaded(context);
+        loadTotals(context);
 
         inTotal = inTotal + in;
         outTotal = outTotal + out;
@@ -56,7 +171,7 @@ public class TotalTraffic {
         return totalTraffic;
     }
 
-    public static void saveTotal(Context context) {
+    public synchronized static void saveTotal(Context context) {
         if (inTotal != 0)
             PropertiesService.setDownloaded(context, inTotal);
 
@@ -64,11 +179,12 @@ public class TotalTraffic {
             PropertiesService.setUploaded(context, outTotal);
     }
 
-    public static void clearTotal(Context context) {
+    public synchronized static void clearTotal(Context context) {
         inTotal = 0;
         PropertiesService.setDownloaded(context, inTotal);
         outTotal = 0;
         PropertiesService.setUploaded(context, outTotal);
+        mTotalsLoaded = true;
     }
 
 }
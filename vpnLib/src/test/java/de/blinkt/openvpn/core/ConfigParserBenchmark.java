@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Locale;
+
+import de.blinkt.openvpn.VpnProfile;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parses large configs, only run with -Pbenchmarks
+ */
+public class ConfigParserBenchmark {
+    private static final int SMALL = 1 << 20;
+    private static final int LARGE = 10 << 20;
+
+    /**
+     * A config of the given size, half a CA bundle and half route lines, the two cases that
+     * used to make parsing quadratic
+     */
+    private static String createConfig(int size) {
+        StringBuilder sb = new StringBuilder(size + 256);
+        sb.append("client\nremote vpn.example.com 1194 udp\n<ca>\n");
+        while (sb.length() < size / 2)
+            sb.append(ConfigParserTest.CERT_LINE).append('\n');
+        sb.append("</ca>\n");
+        for (int i = 0; sb.length() < size; i++) {
+            sb.append("route 10.").append((i >> 8) & 0xff).append('.').append(i & 0xff)
+                    .append(".0 255.255.255.0 net_gateway\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the fastest of runs parse and convert times of config in nanoseconds
+     */
+    private static long time(String config, int runs) throws IOException, ConfigParser.ConfigParseError {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            ConfigParser cp = new ConfigParser();
+            cp.parseConfig(new StringReader(config));
+            VpnProfile vp = cp.convertProfile();
+            best = Math.min(best, System.nanoTime() - start);
+            assertTrue(vp.mCaFilename.length() > config.length() / 2 - 128);
+        }
+        return best;
+    }
+
+    @Test
+    public void parsingIsLinear() throws IOException, ConfigParser.ConfigParseError {
+        String small = createConfig(SMALL);
+        String large = createConfig(LARGE);
+        // Warm up the code paths
+        time(small, 3);
+
+        long smallNs = time(small, 5);
+        long largeNs = time(large, 2);
+        // Ten times the size, the quadratic parser took more than 100 times as long
+        assertTrue(String.format(Locale.US, "1 MB in %.1f ms, 10 MB in %.1f ms", smallNs / 1e6, largeNs / 1e6),
+                largeNs < 30 * smallNs);
+    }
+}
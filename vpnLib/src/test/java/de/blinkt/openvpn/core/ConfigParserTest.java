@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import de.blinkt.openvpn.VpnProfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConfigParserTest {
+    static final String CERT_LINE = "MIIDSzCCAjOgAwIBAgIUJ0y2Yx8kX3LkQ0cZz9m4Vb7fA1gwDQYJKoZIhvcNAQEL";
+
+    private static VpnProfile convert(String config) throws IOException, ConfigParser.ConfigParseError {
+        ConfigParser cp = new ConfigParser();
+        cp.parseConfig(new StringReader(config));
+        return cp.convertProfile();
+    }
+
+    @Test
+    public void parsesOptionsAndInlineBlocks() throws IOException, ConfigParser.ConfigParseError {
+        VpnProfile vp = convert("client\n"
+                + "# comment\n"
+                + "remote \"vpn.example.com\" 1194 udp ; trailing comment\n"
+                + "<ca>\n"
+                + "-----BEGIN CERTIFICATE-----\n"
+                + CERT_LINE + "\n"
+                + "-----END CERTIFICATE-----\n"
+                + "</ca>\n"
+                + "--<key>\n"
+                + "key data\n"
+                + "</key>\n");
+
+        assertEquals("vpn.example.com", vp.mConnections[0].mServerName);
+        assertEquals("1194", vp.mConnections[0].mServerPort);
+        assertEquals(VpnProfile.INLINE_TAG + "-----BEGIN CERTIFICATE-----\n" + CERT_LINE
+                + "\n-----END CERTIFICATE-----", vp.mCaFilename);
+        assertEquals(VpnProfile.INLINE_TAG + "key data", vp.mClientKeyFilename);
+    }
+
+    @Test
+    public void reportsMissingEndTag() throws IOException {
+        try {
+            convert("client\n<ca>\n" + CERT_LINE + "\n");
+            fail("Accepted an inline block without end tag");
+        } catch (ConfigParser.ConfigParseError expected) {
+            assertTrue(expected.getMessage().contains("</ca>"));
+        }
+    }
+
+    @Test
+    public void reportsBadBackslash() throws IOException {
+        try {
+            convert("client\nremote vpn.example.com\\x 1194\n");
+            fail("Accepted a bad backslash");
+        } catch (ConfigParser.ConfigParseError expected) {
+            assertTrue(expected.getMessage().contains("backslash"));
+        }
+    }
+}
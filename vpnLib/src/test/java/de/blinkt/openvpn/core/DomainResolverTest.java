@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class DomainResolverTest {
+    private static final int TYPE_CNAME = 5;
+
+    /**
+     * Builds a DNS response with one question for name
+     */
+    private static class Response {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        private int mAnswers;
+
+        Response(int id, int rcode, String name, int type) {
+            short16(id);
+            mOut.write(0x81); // answer, recursion desired
+            mOut.write(0x80 | rcode);
+            short16(1);
+            short16(0); // answers, patched in bytes()
+            short16(0);
+            short16(0);
+            name(name);
+            short16(type);
+            short16(1);
+        }
+
+        private void short16(int v) {
+            mOut.write(v >> 8);
+            mOut.write(v);
+        }
+
+        private void name(String name) {
+            for (String label : name.split("\\.")) {
+                mOut.write(label.length());
+                mOut.write(label.getBytes(), 0, label.length());
+            }
+            mOut.write(0);
+        }
+
+        Response record(int type, long ttl, byte[] data) {
+            // Owner name compressed to the question
+            short16(0xc00c);
+            short16(type);
+            short16(1);
+            short16((int) (ttl >> 16));
+            short16((int) ttl);
+            short16(data.length);
+            mOut.write(data, 0, data.length);
+            mAnswers++;
+            return this;
+        }
+
+        byte[] bytes() {
+            byte[] b = mOut.toByteArray();
+            b[6] = (byte) (mAnswers >> 8);
+            b[7] = (byte) mAnswers;
+            return b;
+        }
+    }
+
+    private static byte[] ip(String address) throws IOException {
+        return InetAddress.getByName(address).getAddress();
+    }
+
+    private static byte[] cname(String name) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String label : name.split("\\.")) {
+            out.write(label.length());
+            out.write(label.getBytes(), 0, label.length());
+        }
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    private static long[] parse(byte[] b, int type, long[] ttl) throws IOException {
+        return DomainResolver.parseResponse(b, b.length, type, ttl);
+    }
+
+    @Test
+    public void parsesARecordsSortedWithLowestTtl() throws IOException {
+        byte[] b = new Response(1, 0, "example.com", DomainResolver.TYPE_A)
+                .record(DomainResolver.TYPE_A, 600, ip("192.0.2.20"))
+                .record(DomainResolver.TYPE_A, 300, ip("192.0.2.10"))
+                .bytes();
+        long[] ttl = {86400};
+        assertArrayEquals(new long[]{0xc000020aL, 0xc0000214L}, parse(b, DomainResolver.TYPE_A, ttl));
+        assertEquals(300, ttl[0]);
+    }
+
+    @Test
+    public void parsesAaaaRecordsAsPairs() throws IOException {
+        byte[] b = new Response(1, 0, "example.com", DomainResolver.TYPE_AAAA)
+                .record(DomainResolver.TYPE_AAAA, 60, ip("2001:db8::2"))
+                .record(DomainResolver.TYPE_AAAA, 60, ip("2001:db8::1"))
+                .bytes();
+        long[] ttl = {86400};
+        assertArrayEquals(new long[]{0x20010db800000000L, 1, 0x20010db800000000L, 2},
+                parse(b, DomainResolver.TYPE_AAAA, ttl));
+        assertEquals(60, ttl[0]);
+    }
+
+    @Test
+    public void followsCnameChain() throws IOException {
+        byte[] b = new Response(1, 0, "www.example.com", DomainResolver.TYPE_A)
+                .record(TYPE_CNAME, 30, cname("cdn.example.net"))
+                .record(DomainResolver.TYPE_A, 120, ip("198.51.100.7"))
+                .bytes();
+        long[] ttl = {86400};
+        assertArrayEquals(new long[]{0xc6336407L}, parse(b, DomainResolver.TYPE_A, ttl));
+        // Only records of the asked type lower the TTL
+        assertEquals(120, ttl[0]);
+    }
+
+    @Test
+    public void skipsRecordsOfOtherTypesAndSizes() throws IOException {
+        byte[] b = new Response(1, 0, "example.com", DomainResolver.TYPE_A)
+                .record(DomainResolver.TYPE_AAAA, 10, ip("2001:db8::1"))
+                .record(DomainResolver.TYPE_A, 10, new byte[3])
+                .bytes();
+        long[] ttl = {86400};
+        assertEquals(0, parse(b, DomainResolver.TYPE_A, ttl).length);
+        assertEquals(86400, ttl[0]);
+    }
+
+    @Test
+    public void nxdomainIsAnEmptyAnswer() throws IOException {
+        byte[] b = new Response(1, 3, "nx.example.com", DomainResolver.TYPE_A).bytes();
+        assertSame(DomainResolver.Addresses.NONE, parse(b, DomainResolver.TYPE_A, new long[]{86400}));
+    }
+
+    @Test
+    public void errorsAreReported() {
+        // SERVFAIL
+        assertParseFails(new Response(1, 2, "example.com", DomainResolver.TYPE_A).bytes());
+        // A query, not an answer
+        byte[] query = new Response(1, 0, "example.com", DomainResolver.TYPE_A).bytes();
+        query[2] = 0x01;
+        assertParseFails(query);
+    }
+
+    @Test
+    public void truncatedResponsesAreReported() {
+        byte[] b = new Response(1, 0, "example.com", DomainResolver.TYPE_A)
+                .record(DomainResolver.TYPE_A, 300, new byte[]{(byte) 192, 0, 2, 1})
+                .bytes();
+        // Every cut must be detected, never read past the length
+        for (int len = 12; len < b.length; len++) {
+            byte[] copy = Arrays.copyOf(b, b.length + 16);
+            try {
+                DomainResolver.parseResponse(copy, len, DomainResolver.TYPE_A, new long[]{86400});
+                fail("Truncated to " + len + " bytes was accepted");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    private static void assertParseFails(byte[] b) {
+        try {
+            parse(b, DomainResolver.TYPE_A, new long[]{86400});
+            fail("Accepted invalid response");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void resolvesThroughServer() throws Exception {
+        final DatagramSocket server = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(() -> {
+            byte[] buf = new byte[512];
+            try {
+                while (true) {
+                    DatagramPacket query = new DatagramPacket(buf, buf.length);
+                    server.receive(query);
+                    int id = ((buf[0] & 0xff) << 8) | (buf[1] & 0xff);
+                    int type = ((buf[query.getLength() - 4] & 0xff) << 8) | (buf[query.getLength() - 3] & 0xff);
+                    // A stray answer to another query first, it must be ignored
+                    byte[] stray = new Response(id ^ 1, 2, "stub.example", type).bytes();
+                    server.send(new DatagramPacket(stray, stray.length, query.getSocketAddress()));
+                    byte[] data = type == DomainResolver.TYPE_A ? ip("192.0.2.1") : ip("2001:db8::1");
+                    byte[] answer = new Response(id, 0, "stub.example", type).record(type, 3600, data).bytes();
+                    server.send(new DatagramPacket(answer, answer.length, query.getSocketAddress()));
+                }
+            } catch (IOException closed) {
+            }
+        });
+        thread.start();
+
+        DomainResolver resolver = new DomainResolver("127.0.0.1", server.getLocalPort(), null);
+        try {
+            Map<String, DomainResolver.Addresses> result =
+                    resolver.resolve(Collections.singletonList("stub.example"), 5000);
+            DomainResolver.Addresses addresses = result.get("stub.example");
+            assertNotNull(addresses);
+            assertArrayEquals(new long[]{0xc0000201L}, addresses.v4);
+            assertArrayEquals(new long[]{0x20010db800000000L, 1}, addresses.v6);
+            assertSame(addresses, resolver.getCached("stub.example"));
+        } finally {
+            resolver.shutdown();
+            server.close();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void cacheIsBounded() throws IOException {
+        DomainResolver resolver = new DomainResolver("192.0.2.53", null);
+        try {
+            long now = DomainResolver.now();
+            long[] v4 = {1};
+            resolver.putCached("stale.bound.example",
+                    new DomainResolver.Addresses(v4, DomainResolver.Addresses.NONE, now - DomainResolver.STALE_MS - 1));
+            resolver.putCached("expired.bound.example",
+                    new DomainResolver.Addresses(v4, DomainResolver.Addresses.NONE, now - 1000));
+            resolver.putCached("fresh.bound.example",
+                    new DomainResolver.Addresses(v4, DomainResolver.Addresses.NONE, now + 60000));
+            // Recently expired answers are kept as fallback, long expired ones are dropped
+            assertNull(resolver.getCached("stale.bound.example"));
+            assertNotNull(resolver.getCached("expired.bound.example"));
+
+            for (int i = 0; i < DomainResolver.MAX_CACHE; i++) {
+                resolver.putCached("name" + i + ".bound.example",
+                        new DomainResolver.Addresses(v4, DomainResolver.Addresses.NONE, now + 60000));
+                // Keeps the entry recently used
+                if (i == DomainResolver.MAX_CACHE / 2)
+                    assertNotNull(resolver.getCached("fresh.bound.example"));
+            }
+            assertNull(resolver.getCached("expired.bound.example"));
+            assertNotNull(resolver.getCached("fresh.bound.example"));
+            assertNull(resolver.getCached("name0.bound.example"));
+            assertNotNull(resolver.getCached("name" + (DomainResolver.MAX_CACHE - 1) + ".bound.example"));
+        } finally {
+            resolver.shutdown();
+        }
+    }
+}
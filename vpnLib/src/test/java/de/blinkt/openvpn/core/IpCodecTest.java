@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IpCodecTest {
+    private static final int FUZZ_ROUNDS = 200000;
+
+    private static byte[] bytes(long hi, long lo) {
+        byte[] b = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            b[i] = (byte) (hi >>> (56 - 8 * i));
+            b[8 + i] = (byte) (lo >>> (56 - 8 * i));
+        }
+        return b;
+    }
+
+    private static byte[] bytes(long ip) {
+        return new byte[]{(byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip};
+    }
+
+    /**
+     * Addresses with runs of zero groups of random length, the interesting cases for ::
+     */
+    private static long[] randomIPv6(Random r) {
+        long[] half = new long[2];
+        for (int i = 0; i < 8; i++) {
+            long group = r.nextInt(3) == 0 ? 0 : r.nextInt(4) == 0 ? r.nextInt(16) : r.nextInt(0x10000);
+            half[i / 4] = (half[i / 4] << 16) | group;
+        }
+        return half;
+    }
+
+    /**
+     * The address as InetAddress parses it, IPv4 mapped addresses come back as IPv4. Only
+     * called with text InetAddress takes as an IPv6 literal, so it never does a DNS lookup.
+     */
+    private static byte[] inetAddress(String s) {
+        try {
+            byte[] b = InetAddress.getByName(s).getAddress();
+            if (b.length == 4)
+                return new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xff, (byte) 0xff, b[0], b[1], b[2], b[3]};
+            return b;
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    @Test
+    public void formatsIPv4LikeInetAddress() throws UnknownHostException {
+        Random r = new Random(45);
+        for (int i = 0; i < FUZZ_ROUNDS; i++) {
+            long ip = r.nextInt() & 0xffffffffL;
+            String text = IpCodec.formatIPv4(ip);
+            assertEquals(Inet4Address.getByAddress(bytes(ip)).getHostAddress(), text);
+            assertEquals(ip, IpCodec.parseIPv4(text));
+        }
+    }
+
+    @Test
+    public void parsesDottedQuadsOnly() {
+        Random r = new Random(45);
+        for (int i = 0; i < FUZZ_ROUNDS; i++) {
+            StringBuilder sb = new StringBuilder();
+            int octets = r.nextInt(10) == 0 ? 3 + r.nextInt(3) : 4;
+            long expected = 0;
+            boolean valid = octets == 4;
+            for (int o = 0; o < octets; o++) {
+                if (o > 0)
+                    sb.append(r.nextInt(50) == 0 ? ':' : '.');
+                int digits = r.nextInt(20) == 0 ? r.nextInt(5) : 1 + r.nextInt(3);
+                int value = 0;
+                for (int d = 0; d < digits; d++) {
+                    int digit = r.nextInt(10);
+                    sb.append((char) ('0' + digit));
+                    value = value * 10 + digit;
+                }
+                valid &= digits > 0 && digits <= 3 && value <= 255;
+                expected = (expected << 8) | value;
+            }
+            String s = sb.toString();
+            valid &= s.indexOf(':') < 0;
+            assertEquals(s, valid ? expected : -1, IpCodec.parseIPv4(s, 0, s.length()));
+        }
+    }
+
+    @Test
+    public void formatsIPv6CanonicallyAndRoundTrips() {
+        Random r = new Random(45);
+        long[] parsed = new long[2];
+        for (int i = 0; i < FUZZ_ROUNDS; i++) {
+            long[] ip = randomIPv6(r);
+            String text = IpCodec.formatIPv6(ip[0], ip[1]);
+
+            assertEquals(rfc5952(ip), text);
+            assertTrue(text, IpCodec.parseIPv6(text, 0, text.length(), parsed));
+            assertArrayEquals(text, ip, parsed);
+            assertArrayEquals(text, bytes(ip[0], ip[1]), inetAddress(text));
+        }
+    }
+
+    /**
+     * Reference for RFC 5952: all groups without leading zeros, then the first of the
+     * longest runs of at least two zero groups replaced by ::
+     */
+    private static String rfc5952(long[] ip) {
+        StringBuilder sb = new StringBuilder(":");
+        for (int i = 0; i < 8; i++)
+            sb.append(Long.toHexString((ip[i / 4] >>> (16 * (3 - i % 4))) & 0xffff)).append(':');
+        String full = sb.toString();
+        for (int run = 8; run >= 2; run--) {
+            StringBuilder zeros = new StringBuilder(":");
+            for (int i = 0; i < run; i++)
+                zeros.append("0:");
+            int pos = full.indexOf(zeros.toString());
+            if (pos >= 0) {
+                String compressed = full.substring(0, pos) + "::" + full.substring(pos + zeros.length());
+                return compressed.replaceAll("^:(?!:)|(?<!:):$", "");
+            }
+        }
+        return full.substring(1, full.length() - 1);
+    }
+
+    @Test
+    public void parsesIPv6LikeInetAddress() {
+        Random r = new Random(45);
+        long[] parsed = new long[2];
+        for (int i = 0; i < FUZZ_ROUNDS; i++) {
+            String s = randomIPv6Text(r);
+            // InetAddress takes groups of more than four digits with leading zeros, RFC 4291
+            // allows one to four
+            byte[] expected = s.matches(".*[0-9a-fA-F]{5}.*") ? null : inetAddress(s);
+            boolean ok = IpCodec.parseIPv6(s, 0, s.length(), parsed);
+            if (expected == null) {
+                assertTrue(s + " accepted", !ok);
+            } else {
+                assertTrue(s + " rejected", ok);
+                assertArrayEquals(s, expected, bytes(parsed[0], parsed[1]));
+            }
+        }
+    }
+
+    /**
+     * Mostly valid IPv6 text with shorthand, upper case, leading zeros and an IPv4 part,
+     * sometimes broken by too many or too long groups or stray colons. Always starts with a
+     * hex digit or colon and contains a colon, so InetAddress treats it as a literal.
+     */
+    private static String randomIPv6Text(Random r) {
+        StringBuilder sb = new StringBuilder();
+        int groups = r.nextInt(10);
+        boolean dotted = r.nextInt(4) == 0;
+        int compressAt = r.nextInt(3) == 0 ? -1 : r.nextInt(groups + 1);
+        for (int g = 0; g <= groups; g++) {
+            if (g == compressAt)
+                sb.append("::");
+            else if (g > 0)
+                sb.append(r.nextInt(40) == 0 ? "::" : ":");
+            if (g == groups)
+                break;
+            int digits = r.nextInt(30) == 0 ? r.nextInt(6) : 1 + r.nextInt(4);
+            for (int d = 0; d < digits; d++) {
+                char c = Character.forDigit(r.nextInt(16), 16);
+                sb.append(r.nextBoolean() ? Character.toUpperCase(c) : c);
+            }
+        }
+        if (dotted) {
+            if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ':')
+                sb.append(':');
+            for (int o = 0; o < 4; o++) {
+                if (o > 0)
+                    sb.append('.');
+                sb.append(r.nextInt(256));
+            }
+        } else if (sb.length() > 2 && sb.charAt(sb.length() - 1) == ':' && sb.charAt(sb.length() - 2) != ':'
+                && r.nextBoolean()) {
+            // Drop the single trailing colon most of the time
+            sb.setLength(sb.length() - 1);
+        }
+        if (r.nextInt(50) == 0)
+            sb.insert(0, ':');
+        if (sb.indexOf(":") < 0 || sb.charAt(0) == '.')
+            sb.insert(0, "::");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TreeSet;
+
+import de.blinkt.openvpn.core.NetworkSpace.IpAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sorting, containment checks and splitting of a large IPv6 route set, the operations
+ * resolving routes is made of, against the BigInteger addresses NetworkSpace used before.
+ * Only run with -Pbenchmarks
+ */
+public class NetworkSpaceBenchmark {
+    private static final int ROUTES = 20000;
+
+    /**
+     * The BigInteger network NetworkSpace used before, as baseline. The masked addresses are
+     * computed bit by bit and cached like it did.
+     */
+    private static class BigIntegerNetwork implements Comparable<BigIntegerNetwork> {
+        final BigInteger netAddress;
+        final int networkMask;
+        private BigInteger firstAddress;
+        private BigInteger lastAddress;
+
+        BigIntegerNetwork(BigInteger netAddress, int networkMask) {
+            this.netAddress = netAddress;
+            this.networkMask = networkMask;
+        }
+
+        private BigInteger getMaskedAddress(boolean one) {
+            BigInteger numAddress = netAddress;
+            for (int i = 0; i < 128 - networkMask; i++)
+                numAddress = one ? numAddress.setBit(i) : numAddress.clearBit(i);
+            return numAddress;
+        }
+
+        BigInteger getFirstAddress() {
+            if (firstAddress == null)
+                firstAddress = getMaskedAddress(false);
+            return firstAddress;
+        }
+
+        BigInteger getLastAddress() {
+            if (lastAddress == null)
+                lastAddress = getMaskedAddress(true);
+            return lastAddress;
+        }
+
+        @Override
+        public int compareTo(BigIntegerNetwork another) {
+            int comp = getFirstAddress().compareTo(another.getFirstAddress());
+            if (comp != 0)
+                return comp;
+            return Integer.compare(another.networkMask, networkMask);
+        }
+
+        boolean containsNet(BigIntegerNetwork network) {
+            return getFirstAddress().compareTo(network.getFirstAddress()) <= 0
+                    && getLastAddress().compareTo(network.getLastAddress()) >= 0;
+        }
+
+        BigIntegerNetwork[] split() {
+            BigIntegerNetwork firstHalf = new BigIntegerNetwork(getFirstAddress(), networkMask + 1);
+            BigIntegerNetwork secondHalf = new BigIntegerNetwork(firstHalf.getLastAddress().add(BigInteger.ONE), networkMask + 1);
+            return new BigIntegerNetwork[]{firstHalf, secondHalf};
+        }
+    }
+
+    @Test
+    public void longsAreFasterThanBigIntegers() {
+        Random r = new Random(40);
+        List<IpAddress> routes = new ArrayList<>(ROUTES);
+        List<BigIntegerNetwork> baseline = new ArrayList<>(ROUTES);
+        for (int i = 0; i < ROUTES; i++) {
+            IpAddress ip = NetworkSpaceTest.randomV6(r);
+            routes.add(ip);
+            baseline.add(new BigIntegerNetwork(NetworkSpaceTest.first(ip), ip.networkMask));
+        }
+
+        // Warm up both, then measure on fresh objects so nothing is cached
+        long longs = 0;
+        long bigIntegers = 0;
+        for (int run = 0; run < 3; run++) {
+            List<IpAddress> ips = new ArrayList<>(ROUTES);
+            for (IpAddress ip : routes)
+                ips.add(new IpAddress(ip.firstHi, ip.firstLo, ip.networkMask, true, false));
+            long start = System.nanoTime();
+            int containedLongs = runOperations(ips);
+            longs = System.nanoTime() - start;
+
+            List<BigIntegerNetwork> bigs = new ArrayList<>(ROUTES);
+            for (BigIntegerNetwork b : baseline)
+                bigs.add(new BigIntegerNetwork(b.netAddress, b.networkMask));
+            start = System.nanoTime();
+            int containedBigIntegers = runBaselineOperations(bigs);
+            bigIntegers = System.nanoTime() - start;
+            assertEquals(containedBigIntegers, containedLongs);
+        }
+
+        assertTrue(String.format(Locale.US, "Two longs %.1f ms, BigInteger %.1f ms", longs / 1e6, bigIntegers / 1e6),
+                longs < bigIntegers);
+    }
+
+    private static int runOperations(List<IpAddress> ips) {
+        TreeSet<IpAddress> sorted = new TreeSet<>(ips);
+        int contained = 0;
+        IpAddress previous = null;
+        for (IpAddress ip : sorted) {
+            if (previous != null && previous.containsNet(ip))
+                contained++;
+            if (ip.networkMask < 128)
+                ip.split();
+            previous = ip;
+        }
+        return contained;
+    }
+
+    private static int runBaselineOperations(List<BigIntegerNetwork> networks) {
+        TreeSet<BigIntegerNetwork> sorted = new TreeSet<>(networks);
+        int contained = 0;
+        BigIntegerNetwork previous = null;
+        for (BigIntegerNetwork network : sorted) {
+            if (previous != null && previous.containsNet(network))
+                contained++;
+            if (network.networkMask < 128)
+                network.split();
+            previous = network;
+        }
+        return contained;
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.Vector;
+
+import de.blinkt.openvpn.core.NetworkSpace.IpAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NetworkSpaceTest {
+    private static final int ROUNDS = 300;
+
+    private static BigInteger unsigned(long hi, long lo) {
+        BigInteger h = new BigInteger(Long.toUnsignedString(hi));
+        return h.shiftLeft(64).or(new BigInteger(Long.toUnsignedString(lo)));
+    }
+
+    static BigInteger first(IpAddress ip) {
+        return unsigned(ip.firstHi, ip.firstLo);
+    }
+
+    private static BigInteger last(IpAddress ip) {
+        return unsigned(ip.lastHi, ip.lastLo);
+    }
+
+    private static boolean contains(IpAddress ip, BigInteger address) {
+        return first(ip).compareTo(address) <= 0 && last(ip).compareTo(address) >= 0;
+    }
+
+    /**
+     * Oracle: the state of the most specific network covering the address, null if none does
+     */
+    private static Boolean mostSpecificState(Collection<IpAddress> networks, boolean isV4, BigInteger address) {
+        IpAddress best = null;
+        for (IpAddress ip : networks) {
+            if (ip.isV4 == isV4 && contains(ip, address) && (best == null || ip.networkMask > best.networkMask))
+                best = ip;
+        }
+        return best == null ? null : best.included;
+    }
+
+    /**
+     * Every network starts or ends a range of addresses with the same state, checking the
+     * boundaries of all networks checks every address
+     */
+    private static TreeSet<BigInteger> boundaries(Collection<IpAddress> a, Collection<IpAddress> b, boolean isV4) {
+        TreeSet<BigInteger> points = new TreeSet<>();
+        addBoundaries(points, a, isV4);
+        addBoundaries(points, b, isV4);
+        return points;
+    }
+
+    private static void addBoundaries(TreeSet<BigInteger> points, Collection<IpAddress> networks, boolean isV4) {
+        for (IpAddress ip : networks) {
+            if (ip.isV4 != isV4)
+                continue;
+            points.add(first(ip));
+            points.add(last(ip));
+            points.add(last(ip).add(BigInteger.ONE));
+            if (ip.firstHi != 0 || ip.firstLo != 0)
+                points.add(first(ip).subtract(BigInteger.ONE));
+        }
+    }
+
+    private static boolean covers(Collection<IpAddress> networks, boolean isV4, BigInteger address) {
+        for (IpAddress ip : networks) {
+            if (ip.isV4 == isV4 && contains(ip, address))
+                return true;
+        }
+        return false;
+    }
+
+    private static void assertNotOverlapping(Collection<IpAddress> sorted) {
+        IpAddress previous = null;
+        for (IpAddress ip : sorted) {
+            if (previous != null && previous.isV4 == ip.isV4)
+                assertTrue(previous + " overlaps " + ip, previous.endsBefore(ip));
+            previous = ip;
+        }
+    }
+
+    private static IpAddress randomV4(Random r) {
+        // Networks of a /12 overlap often, a few cover everything
+        int mask = r.nextInt(20) == 0 ? r.nextInt(12) : 12 + r.nextInt(21);
+        long ip = 0x0a000000L | (r.nextInt() & 0xfffffL);
+        return new IpAddress(0, ip, mask, r.nextBoolean(), true);
+    }
+
+    static IpAddress randomV6(Random r) {
+        // Masks around 64 bit, where the address changes from the upper to the lower half
+        int mask = r.nextInt(20) == 0 ? r.nextInt(48) : 48 + r.nextInt(81);
+        long hi = 0x20010db800000000L | (r.nextInt() & 0xffffL);
+        long lo = r.nextInt(4) == 0 ? r.nextLong() : ((long) r.nextInt(4) << 62) | r.nextInt(256);
+        return new IpAddress(hi, lo, mask, r.nextBoolean(), false);
+    }
+
+    private static NetworkSpace randomSpace(Random r, int size) {
+        NetworkSpace space = new NetworkSpace();
+        for (int i = 0; i < size; i++) {
+            IpAddress ip = r.nextBoolean() ? randomV4(r) : randomV6(r);
+            if (ip.isV4)
+                space.addIP(ip.firstLo, ip.networkMask, ip.included);
+            else
+                space.addIPv6(ip.firstHi, ip.firstLo, ip.networkMask, ip.included);
+        }
+        return space;
+    }
+
+    @Test
+    public void generateIPListMatchesMostSpecificNetwork() {
+        Random r = new Random(41);
+        for (int round = 0; round < ROUNDS; round++) {
+            NetworkSpace space = randomSpace(r, 1 + r.nextInt(60));
+            TreeSet<IpAddress> resolved = space.generateIPList();
+            assertNotOverlapping(resolved);
+
+            for (boolean isV4 : new boolean[]{true, false}) {
+                for (BigInteger address : boundaries(space.mIpAddresses, resolved, isV4)) {
+                    if (address.bitLength() > (isV4 ? 32 : 128))
+                        continue;
+                    assertEquals("round " + round + " address " + address.toString(16),
+                            mostSpecificState(space.mIpAddresses, isV4, address),
+                            mostSpecificState(resolved, isV4, address));
+                }
+            }
+        }
+    }
+
+    private static List<IpAddress> filter(Collection<IpAddress> networks, boolean isV4, boolean positiveOnly) {
+        List<IpAddress> result = new ArrayList<>();
+        for (IpAddress ip : networks) {
+            if (ip.isV4 == isV4 && (ip.included || !positiveOnly))
+                result.add(ip);
+        }
+        return result;
+    }
+
+    /**
+     * Checks that aggregate covers the same addresses with networks that do not overlap and
+     * cannot be merged any further
+     */
+    private static void assertAggregated(String message, Collection<IpAddress> routes) {
+        Vector<IpAddress> aggregated = NetworkSpace.aggregate(routes);
+        assertTrue(message, aggregated.size() <= routes.size());
+        assertNotOverlapping(aggregated);
+        for (int i = 1; i < aggregated.size(); i++) {
+            IpAddress previous = aggregated.get(i - 1);
+            IpAddress ip = aggregated.get(i);
+            assertTrue(message, previous.compareTo(ip) < 0);
+            assertFalse(message + ": " + previous + " and " + ip + " not merged", previous.isSiblingOf(ip));
+        }
+
+        for (boolean isV4 : new boolean[]{true, false}) {
+            for (BigInteger address : boundaries(routes, aggregated, isV4)) {
+                if (address.bitLength() > (isV4 ? 32 : 128))
+                    continue;
+                assertEquals(message + " address " + address.toString(16),
+                        covers(routes, isV4, address), covers(aggregated, isV4, address));
+            }
+        }
+    }
+
+    @Test
+    public void aggregateCoversSameAddresses() {
+        Random r = new Random(42);
+        for (int round = 0; round < ROUNDS; round++) {
+            // Overlapping routes as well as the resolved ones openTun passes in, one address
+            // family at a time like openTun
+            NetworkSpace space = randomSpace(r, 1 + r.nextInt(60));
+            TreeSet<IpAddress> resolved = space.generateIPList();
+            for (boolean isV4 : new boolean[]{true, false}) {
+                assertAggregated("round " + round + " raw", filter(space.mIpAddresses, isV4, true));
+                assertAggregated("round " + round + " resolved", filter(resolved, isV4, true));
+            }
+        }
+    }
+
+    @Test
+    public void aggregateMergesExcludedHosts() {
+        // 0.0.0.0/0 without one host resolves to 32 networks, excluding the host again
+        // merges nothing, including it merges all of them back
+        NetworkSpace space = new NetworkSpace();
+        space.addIP(0, 0, true);
+        space.addIP(0x0a000001L, 32, false);
+        List<IpAddress> positive = filter(space.generateIPList(), true, true);
+        assertEquals(32, positive.size());
+        assertEquals(32, NetworkSpace.aggregate(positive).size());
+
+        positive.add(new IpAddress(0, 0x0a000001L, 32, true, true));
+        Vector<IpAddress> aggregated = NetworkSpace.aggregate(positive);
+        assertEquals(1, aggregated.size());
+        assertEquals("0.0.0.0/0", aggregated.get(0).toString());
+    }
+
+    /**
+     * Masking, ordering, containment and splitting of the two long addresses against the
+     * same arithmetic on BigInteger
+     */
+    @Test
+    public void ipv6ArithmeticMatchesBigInteger() {
+        Random r = new Random(40);
+        IpAddress previous = randomV6(r);
+        for (int i = 0; i < ROUNDS * 10; i++) {
+            IpAddress ip = randomV6(r);
+            int hostBits = 128 - ip.networkMask;
+            long hi = r.nextLong();
+            long lo = r.nextLong();
+            IpAddress masked = new IpAddress(hi, lo, ip.networkMask, true, false);
+            assertEquals(unsigned(hi, lo).shiftRight(hostBits).shiftLeft(hostBits), first(masked));
+            assertEquals(first(masked).add(BigInteger.ONE.shiftLeft(hostBits)).subtract(BigInteger.ONE), last(masked));
+
+            int order = first(previous).compareTo(first(ip));
+            if (order == 0)
+                order = Integer.compare(ip.networkMask, previous.networkMask);
+            assertEquals(order, Integer.signum(previous.compareTo(ip)));
+            assertEquals(first(previous).compareTo(first(ip)) <= 0 && last(previous).compareTo(last(ip)) >= 0,
+                    previous.containsNet(ip));
+
+            if (ip.networkMask < 128) {
+                IpAddress[] halves = ip.split();
+                assertEquals(first(ip), first(halves[0]));
+                assertEquals(last(halves[0]).add(BigInteger.ONE), first(halves[1]));
+                assertEquals(last(ip), last(halves[1]));
+                assertTrue(ip.containsNet(halves[1]));
+                assertFalse(halves[0].containsNet(ip));
+            }
+            previous = ip;
+        }
+    }
+
+    @Test
+    public void generateIPListKeepsFirstStateOfDuplicates() {
+        NetworkSpace space = new NetworkSpace();
+        space.addIP(0x0a000000L, 8, true);
+        space.addIP(0x0a000000L, 8, false);
+        space.addIP(0x0a010000L, 16, false);
+
+        List<String> included = new ArrayList<>();
+        for (IpAddress ip : space.generateIPList()) {
+            if (ip.included)
+                included.add(ip.toString());
+        }
+        assertEquals("[10.0.0.0/16, 10.2.0.0/15, 10.4.0.0/14, 10.8.0.0/13, 10.16.0.0/12, 10.32.0.0/11, "
+                + "10.64.0.0/10, 10.128.0.0/9]", included.toString());
+    }
+}
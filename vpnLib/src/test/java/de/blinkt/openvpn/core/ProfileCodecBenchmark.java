@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Locale;
+
+import de.blinkt.openvpn.VpnProfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cold load of a profile list: every profile is read from its own file, once in the
+ * binary format and once with the Java serialization it replaced. Only run with
+ * -Pbenchmarks
+ */
+public class ProfileCodecBenchmark {
+    private static final int PROFILES = 500;
+
+    @Test
+    public void binaryLoadsFasterThanSerialization() throws IOException, ClassNotFoundException {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "profilecodec-" + System.nanoTime());
+        if (!dir.mkdirs())
+            throw new IOException("Could not create " + dir);
+        try {
+            for (int i = 0; i < PROFILES; i++) {
+                VpnProfile vp = ProfileCodecTest.createProfile(i);
+                FileOutputStream vpb = new FileOutputStream(new File(dir, i + ProfileCodec.FILE_EXTENSION));
+                try {
+                    ProfileCodec.write(vp, vpb);
+                } finally {
+                    vpb.close();
+                }
+                ObjectOutputStream vpnFile = new ObjectOutputStream(new FileOutputStream(new File(dir, i + ".vp")));
+                try {
+                    vpnFile.writeObject(vp);
+                } finally {
+                    vpnFile.close();
+                }
+            }
+
+            // Warm up the code paths, not the files
+            loadBinary(dir, 50);
+            loadSerialized(dir, 50);
+
+            long start = System.nanoTime();
+            int binary = loadBinary(dir, PROFILES);
+            long binaryNs = System.nanoTime() - start;
+            start = System.nanoTime();
+            int serialized = loadSerialized(dir, PROFILES);
+            long serializedNs = System.nanoTime() - start;
+
+            assertEquals(PROFILES, binary);
+            assertEquals(PROFILES, serialized);
+            assertTrue(String.format(Locale.US, "Binary %.1f ms, Java serialization %.1f ms",
+                    binaryNs / 1e6, serializedNs / 1e6), binaryNs < serializedNs);
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null)
+                for (File f : files)
+                    //noinspection ResultOfMethodCallIgnored
+                    f.delete();
+            //noinspection ResultOfMethodCallIgnored
+            dir.delete();
+        }
+    }
+
+    private static int loadBinary(File dir, int count) throws IOException {
+        int loaded = 0;
+        for (int i = 0; i < count; i++) {
+            InputStream in = new BufferedInputStream(new FileInputStream(new File(dir, i + ProfileCodec.FILE_EXTENSION)));
+            try {
+                if (ProfileCodec.read(in).getUUID() != null)
+                    loaded++;
+            } finally {
+                in.close();
+            }
+        }
+        return loaded;
+    }
+
+    private static int loadSerialized(File dir, int count) throws IOException, ClassNotFoundException {
+        int loaded = 0;
+        for (int i = 0; i < count; i++) {
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(new File(dir, i + ".vp"))));
+            try {
+                if (((VpnProfile) in.readObject()).getUUID() != null)
+                    loaded++;
+            } finally {
+                in.close();
+            }
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import de.blinkt.openvpn.VpnProfile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ProfileCodecTest {
+    private static final int MAGIC = 0x4f56504e;
+
+    static VpnProfile createProfile(int i) {
+        VpnProfile vp = new VpnProfile("Profile " + i);
+        vp.mCaFilename = VpnProfile.INLINE_TAG + repeat("CA of the provider ", 100);
+        vp.mClientCertFilename = VpnProfile.INLINE_TAG + repeat("certificate " + i + " ", 80);
+        vp.mClientKeyFilename = VpnProfile.INLINE_TAG + repeat("key " + i + " ", 60);
+        vp.mVersion = i;
+        vp.mMssFix = 1300;
+        vp.mScreenOffTrafficLimit = 1L << 40;
+        vp.mAllowedAppsVpn = new HashSet<>(Arrays.asList("com.example.a", "com.example.b"));
+        Connection second = new Connection();
+        second.mServerName = "vpn" + i + ".example.com";
+        second.mProxyType = Connection.ProxyType.SOCKS5;
+        vp.mConnections = new Connection[]{vp.mConnections[0], second};
+        return vp;
+    }
+
+    private static String repeat(String s, int n) {
+        StringBuilder sb = new StringBuilder(s.length() * n);
+        for (int i = 0; i < n; i++)
+            sb.append(s);
+        return sb.toString();
+    }
+
+    private static byte[] encode(VpnProfile vp) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProfileCodec.write(vp, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        VpnProfile vp = createProfile(7);
+        VpnProfile read = ProfileCodec.read(new ByteArrayInputStream(encode(vp)));
+
+        assertEquals(vp.getUUID(), read.getUUID());
+        assertEquals(vp.mName, read.mName);
+        assertEquals(vp.mCaFilename, read.mCaFilename);
+        assertEquals(vp.mClientKeyFilename, read.mClientKeyFilename);
+        assertEquals(7, read.mVersion);
+        assertEquals(1300, read.mMssFix);
+        assertEquals(1L << 40, read.mScreenOffTrafficLimit);
+        assertEquals(vp.mAllowedAppsVpn, read.mAllowedAppsVpn);
+        assertNull(read.mIPv4Address);
+        assertEquals(2, read.mConnections.length);
+        assertEquals("vpn7.example.com", read.mConnections[1].mServerName);
+        assertEquals(Connection.ProxyType.SOCKS5, read.mConnections[1].mProxyType);
+    }
+
+    @Test
+    public void writingIsStable() throws IOException {
+        VpnProfile vp = createProfile(1);
+        assertArrayEquals(encode(vp), encode(ProfileCodec.read(new ByteArrayInputStream(encode(vp)))));
+    }
+
+    @Test
+    public void skipsUnknownTagsAndChangedTypes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(ProfileCodec.SCHEMA_VERSION);
+        // Tag of a newer version
+        out.writeShort(60000);
+        out.writeByte('S');
+        out.writeInt(7);
+        out.writeInt(3);
+        out.write(new byte[]{'a', 'b', 'c'});
+        // mName (tag 5) written with another type
+        out.writeShort(5);
+        out.writeByte('I');
+        out.writeInt(4);
+        out.writeInt(1);
+        // mVersion
+        out.writeShort(3);
+        out.writeByte('I');
+        out.writeInt(4);
+        out.writeInt(42);
+        out.writeShort(0);
+
+        VpnProfile read = ProfileCodec.read(new ByteArrayInputStream(bytes.toByteArray()));
+        assertNull(read.mName);
+        assertEquals(42, read.mVersion);
+    }
+}
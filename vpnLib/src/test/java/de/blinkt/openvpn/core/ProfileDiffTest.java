@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+import de.blinkt.openvpn.VpnProfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ProfileDiffTest {
+    private static final List<String> KEEP_FIELDS = Arrays.asList(
+            "mUuid", "mVersion", "mProfileVersion", "mLastUsed", "mAlias", "mTemporaryProfile");
+    private static final List<String> NO_RECONNECT_FIELDS = Arrays.asList(
+            "mName", "importedProfileHash", "mProfileCreator", "mUserEditable");
+
+    /**
+     * The same converted profile every time, apart from the UUID
+     */
+    private static VpnProfile createProfile() {
+        VpnProfile vp = new VpnProfile("Managed");
+        vp.mCaFilename = VpnProfile.INLINE_TAG + "CA";
+        vp.mCipher = "AES-256-GCM";
+        vp.mLastUsed = 0;
+        vp.mAllowedAppsVpn = new HashSet<>(Arrays.asList("com.example.a"));
+        Connection second = new Connection();
+        second.mServerName = "vpn2.example.com";
+        vp.mConnections = new Connection[]{new Connection(), second};
+        return vp;
+    }
+
+    @Test
+    public void equalProfilesHaveNoChanges() {
+        ProfileDiff diff = ProfileDiff.compute(createProfile(), createProfile());
+        assertTrue(diff.getChangedFields().toString(), diff.isEmpty());
+        assertFalse(diff.needsReconnect());
+    }
+
+    @Test
+    public void keepsIdentityFields() {
+        VpnProfile oldProfile = createProfile();
+        oldProfile.mVersion = 5;
+        oldProfile.mLastUsed = 1234;
+        oldProfile.mAlias = "keychain alias";
+        UUID uuid = oldProfile.getUUID();
+
+        VpnProfile newProfile = createProfile();
+        newProfile.mCipher = "CHACHA20-POLY1305";
+        ProfileDiff diff = ProfileDiff.apply(oldProfile, newProfile);
+
+        assertTrue(diff.needsReconnect());
+        assertEquals(Arrays.asList("mCipher"), diff.getChangedFields());
+        VpnProfile merged = diff.getMerged();
+        assertNotSame(oldProfile, merged);
+        assertEquals(uuid, merged.getUUID());
+        assertEquals(5, merged.mVersion);
+        assertEquals(1234, merged.mLastUsed);
+        assertEquals("keychain alias", merged.mAlias);
+        assertEquals("CHACHA20-POLY1305", merged.mCipher);
+        // A running connection may still use the old profile
+        assertEquals("AES-256-GCM", oldProfile.mCipher);
+    }
+
+    @Test
+    public void noReconnectEditUpdatesStoredProfile() {
+        VpnProfile oldProfile = createProfile();
+        VpnProfile newProfile = createProfile();
+        newProfile.mName = "Renamed";
+        newProfile.importedProfileHash = "new hash";
+
+        ProfileDiff diff = ProfileDiff.apply(oldProfile, newProfile);
+        assertFalse(diff.needsReconnect());
+        assertEquals(new HashSet<>(Arrays.asList("mName", "importedProfileHash")),
+                new HashSet<>(diff.getChangedFields()));
+        assertSame(oldProfile, diff.getMerged());
+        assertEquals("Renamed", oldProfile.mName);
+        assertEquals("new hash", oldProfile.importedProfileHash);
+    }
+
+    @Test
+    public void detectsConnectionChanges() {
+        VpnProfile oldProfile = createProfile();
+
+        VpnProfile changedServer = createProfile();
+        changedServer.mConnections[1].mServerPort = "443";
+        ProfileDiff diff = ProfileDiff.compute(oldProfile, changedServer);
+        assertTrue(diff.needsReconnect());
+        assertEquals(Arrays.asList("mConnections[1].mServerPort"), diff.getChangedFields());
+
+        VpnProfile removedServer = createProfile();
+        removedServer.mConnections = new Connection[]{removedServer.mConnections[0]};
+        diff = ProfileDiff.compute(oldProfile, removedServer);
+        assertTrue(diff.needsReconnect());
+        assertEquals(Arrays.asList("mConnections"), diff.getChangedFields());
+
+        VpnProfile reordered = createProfile();
+        reordered.mConnections = new Connection[]{reordered.mConnections[1], reordered.mConnections[0]};
+        assertTrue(ProfileDiff.compute(oldProfile, reordered).needsReconnect());
+    }
+
+    /**
+     * Every stored field of a profile and a connection is either identity or compared, a
+     * new field cannot be ignored by the diff
+     */
+    @Test
+    public void comparesEveryStoredField() throws IllegalAccessException {
+        for (Field f : VpnProfile.class.getDeclaredFields()) {
+            int mod = f.getModifiers();
+            if (Modifier.isStatic(mod) || Modifier.isTransient(mod) || f.isSynthetic()
+                    || KEEP_FIELDS.contains(f.getName()) || f.getName().equals("mConnections"))
+                continue;
+            VpnProfile newProfile = createProfile();
+            change(f, newProfile);
+            ProfileDiff diff = ProfileDiff.compute(createProfile(), newProfile);
+            assertEquals(Arrays.asList(f.getName()), diff.getChangedFields());
+            assertEquals(f.getName(), !NO_RECONNECT_FIELDS.contains(f.getName()), diff.needsReconnect());
+        }
+
+        for (Field f : Connection.class.getDeclaredFields()) {
+            int mod = f.getModifiers();
+            if (Modifier.isStatic(mod) || Modifier.isTransient(mod) || f.isSynthetic())
+                continue;
+            VpnProfile newProfile = createProfile();
+            change(f, newProfile.mConnections[0]);
+            ProfileDiff diff = ProfileDiff.compute(createProfile(), newProfile);
+            assertEquals(Arrays.asList("mConnections[0]." + f.getName()), diff.getChangedFields());
+            assertTrue(diff.needsReconnect());
+        }
+    }
+
+    private static void change(Field f, Object o) throws IllegalAccessException {
+        f.setAccessible(true);
+        Class<?> t = f.getType();
+        Object value = f.get(o);
+        if (t == boolean.class)
+            f.setBoolean(o, !(Boolean) value);
+        else if (t == int.class)
+            f.setInt(o, (Integer) value + 1);
+        else if (t == long.class)
+            f.setLong(o, (Long) value + 1);
+        else if (t == String.class)
+            f.set(o, value + "x");
+        else if (t == HashSet.class)
+            f.set(o, new HashSet<>(Arrays.asList("com.example.changed")));
+        else if (t.isEnum())
+            f.set(o, t.getEnumConstants()[(((Enum<?>) value).ordinal() + 1) % t.getEnumConstants().length]);
+        else
+            throw new AssertionError("No test value for " + f.getName() + " of type " + t.getName());
+    }
+}
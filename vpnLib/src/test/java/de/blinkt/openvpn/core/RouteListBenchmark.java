@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import de.blinkt.openvpn.core.NetworkSpace.IpAddress;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times the whole path of an excluded route list: parsing the text list, loading the
+ * binary file, adding it to the routes next to a default route, resolving and aggregating
+ * the positive routes as openTun does. Only run with -Pbenchmarks
+ */
+public class RouteListBenchmark {
+    private static final int SMALL = 10000;
+    private static final int LARGE = 100000;
+
+    @Test
+    public void largeExclusionListScales() throws IOException {
+        Random r = new Random(43);
+        String small = RouteListTest.randomRoutes(r, SMALL);
+        String large = RouteListTest.randomRoutes(r, LARGE);
+        // Warm up the code paths
+        for (int i = 0; i < 3; i++)
+            runPipeline(small);
+
+        long start = System.nanoTime();
+        assertTrue(runPipeline(small) > 0);
+        long smallNs = System.nanoTime() - start;
+        start = System.nanoTime();
+        assertTrue(runPipeline(large) > 0);
+        long largeNs = System.nanoTime() - start;
+
+        // Ten times the routes, n log n allows about 13 times the time
+        assertTrue(String.format(Locale.US, "%d routes in %.1f ms, %d routes in %.1f ms",
+                SMALL, smallNs / 1e6, LARGE, largeNs / 1e6), largeNs < 30 * smallNs);
+    }
+
+    /**
+     * @return the number of aggregated positive routes
+     */
+    private static int runPipeline(String routes) throws IOException {
+        File binary = File.createTempFile("routes", ".bin");
+        try {
+            RouteListTest.writeBinary(RouteList.parse(routes), binary);
+            RouteList list = RouteList.read(binary);
+
+            NetworkSpace space = new NetworkSpace();
+            space.addIP(0, 0, true);
+            list.addTo(space, false);
+
+            List<IpAddress> positive = new ArrayList<>();
+            for (IpAddress ip : space.generateIPList()) {
+                if (ip.included)
+                    positive.add(ip);
+            }
+            return NetworkSpace.aggregate(positive).size();
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            binary.delete();
+        }
+    }
+}
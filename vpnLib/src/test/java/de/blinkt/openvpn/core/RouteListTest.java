@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RouteListTest {
+    private static final int MAGIC = 0x4f56524c;
+
+    /**
+     * Random networks spread over the whole address space, like a list of domestic ranges
+     */
+    static String randomRoutes(Random r, int count) {
+        StringBuilder sb = new StringBuilder(count * 18);
+        for (int i = 0; i < count; i++) {
+            IpCodec.appendIPv4(sb, r.nextInt() & 0xffffffffL);
+            int len = 16 + r.nextInt(17);
+            if (len < 32)
+                sb.append('/').append(len);
+            sb.append(i % 8 == 7 ? '\n' : ' ');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the binary form like {@link RouteList#write}, which needs the Android file
+     * system calls for the atomic replace
+     */
+    static void writeBinary(RouteList list, File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(list.size());
+            for (int i = 0; i < list.size(); i++) {
+                out.writeInt((int) list.getAddress(i));
+                out.writeByte(list.getPrefixLength(i));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void assertSameRoutes(RouteList expected, RouteList actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getAddress(i), actual.getAddress(i));
+            assertEquals(expected.getPrefixLength(i), actual.getPrefixLength(i));
+        }
+    }
+
+    @Test
+    public void parsesNetworksAndHosts() {
+        RouteList list = RouteList.parse(" 10.1.2.3/8\t192.168.0.1\r\n172.16.5.0/24 ");
+        assertEquals(3, list.size());
+        // Host bits are cleared
+        assertEquals(0x0a000000L, list.getAddress(0));
+        assertEquals(8, list.getPrefixLength(0));
+        assertEquals(0xc0a80001L, list.getAddress(1));
+        assertEquals(32, list.getPrefixLength(1));
+        assertEquals(0xac100500L, list.getAddress(2));
+        assertEquals(24, list.getPrefixLength(2));
+    }
+
+    @Test
+    public void rejectsInvalidNetworks() {
+        assertNull(RouteList.parse("10.0.0.0/33"));
+        assertNull(RouteList.parse("10.0.0.0/"));
+        assertNull(RouteList.parse("10.0.0.0/008"));
+        assertNull(RouteList.parse("10.0.0/8"));
+        assertNull(RouteList.parse("2001:db8::/32"));
+        assertNull(RouteList.parse("10.0.0.0/8 example.com"));
+    }
+
+    @Test
+    public void readsTextAndBinary() throws IOException {
+        RouteList list = RouteList.parse(randomRoutes(new Random(43), 1000));
+        File binary = File.createTempFile("routes", ".bin");
+        File text = File.createTempFile("routes", ".txt");
+        try {
+            writeBinary(list, binary);
+            assertSameRoutes(list, RouteList.read(binary));
+
+            FileOutputStream out = new FileOutputStream(text);
+            try {
+                out.write(randomRoutes(new Random(43), 1000).getBytes("US-ASCII"));
+            } finally {
+                out.close();
+            }
+            assertSameRoutes(list, RouteList.read(text));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            binary.delete();
+            //noinspection ResultOfMethodCallIgnored
+            text.delete();
+        }
+    }
+}
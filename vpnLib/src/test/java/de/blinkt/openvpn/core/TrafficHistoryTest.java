@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2012-2017 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.util.LinkedList;
+
+import de.blinkt.openvpn.core.TrafficHistory.TrafficDatapoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrafficHistoryTest {
+    private static LinkedList<TrafficDatapoint> roundTrip(LinkedList<TrafficDatapoint> list) {
+        LinkedList<TrafficDatapoint> decoded = new LinkedList<>();
+        TrafficHistory.decodeDatapoints(TrafficHistory.encodeDatapoints(list), decoded);
+        return decoded;
+    }
+
+    private static void assertSamePoints(LinkedList<TrafficDatapoint> expected, LinkedList<TrafficDatapoint> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).timestamp, actual.get(i).timestamp);
+            assertEquals(expected.get(i).in, actual.get(i).in);
+            assertEquals(expected.get(i).out, actual.get(i).out);
+        }
+    }
+
+    private static TrafficHistory history(long... timestampInOut) {
+        TrafficHistory th = new TrafficHistory();
+        for (int i = 0; i < timestampInOut.length; i += 3)
+            th.getSeconds().add(new TrafficDatapoint(timestampInOut[i + 1], timestampInOut[i + 2], timestampInOut[i]));
+        return th;
+    }
+
+    @Test
+    public void encodingRoundTrips() {
+        LinkedList<TrafficDatapoint> list = new LinkedList<>();
+        assertSamePoints(list, roundTrip(list));
+
+        // Zero, small, negative and deltas that need all ten varint bytes
+        list.add(new TrafficDatapoint(0, 0, 0));
+        list.add(new TrafficDatapoint(0, 0, 0));
+        list.add(new TrafficDatapoint(1, 127, 1495500000000L));
+        list.add(new TrafficDatapoint(128, 300, 1495500001000L));
+        list.add(new TrafficDatapoint(5, 2, 1495500000500L));
+        list.add(new TrafficDatapoint(Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE));
+        list.add(new TrafficDatapoint(Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE));
+        list.add(new TrafficDatapoint(-1, -1, -1));
+        assertSamePoints(list, roundTrip(list));
+    }
+
+    @Test
+    public void encodingIsCompactForSmallDeltas() {
+        LinkedList<TrafficDatapoint> list = new LinkedList<>();
+        for (int i = 0; i < 300; i++)
+            list.add(new TrafficDatapoint(i * 50L, i * 20L, 1495500000000L + i * 1000L));
+        assertSamePoints(list, roundTrip(list));
+        // Count, the first absolute datapoint and then at most five bytes per datapoint
+        assertTrue(TrafficHistory.encodeDatapoints(list).length < 20 + 300 * 5);
+    }
+
+    @Test
+    public void mergeAppendsContinuedHistory() {
+        TrafficHistory service = history(1000, 10, 20, 2000, 30, 40, 3000, 50, 60);
+        TrafficHistory client = history(1000, 10, 20, 2000, 30, 40);
+
+        TrafficHistory newer = service.getHistorySince(client.getLastTimestamp());
+        assertEquals(2, newer.getSeconds().size());
+        assertTrue(client.merge(newer));
+        assertSamePoints(service.getSeconds(), client.getSeconds());
+
+        // Nothing new is still a continuation
+        assertTrue(client.merge(service.getHistorySince(client.getLastTimestamp())));
+        assertEquals(3, client.getSeconds().size());
+    }
+
+    @Test
+    public void mergeDetectsRestartedService() {
+        TrafficHistory client = history(1000, 10, 20, 2000, 30, 40);
+
+        // The new process has no datapoint at or before our newest one
+        TrafficHistory restarted = history(5000, 1, 2, 6000, 3, 4);
+        assertFalse(client.merge(restarted.getHistorySince(client.getLastTimestamp())));
+        // An empty history after the restart
+        assertFalse(client.merge(new TrafficHistory().getHistorySince(client.getLastTimestamp())));
+        // A datapoint at the same time, but with other totals
+        assertFalse(client.merge(history(2000, 0, 0, 3000, 50, 60).getHistorySince(2000)));
+        // Totals going backwards
+        assertFalse(client.merge(history(1000, 10, 20, 2000, 30, 40, 3000, 5, 60).getHistorySince(2000)));
+
+        assertSamePoints(history(1000, 10, 20, 2000, 30, 40).getSeconds(), client.getSeconds());
+    }
+}